@@ -0,0 +1,34 @@
+package net.symplifier.core.application.scheduler;
+
+/**
+ * The source of time for a {@link Scheduler}. The wall clock drives the
+ * calendar Schedules and the millisecond Timers, the monotonic clock drives
+ * the monotonic Timers.
+ *
+ * @author ranjan
+ */
+public interface Clock {
+	/** The clock of the system */
+	Clock SYSTEM = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+	};
+
+	/**
+	 * @return The wall clock time as the unix epoch in milliseconds
+	 */
+	long currentTimeMillis();
+
+	/**
+	 * @return The monotonic time in nanoseconds, only meaningful as a
+	 *         difference between two values
+	 */
+	long nanoTime();
+}
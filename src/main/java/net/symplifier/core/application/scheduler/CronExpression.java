@@ -0,0 +1,175 @@
+package net.symplifier.core.application.scheduler;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Parser for the cron expressions used with {@link Schedule#setCron(String)}.
+ * The expression is compiled straight in to the bitmasks used by the
+ * {@link ScheduleMatcher}.
+ *
+ * An expression has 5, 6 or 7 fields separated by white space:
+ * <pre>
+ *   [second] minute hour day-of-month month day-of-week [year]
+ * </pre>
+ * With 5 fields the schedule runs at second 0. Every field accepts a list
+ * of comma separated items, where an item is a single value, a range
+ * {@code a-b}, or {@code *}, optionally followed by a step {@code /n}. A
+ * value with a step and no range ({@code a/n}) runs from the value to the end
+ * of the field. {@code ?} is the same as {@code *}. Months can also be given
+ * as {@code JAN - DEC} and days of week as {@code SUN - SAT} or {@code 0 - 7}
+ * where both 0 and 7 are Sunday.
+ *
+ * Unlike the classic cron, a schedule with both the day of month and the day
+ * of week set runs only on the days that match both, in line with the rest
+ * of the {@link Schedule}.
+ *
+ * @author ranjan
+ */
+final class CronExpression {
+	private static final String[] MONTHS = {
+					"JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"
+	};
+	private static final String[] WEEKDAYS = {"SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"};
+
+	private static final int MIN_YEAR = 1970;
+	private static final int MAX_YEAR = 2999;
+
+	final long seconds;
+	final long minutes;
+	final int hours;
+	final int days;
+	final int months;
+	final int weekdays;
+	final int[] years;			/* null for every year */
+
+	private CronExpression(long seconds, long minutes, int hours, int days, int months, int weekdays, int[] years) {
+		this.seconds = seconds;
+		this.minutes = minutes;
+		this.hours = hours;
+		this.days = days;
+		this.months = months;
+		this.weekdays = weekdays;
+		this.years = years;
+	}
+
+	/**
+	 * Parse the cron expression
+	 *
+	 * @param expression The cron expression
+	 * @return The compiled expression
+	 * @throws IllegalArgumentException if the expression is not valid
+	 */
+	static CronExpression parse(String expression) {
+		String[] fields = expression.trim().toUpperCase(Locale.ROOT).split("\\s+");
+		if (fields.length < 5 || fields.length > 7) {
+			throw new IllegalArgumentException("Invalid cron expression, expected 5 to 7 fields - " + expression);
+		}
+
+		int idx = 0;
+		long seconds = fields.length == 5 ? 1L : parseField(expression, fields[idx++], 0, 59, null);
+		long minutes = parseField(expression, fields[idx++], 0, 59, null);
+		int hours = (int) parseField(expression, fields[idx++], 0, 23, null);
+		int days = (int) parseField(expression, fields[idx++], 1, 31, null);
+		int months = (int) parseField(expression, fields[idx++], 1, 12, MONTHS);
+
+		// Days of week are 0 - 7 in cron, both 0 and 7 being Sunday, and 1 - 7
+		// from Sunday in the Schedule
+		long dow = parseField(expression, fields[idx++], 0, 7, WEEKDAYS);
+		int weekdays = (int) (((dow | (dow >>> 7)) & 0x7F) << 1);
+
+		int[] years = null;
+		if (idx < fields.length && !isAll(fields[idx])) {
+			years = parseYears(expression, fields[idx]);
+		}
+
+		return new CronExpression(seconds, minutes, hours, days, months, weekdays, years);
+	}
+
+	private static boolean isAll(String field) {
+		return field.equals("*") || field.equals("?");
+	}
+
+	/* Parse a field in to a bitmask */
+	private static long parseField(String expression, String field, int min, int max, String[] names) {
+		long mask = 0;
+		for(String item:field.split(",")) {
+			int[] range = parseItem(expression, item, min, max, names);
+			for(int v = range[0]; v <= range[1]; v += range[2]) {
+				mask |= 1L << v;
+			}
+		}
+		return mask;
+	}
+
+	private static int[] parseYears(String expression, String field) {
+		ArrayList<Integer> list = new ArrayList<>();
+		for(String item:field.split(",")) {
+			int[] range = parseItem(expression, item, MIN_YEAR, MAX_YEAR, null);
+			for(int v = range[0]; v <= range[1]; v += range[2]) {
+				list.add(v);
+			}
+		}
+
+		int[] years = new int[list.size()];
+		for(int i = 0; i < years.length; ++i) {
+			years[i] = list.get(i);
+		}
+		return ScheduleMatcher.yearList(years);
+	}
+
+	/* Parse a single item of a field in to the range start, end and step */
+	private static int[] parseItem(String expression, String item, int min, int max, String[] names) {
+		int step = 1;
+		int slash = item.indexOf('/');
+		if (slash >= 0) {
+			step = parseNumber(expression, item.substring(slash + 1));
+			if (step <= 0) {
+				throw new IllegalArgumentException("Invalid step '" + item + "' in cron expression - " + expression);
+			}
+			item = item.substring(0, slash);
+		}
+
+		int from, to;
+		if (isAll(item)) {
+			from = min;
+			to = max;
+		} else {
+			int dash = item.indexOf('-');
+			if (dash > 0) {
+				from = parseValue(expression, item.substring(0, dash), min, names);
+				to = parseValue(expression, item.substring(dash + 1), min, names);
+			} else {
+				from = parseValue(expression, item, min, names);
+				to = slash >= 0 ? max : from;
+			}
+		}
+
+		if (from < min || to > max || from > to) {
+			throw new IllegalArgumentException("Value out of range (" + min + " - " + max + ") '"
+							+ item + "' in cron expression - " + expression);
+		}
+		return new int[] {from, to, step};
+	}
+
+	private static int parseValue(String expression, String value, int min, String[] names) {
+		if (names != null) {
+			for(int i = 0; i < names.length; ++i) {
+				if (names[i].equals(value)) {
+					// Names start at the minimum value of the field, except for
+					// the days of week which start at Sunday (0)
+					return names == WEEKDAYS ? i : min + i;
+				}
+			}
+		}
+		return parseNumber(expression, value);
+	}
+
+	private static int parseNumber(String expression, String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Invalid value '" + value + "' in cron expression - " + expression);
+		}
+	}
+}
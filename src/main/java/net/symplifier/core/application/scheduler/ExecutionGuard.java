@@ -0,0 +1,105 @@
+package net.symplifier.core.application.scheduler;
+
+import net.symplifier.core.application.threading.ThreadPool;
+
+/**
+ * Keeps track of the runs of a task on a schedule and applies the
+ * {@link ExecutionPolicy}. The guard is handed over to the pool in place of
+ * the task. As the pool merges the runs of the same target that are waiting,
+ * the guard itself is used only when the task is not running, every other
+ * concurrent run gets its own target.
+ *
+ * @author ranjan
+ */
+final class ExecutionGuard implements ScheduledTask {
+	private final Schedule schedule;
+	private final ScheduledTask task;
+
+	private int running;		/* Runs handed over to the pool and not over yet */
+	private boolean pending;	/* A run is waiting for the running one */
+
+	ExecutionGuard(Schedule schedule, ScheduledTask task) {
+		this.schedule = schedule;
+		this.task = task;
+	}
+
+	/**
+	 * Decide on a run of the task as per the policy
+	 *
+	 * @param policy The execution policy of the task
+	 * @return The target to be handed over to the pool, null if the run is
+	 *         skipped or waits for the running one
+	 */
+	synchronized ScheduledTask dispatch(ExecutionPolicy policy) {
+		if (running < policy.getMaxConcurrent()) {
+			running += 1;
+			if (running == 1) {
+				return this;
+			}
+			schedule.countOverlapped();
+			return new Execution();
+		} else if (policy.isQueueOne() && !pending) {
+			pending = true;
+			schedule.countOverlapped();
+		} else {
+			schedule.countSkipped();
+		}
+		return null;
+	}
+
+	@Override
+	public void onRun(Scheduler source, Schedule attachment) {
+		boolean again;
+		do {
+			try {
+				task.onRun(source, attachment);
+			} catch (RuntimeException ex) {
+				// The run is over either way, the waiting run still needs to go
+				Scheduler.LOGGER.error("Exception in scheduled task - ", ex);
+			}
+
+			synchronized (this) {
+				again = pending;
+				pending = false;
+				if (!again) {
+					running -= 1;
+				}
+			}
+		} while (again);
+	}
+
+	@Override
+	public ThreadPool.Priority getPriority() {
+		return task.getPriority();
+	}
+
+	@Override
+	public synchronized void onDrop(Scheduler source, Schedule attachment) {
+		// The run never started, a run waiting for it goes along and is
+		// skipped as well
+		running -= 1;
+		if (running == 0 && pending) {
+			pending = false;
+			schedule.countSkipped();
+		}
+		schedule.countSkipped();
+	}
+
+	/* A run of the task along with the others */
+	private final class Execution implements ScheduledTask {
+		@Override
+		public void onRun(Scheduler source, Schedule attachment) {
+			ExecutionGuard.this.onRun(source, attachment);
+		}
+
+		@Override
+		public void onDrop(Scheduler source, Schedule attachment) {
+			ExecutionGuard.this.onDrop(source, attachment);
+		}
+
+		@Override
+		public ThreadPool.Priority getPriority() {
+			return task.getPriority();
+		}
+	}
+}
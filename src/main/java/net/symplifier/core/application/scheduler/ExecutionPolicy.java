@@ -0,0 +1,72 @@
+package net.symplifier.core.application.scheduler;
+
+/**
+ * Decides what happens when a {@link Schedule} becomes due while the earlier
+ * runs of its {@link ScheduledTask} are still going on. The task is either
+ * started again, queued to run once the current run is over, or skipped.
+ *
+ * A policy is set on a Schedule for all its tasks with
+ * {@link Schedule#setExecutionPolicy(ExecutionPolicy)}, a task can have its
+ * own policy through {@link ScheduledTask#getExecutionPolicy()}, which takes
+ * precedence. The policies are immutable and can be shared.
+ *
+ * @author ranjan
+ */
+public final class ExecutionPolicy {
+	/** Every run is started regardless of the runs going on, the default */
+	public static final ExecutionPolicy UNLIMITED = new ExecutionPolicy(Integer.MAX_VALUE, false);
+
+	/** A run is skipped if the previous run is still going on */
+	public static final ExecutionPolicy SKIP_IF_RUNNING = new ExecutionPolicy(1, false);
+
+	/** A run waits for the previous run to be over, at most one run waits */
+	public static final ExecutionPolicy QUEUE_ONE = new ExecutionPolicy(1, true);
+
+	private final int maxConcurrent;
+	private final boolean queueOne;
+
+	private ExecutionPolicy(int maxConcurrent, boolean queueOne) {
+		this.maxConcurrent = maxConcurrent;
+		this.queueOne = queueOne;
+	}
+
+	/**
+	 * A policy allowing up to the given number of runs at the same time, the
+	 * runs beyond that are skipped
+	 *
+	 * @param maxConcurrent The maximum number of runs at the same time
+	 * @return The policy
+	 * @throws IllegalArgumentException if the number is less than 1
+	 */
+	public static ExecutionPolicy concurrent(int maxConcurrent) {
+		if (maxConcurrent < 1) {
+			throw new IllegalArgumentException("At least one concurrent run is needed - " + maxConcurrent);
+		}
+		return maxConcurrent == 1 ? SKIP_IF_RUNNING : new ExecutionPolicy(maxConcurrent, false);
+	}
+
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	/**
+	 * @return true if a run waits for the running one instead of being skipped
+	 */
+	public boolean isQueueOne() {
+		return queueOne;
+	}
+
+	boolean isUnlimited() {
+		return maxConcurrent == Integer.MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		if (isUnlimited()) {
+			return "UNLIMITED";
+		} else if (queueOne) {
+			return "QUEUE_ONE";
+		}
+		return maxConcurrent == 1 ? "SKIP_IF_RUNNING" : "CONCURRENT(" + maxConcurrent + ")";
+	}
+}
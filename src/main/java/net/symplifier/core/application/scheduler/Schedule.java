@@ -1,10 +1,10 @@
 package net.symplifier.core.application.scheduler;
 
-import java.text.SimpleDateFormat;
+import java.time.ZoneId;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * The Schedule class that defines the cron like scheduling mechanism
@@ -13,21 +13,75 @@ import java.util.Iterator;
  *
  */
 public class Schedule {
+	/**
+	 * What to do with a run that falls on a local time skipped when the clock
+	 * is turned forward for the daylight saving
+	 */
+	public enum GapPolicy {
+		/** Run later by the length of the change, 02:30 runs at 03:30 */
+		SHIFT,
+		/** Run once at the moment of the change for all the skipped runs */
+		TRANSITION,
+		/** Do not run */
+		SKIP
+	}
+
+	/**
+	 * What to do with a run that falls on a local time repeated when the clock
+	 * is turned back at the end of the daylight saving
+	 */
+	public enum OverlapPolicy {
+		/** Run on the first occurrence only */
+		FIRST,
+		/** Run on the second occurrence only */
+		SECOND,
+		/** Run on both the occurrences */
+		BOTH
+	}
+
+	private static final AtomicLongFieldUpdater<Schedule> SKIPPED =
+					AtomicLongFieldUpdater.newUpdater(Schedule.class, "skippedExecutions");
+	private static final AtomicLongFieldUpdater<Schedule> OVERLAPPED =
+					AtomicLongFieldUpdater.newUpdater(Schedule.class, "overlappedExecutions");
+
 	private ArrayList<ScheduledTask> tasks = new ArrayList<>();
+
+	/* The overlap control of the tasks, see ExecutionPolicy */
+	private volatile ExecutionPolicy executionPolicy = ExecutionPolicy.UNLIMITED;
+	private IdentityHashMap<ScheduledTask, ExecutionGuard> guards;	/* created when needed */
+	private volatile long skippedExecutions;
+	private volatile long overlappedExecutions;
 	
 	protected long nextRunTime;		/* The timestamp at which this schedule is supposed to run next */
+
+	int queueIndex = -1;			/* The slot of this schedule in the ScheduleQueue, -1 when not queued */
+	volatile int state;				/* The SchedulerShard.SCHEDULED and SUBMITTED flags */
+	volatile Scheduler scheduler;	/* The Scheduler this schedule belongs to, null for the default */
+	volatile SchedulerShard shard;	/* The shard this schedule belongs to, assigned on first add */
+	Schedule nextSubmitted;			/* Link on the submission stack of the shard */
+	volatile long slack;			/* How late the schedule may run to share a wake up with others */
+	volatile String journalId;		/* The id under which the schedule is journaled, null if not */
+	volatile String singleton;		/* The name of a singleton schedule, see ScheduleLease */
 	
-	private int[] milliSeconds = new int[] {0};
-	private int[] seconds;
-	private int[] minutes;
-	private int[] hours;
-	private int[] weekdays;
-	private int[] days;
-	private int[] months;
-	private int[] years;
+	/* The allowed values of every field as bitmasks, see ScheduleMatcher */
+	private long[] milliSeconds = ScheduleMatcher.milliBits(new int[] {0});
+	private long seconds = ScheduleMatcher.ALL_SECONDS;
+	private long minutes = ScheduleMatcher.ALL_MINUTES;
+	private int hours = ScheduleMatcher.ALL_HOURS;
+	private int weekdays = ScheduleMatcher.ALL_WEEKDAYS;
+	private int days = ScheduleMatcher.ALL_DAYS;
+	private int months = ScheduleMatcher.ALL_MONTHS;
+	private int[] years;						/* sorted, null for every year */
+
+	/* The time zone in which the fields are interpreted */
+	private ZoneId zone = ZoneId.systemDefault();
+	private GapPolicy gapPolicy = GapPolicy.SHIFT;
+	private OverlapPolicy overlapPolicy = OverlapPolicy.BOTH;
+	private volatile ScheduleMatcher matcher;	/* Compiled from the fields above when needed */
 	
 	public void setMilliSeconds(int ... values) {
-		milliSeconds = values;
+		milliSeconds = ScheduleMatcher.milliBits(values);
+		matcher = null;
 	}
 	/**
 	 * Set the seconds value at which you want to activate this schedule. You 
@@ -36,7 +90,8 @@ public class Schedule {
 	 * @param values The second values (0 - 59)
 	 */
 	public void setSeconds(int ... values) {
-		seconds = values;
+		seconds = ScheduleMatcher.bits(values, 0, 59);
+		matcher = null;
 	}
 	
 	/**
@@ -47,7 +102,8 @@ public class Schedule {
 	 * @param values The minute values (0 - 59)
 	 */
 	public void setMinutes(int ... values) {
-		minutes = values;
+		minutes = ScheduleMatcher.bits(values, 0, 59);
+		matcher = null;
 	}
 	
 	/**
@@ -57,7 +113,8 @@ public class Schedule {
 	 * @param values The hour values (0 - 23)
 	 */
 	public void setHours(int ... values) {
-		hours = values;
+		hours = (int) ScheduleMatcher.bits(values, 0, 23);
+		matcher = null;
 	}
 	
 	/**
@@ -69,7 +126,8 @@ public class Schedule {
 	 * @param values The day of week values (1 - 7)
 	 */
 	public void setDaysOfWeek(int ... values) {
-		weekdays = values;
+		weekdays = (int) ScheduleMatcher.bits(values, 1, 7);
+		matcher = null;
 	}
 	
 	/**
@@ -81,7 +139,8 @@ public class Schedule {
 	 * @param values Days of month values (1 - 31)
 	 */
 	public void setDaysOfMonth(int ... values) {
-		days = values;
+		days = (int) ScheduleMatcher.bits(values, 1, 31);
+		matcher = null;
 	}
 	
 	/**
@@ -90,7 +149,8 @@ public class Schedule {
 	 * @param values The months values (1 - 12)
 	 */
 	public void setMonths(int ... values) {
-		months = values;
+		months = (int) ScheduleMatcher.bits(values, 1, 12);
+		matcher = null;
 	}
 	
 	/**
@@ -100,42 +160,239 @@ public class Schedule {
 	 * @param values The Year values
 	 */
 	public void setYears(int ... values) {
-		years = values;
+		years = ScheduleMatcher.yearList(values);
+		matcher = null;
 	}
 	
+	/**
+	 * Set the time zone in which the date and time fields are interpreted. If
+	 * not set, the default time zone of the JVM is used.
+	 *
+	 * @param zone The time zone
+	 */
+	public void setTimeZone(ZoneId zone) {
+		this.zone = zone == null ? ZoneId.systemDefault() : zone;
+		matcher = null;
+	}
+
+	public ZoneId getTimeZone() {
+		return zone;
+	}
+
+	/**
+	 * Set how the runs on the local times skipped when the clock is turned
+	 * forward are handled. {@link GapPolicy#SHIFT} if not set.
+	 *
+	 * @param policy The policy for the skipped local times
+	 */
+	public void setGapPolicy(GapPolicy policy) {
+		this.gapPolicy = policy;
+		matcher = null;
+	}
+
+	public GapPolicy getGapPolicy() {
+		return gapPolicy;
+	}
+
+	/**
+	 * Set how the runs on the local times repeated when the clock is turned
+	 * back are handled. {@link OverlapPolicy#BOTH} if not set, which suits
+	 * the schedules running many times a day, while a daily schedule would
+	 * normally want {@link OverlapPolicy#FIRST}.
+	 *
+	 * @param policy The policy for the repeated local times
+	 */
+	public void setOverlapPolicy(OverlapPolicy policy) {
+		this.overlapPolicy = policy;
+		matcher = null;
+	}
+
+	public OverlapPolicy getOverlapPolicy() {
+		return overlapPolicy;
+	}
+
+	/**
+	 * Allow the schedule to run up to the given milliseconds late, so that it
+	 * can be run together with other schedules due around the same time in a
+	 * single wake up of the Scheduler, instead of waking the Scheduler up
+	 * separately. The schedule never runs early. Defaults to 0.
+	 *
+	 * Timers on the timing wheel already share the wake ups by the tick
+	 * resolution and ignore the slack.
+	 *
+	 * @param slack The tolerance in milliseconds
+	 */
+	public void setSlack(long slack) {
+		this.slack = Math.max(0, slack);
+	}
+
+	public long getSlack() {
+		return slack;
+	}
+
+	/**
+	 * Set how the runs of the tasks on this schedule may overlap, when the
+	 * schedule is due again before the earlier runs are over. Applies to
+	 * every task separately, unless the task has its own policy. Defaults to
+	 * {@link ExecutionPolicy#UNLIMITED}.
+	 *
+	 * @param policy The execution policy
+	 */
+	public void setExecutionPolicy(ExecutionPolicy policy) {
+		this.executionPolicy = policy == null ? ExecutionPolicy.UNLIMITED : policy;
+	}
+
+	public ExecutionPolicy getExecutionPolicy() {
+		return executionPolicy;
+	}
+
+	/**
+	 * The number of runs of the tasks that were skipped as per the execution
+	 * policy, because too many earlier runs were still going on
+	 *
+	 * @return The number of skipped runs
+	 */
+	public long getSkippedExecutions() {
+		return skippedExecutions;
+	}
+
+	/**
+	 * The number of runs of the tasks that started, or were queued, while an
+	 * earlier run of the same task was still going on
+	 *
+	 * @return The number of overlapped runs
+	 */
+	public long getOverlappedExecutions() {
+		return overlappedExecutions;
+	}
+
+	void countSkipped() {
+		SKIPPED.incrementAndGet(this);
+	}
+
+	void countOverlapped() {
+		OVERLAPPED.incrementAndGet(this);
+	}
+
+	/**
+	 * Set all the date and time fields from a cron expression, like
+	 * {@code "0 *&#47;5 9-17 * * MON-FRI"} for every five minutes during the office
+	 * hours. See {@link CronExpression} for the format. The schedule runs at
+	 * millisecond 0 of the matching seconds.
+	 *
+	 * @param expression The cron expression with 5, 6 or 7 fields
+	 * @throws IllegalArgumentException if the expression is not valid
+	 */
+	public void setCron(String expression) {
+		CronExpression cron = CronExpression.parse(expression);
+		milliSeconds = ScheduleMatcher.milliBits(new int[] {0});
+		seconds = cron.seconds;
+		minutes = cron.minutes;
+		hours = cron.hours;
+		weekdays = cron.weekdays;
+		days = cron.days;
+		months = cron.months;
+		years = cron.years;
+		matcher = null;
+	}
+
+	/**
+	 * Create a schedule from a cron expression
+	 *
+	 * @param expression The cron expression with 5, 6 or 7 fields
+	 * @return The schedule running as per the expression
+	 * @throws IllegalArgumentException if the expression is not valid
+	 */
+	public static Schedule cron(String expression) {
+		Schedule schedule = new Schedule();
+		schedule.setCron(expression);
+		return schedule;
+	}
+
+	/**
+	 * Create a schedule from a cron expression interpreted in the given time
+	 * zone
+	 *
+	 * @param expression The cron expression with 5, 6 or 7 fields
+	 * @param zone The time zone of the expression
+	 * @return The schedule running as per the expression
+	 * @throws IllegalArgumentException if the expression is not valid
+	 */
+	public static Schedule cron(String expression, ZoneId zone) {
+		Schedule schedule = cron(expression);
+		schedule.setTimeZone(zone);
+		return schedule;
+	}
+
+	/**
+	 * Make this schedule run on the given Scheduler instead of the default
+	 * one. Needs to be set before the schedule is added anywhere, a schedule
+	 * stays with the Scheduler it was first added to.
+	 *
+	 * @param scheduler The Scheduler for this schedule
+	 * @throws IllegalStateException if the schedule already belongs to
+	 *         another Scheduler
+	 */
+	public void setScheduler(Scheduler scheduler) {
+		Scheduler owner = this.scheduler;
+		if (owner != null && owner != scheduler) {
+			throw new IllegalStateException("The schedule already belongs to another scheduler");
+		}
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * @return The Scheduler this schedule runs on
+	 */
+	public Scheduler getScheduler() {
+		Scheduler owner = scheduler;
+		return owner == null ? Scheduler.getDefault() : owner;
+	}
+
+	/**
+	 * Record this schedule in the {@link ScheduleJournal} of its Scheduler
+	 * under the given id, so that it can be restored after a restart. The id
+	 * needs to be unique within the journal.
+	 *
+	 * @param id The journal id, null to stop recording the schedule
+	 */
+	public void setJournalId(String id) {
+		this.journalId = id;
+	}
+
+	public String getJournalId() {
+		return journalId;
+	}
+
+	/**
+	 * Make this a singleton schedule, which runs in only one of the processes
+	 * sharing the {@link ScheduleLease} of its Scheduler. The name identifies
+	 * the schedule across the processes and needs to be the same in all.
+	 *
+	 * @param name The name of the singleton schedule, null to run it in every
+	 *             process
+	 */
+	public void setSingleton(String name) {
+		this.singleton = name;
+	}
+
+	public String getSingleton() {
+		return singleton;
+	}
+
 	/**
 	 * After changing the date and time fields, invoke this method to update
 	 * the changes to this schedule in the scheduler. If not updated, the
 	 * schedule will run once as per previous arrangement.
 	 */
 	public void updateScheduler() {
-		nextRunTime = 0;
-		Scheduler.removeSchedule(this);
-		Scheduler.addSchedule(this);
+		Scheduler.updateSchedule(this);
 	}
 
 	public boolean isScheduled() {
 		return Scheduler.isScheduled(this);
 	}
 	
-	/* Helper function to find next value in the array in reference to the refValue. If the value
-	 * rolls over, the new value returned is the first value with rollover addition */ 
-	private int findNextValue(int[] array, int refValue, int rollover) {
-		if (array == null || array.length == 0) {
-			return refValue;
-		}
-		
-		for(int x:array) {
-			if (x>=refValue) {
-				return x;
-			}
-		}
-		
-		return array[0] + rollover;
-	}
-	
-	private final static SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
-	
 	/**
 	 * Retrieve the next run time in milliseconds (Unix timestamp value). If
 	 * the next run time has not been calculated, it is calculated and then 
@@ -145,7 +402,7 @@ public class Schedule {
 	 */
 	public long getNextRunTime() {
 		if(nextRunTime == 0) {
-			nextRunTime = calcNextRunTime(System.currentTimeMillis());
+			nextRunTime = calcNextRunTime(Scheduler.clockOf(this).currentTimeMillis());
 		}
 		return nextRunTime;
 	}
@@ -165,118 +422,93 @@ public class Schedule {
 		return nextRunTime;
 	}
 	
-	/* Calculates the next run time after the given timestamp */
-	private long calcNextRunTime(long timestamp) {
-		Calendar cal = Calendar.getInstance();
-		cal.setTime(new Date(timestamp + 1));
-		String orgDayValue = DATE_FORMAT.format(cal.getTime());
-		//System.out.println(orgDayValue);
-		
-		fixTime(cal);
-		fixDate(cal, 0);
-		String newDayValue = DATE_FORMAT.format(cal.getTime());
-		//System.out.println(newDayValue);
-		
-		if (!newDayValue.equals(orgDayValue)) {
-			cal.set(Calendar.HOUR_OF_DAY, 0);
-			cal.set(Calendar.MINUTE, 0);
-			cal.set(Calendar.SECOND, 0);
-			fixTime(cal);
-		}
-		
-		return cal.getTime().getTime();
-		
+	/**
+	 * Find the next run time after the given timestamp without changing the
+	 * state of the schedule. Unlike {@link #getNextRunTime(long)} this can be
+	 * called any number of times from any thread.
+	 *
+	 * @param timestamp The threshold timestamp
+	 * @return The next unix epoch after timestamp at which this schedule would
+	 *         run, or -1 if it would not run anymore
+	 */
+	public long peekNextRunTime(long timestamp) {
+		return calcNextRunTime(timestamp);
 	}
-	
-	/* Fix the time part of the next run time */
-	private boolean fixTime(Calendar cal) {
-		int hour = cal.get(Calendar.HOUR_OF_DAY);
-		int minute = cal.get(Calendar.MINUTE);
-		int second = cal.get(Calendar.SECOND);
-		int milli = cal.get(Calendar.MILLISECOND);
-		
-		milli = findNextValue(milliSeconds, milli, 1000);
-		if (milli >= 1000) {
-			milli = milli - 1000;
-			second += 1;
-		}
-		cal.set(Calendar.MILLISECOND, milli);
-		
-		second = findNextValue(seconds, second, 60);
-		if (second >= 60) {
-			second = second - 60;
-			minute += 1;
-		}
-		cal.set(Calendar.SECOND, second);
-		
-		minute = findNextValue(minutes, minute, 60);
-		if (minute >= 60) {
-			minute = minute - 60;
-			hour += 1;
-		}
-		cal.set(Calendar.MINUTE, minute);
-
-		hour = findNextValue(hours, hour, 24);
-		if (hour >= 24) {
-			hour = hour - 24;
-			cal.set(Calendar.HOUR_OF_DAY, hour);
-			cal.add(Calendar.DAY_OF_MONTH, 1);
-			return true;
-		} else {
-			cal.set(Calendar.HOUR_OF_DAY, hour);
-			return false;
-		}
+
+	/**
+	 * Fill the given array with the upcoming run times after the given
+	 * timestamp, without changing the state of the schedule.
+	 *
+	 * @param timestamp The threshold timestamp
+	 * @param times The array to be filled with the run times in ascending order
+	 * @return The number of run times filled, less than the length of the array
+	 *         if the schedule stops running before that
+	 */
+	public int getNextRunTimes(long timestamp, long[] times) {
+		return getNextRunTimes(timestamp, times, 0, times.length);
 	}
-	
-	/* fix the date part of the next run time, this is a bit complicated
-	 * due do the combination allowed between the days of the week and date
+
+	/**
+	 * Fill a part of the given array with the upcoming run times after the
+	 * given timestamp, without changing the state of the schedule.
+	 *
+	 * @param timestamp The threshold timestamp
+	 * @param times The array to be filled with the run times in ascending order
+	 * @param offset The index in the array from where the run times are filled
+	 * @param count The maximum number of run times to be filled
+	 * @return The number of run times filled
 	 */
-	private boolean fixDate(Calendar date, int tryCount) {
-		// An exhaust condition
-		if (tryCount > 30) {
-			return false;
-		}
-		int dom = date.get(Calendar.DAY_OF_MONTH);
-		int month = date.get(Calendar.MONTH);
-		int year = date.get(Calendar.YEAR);
-		
-		dom = findNextValue(days, dom, 100);
-		if (dom >= 100) {
-			dom = dom - 100;
-			month += 1;
-		}
-		date.set(Calendar.DAY_OF_MONTH, dom);
-		
-		month = findNextValue(months, month, 12);
-		if (month >= 13) {
-			month = month - 12;
-			year += 1;
-		}
-		date.set(Calendar.MONDAY, month);
-		
-		year = findNextValue(years, year, 10000);
-		if (year >= 10000) {
-			return false;
-		}
-		
-		if (weekdays == null || weekdays.length == 0) {
-			return true;
-		} else {
-			for(int dow:weekdays) {
-				if (dow == date.get(Calendar.DAY_OF_WEEK)) {
-					return true;
-				}
+	public int getNextRunTimes(long timestamp, long[] times, int offset, int count) {
+		int n = 0;
+		while (n < count) {
+			timestamp = peekNextRunTime(timestamp);
+			if (timestamp == -1) {
+				break;
 			}
-			
-			// Recursively search for a date that would match to day of week
-			date.add(Calendar.DAY_OF_MONTH, 1);
-			return fixDate(date, tryCount+1);
+			times[offset + n++] = timestamp;
 		}
+		return n;
+	}
+
+	/* Calculates the next run time after the given timestamp, -1 if there is
+	 * none. Safe to call from any thread and does not allocate once the fields
+	 * have been compiled */
+	long calcNextRunTime(long timestamp) {
+		ScheduleMatcher m = matcher;
+		if (m == null) {
+			m = new ScheduleMatcher(milliSeconds, seconds, minutes, hours, weekdays, days, months, years,
+							ZoneTransitions.of(zone), gapPolicy, overlapPolicy);
+			matcher = m;
+		}
+		return m.next(timestamp);
 	}
 	
 	Iterator<ScheduledTask> getTasks() {
 		return tasks.iterator();
 	}
+
+	/* The target to be handed over to the pool for running the task as per
+	 * its execution policy, null when the run is skipped or waits for the
+	 * running one. Called by the Scheduler while holding the lock on this */
+	ScheduledTask dispatch(ScheduledTask task) {
+		ExecutionPolicy policy = task.getExecutionPolicy();
+		if (policy == null) {
+			policy = executionPolicy;
+		}
+		if (policy.isUnlimited()) {
+			return task;
+		}
+
+		if (guards == null) {
+			guards = new IdentityHashMap<>();
+		}
+		ExecutionGuard guard = guards.get(task);
+		if (guard == null) {
+			guard = new ExecutionGuard(this, task);
+			guards.put(task, guard);
+		}
+		return guard.dispatch(policy);
+	}
 	
 	/**
 	 * Add a task to be run on this schedule. If there are no tasks on a schedule,
@@ -301,6 +533,9 @@ public class Schedule {
 	public void removeTask(ScheduledTask task) {
 		synchronized(this) {
 			tasks.remove(task);
+			if (guards != null && !tasks.contains(task)) {
+				guards.remove(task);
+			}
 			if (tasks.size() == 0) {
 				Scheduler.removeSchedule(this);
 			}
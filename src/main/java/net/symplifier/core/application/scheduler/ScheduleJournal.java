@@ -0,0 +1,462 @@
+package net.symplifier.core.application.scheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append only journal of the schedules, kept in a memory mapped file, so
+ * that the pending Timers and the last run times survive a restart of the
+ * process. Only the Schedules given an id with
+ * {@link Schedule#setJournalId(String)} are recorded, on the Schedulers built
+ * with {@link Scheduler.Builder#journal(ScheduleJournal)}.
+ *
+ * Every time such a schedule is armed, run or cancelled, a small record with
+ * its next run time is appended to the file. The records are written straight
+ * in to the mapped memory, which survives a crash of the process. The file
+ * is forced to the disk by a background thread at most once every flush
+ * interval, never for every record, so any amount of churn costs a single
+ * sync per interval. When the file is full it is compacted, the latest
+ * state of every live schedule is written to a new file which then replaces
+ * the old one.
+ *
+ * On a restart the journal is read in one sequential pass when opened.
+ * {@link #restore(String, Schedule)} then puts a schedule back in its
+ * recorded state and tells how many of its runs were missed while the
+ * process was down.
+ *
+ * @author ranjan
+ */
+public class ScheduleJournal {
+	private static final int MAGIC = 0x534A524E;		/* SJRN */
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+
+	/* Record types */
+	private static final byte ARM = 1;
+	private static final byte FIRE = 2;
+	private static final byte CANCEL = 3;
+
+	/* Record flags */
+	private static final byte TIMER = 1;
+	private static final byte FIXED_RATE = 2;
+	private static final byte MONOTONIC = 4;
+
+	/* length, type, flags, next run time, last run time, repeat delay, id length */
+	private static final int RECORD_SIZE = 4 + 1 + 1 + 8 + 8 + 8 + 2;
+
+	/* The most missed runs counted for a schedule */
+	private static final int MAX_MISSED = 1 << 20;
+
+	private static final int DEFAULT_CAPACITY = 1 << 20;
+	private static final long DEFAULT_FLUSH_INTERVAL = 100;
+
+	/**
+	 * The recorded state of a schedule
+	 */
+	public static final class Entry {
+		private final String id;
+		private long nextRunTime;
+		private long lastRunTime;
+		private long repeatDelay;
+		private byte flags;
+
+		private Entry(String id) {
+			this.id = id;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * @return The time at which the schedule was supposed to run next
+		 */
+		public long getNextRunTime() {
+			return nextRunTime;
+		}
+
+		/**
+		 * @return The time at which the schedule last ran, 0 if never
+		 */
+		public long getLastRunTime() {
+			return lastRunTime;
+		}
+
+		/**
+		 * @return The repeat delay of a Timer, in nanoseconds for a monotonic
+		 *         Timer, -1 if it runs only once
+		 */
+		public long getRepeatDelay() {
+			return repeatDelay;
+		}
+
+		public boolean isTimer() {
+			return (flags & TIMER) != 0;
+		}
+	}
+
+	private final File file;
+	private final long flushInterval;
+	private final HashMap<String, Entry> entries = new HashMap<>();
+
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int capacity;
+	private int position;
+	private volatile boolean dirty;
+	private volatile boolean closed;
+	private final Thread flusher;
+
+	/**
+	 * Open the journal in the given file with the default capacity and flush
+	 * interval, reading the records already in it
+	 *
+	 * @param file The journal file, created if it doesn't exist
+	 * @return The journal
+	 * @throws IOException if the file cannot be opened or is not a journal
+	 */
+	public static ScheduleJournal open(File file) throws IOException {
+		return new ScheduleJournal(file, DEFAULT_CAPACITY, DEFAULT_FLUSH_INTERVAL);
+	}
+
+	/**
+	 * Open the journal in the given file, reading the records already in it
+	 *
+	 * @param file The journal file, created if it doesn't exist
+	 * @param capacity The initial size of the file in bytes, it grows as needed
+	 * @param flushInterval The milliseconds between the syncs to the disk
+	 * @throws IOException if the file cannot be opened or is not a journal
+	 */
+	public ScheduleJournal(File file, int capacity, long flushInterval) throws IOException {
+		this.file = file;
+		this.flushInterval = Math.max(1, flushInterval);
+
+		map(file, Math.max(capacity, (int) Math.min(Integer.MAX_VALUE, file.length())));
+		if (buffer.getInt(0) == 0) {
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+		} else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			channel.close();
+			throw new IOException("Not a schedule journal - " + file);
+		}
+		replay();
+
+		flusher = new Thread(this::flushLoop, "ScheduleJournal-" + file.getName());
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	private void map(File file, int capacity) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.READ, StandardOpenOption.WRITE);
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		this.capacity = capacity;
+	}
+
+	/* Read all the records in one pass, a torn record at the end is ignored */
+	private void replay() {
+		int pos = HEADER_SIZE;
+		while (pos + RECORD_SIZE <= capacity) {
+			int length = buffer.getInt(pos);
+			if (length < RECORD_SIZE || pos + length > capacity) {
+				break;
+			}
+
+			byte type = buffer.get(pos + 4);
+			byte flags = buffer.get(pos + 5);
+			long next = buffer.getLong(pos + 6);
+			long last = buffer.getLong(pos + 14);
+			long repeat = buffer.getLong(pos + 22);
+			int idLength = buffer.getShort(pos + 30) & 0xFFFF;
+			if (RECORD_SIZE + idLength != length) {
+				break;
+			}
+			byte[] id = new byte[idLength];
+			for(int i = 0; i < idLength; ++i) {
+				id[i] = buffer.get(pos + RECORD_SIZE + i);
+			}
+			apply(new String(id, StandardCharsets.UTF_8), type, flags, next, last, repeat);
+			pos += length;
+		}
+		position = pos;
+	}
+
+	private void apply(String id, byte type, byte flags, long next, long last, long repeat) {
+		if (type == CANCEL) {
+			entries.remove(id);
+			return;
+		}
+
+		Entry entry = entries.get(id);
+		if (entry == null) {
+			entry = new Entry(id);
+			entries.put(id, entry);
+		}
+		entry.flags = flags;
+		entry.nextRunTime = next;
+		entry.repeatDelay = repeat;
+		if (last != 0) {
+			entry.lastRunTime = last;
+		}
+	}
+
+	/**
+	 * @return The ids of all the schedules that were pending when the journal
+	 *         was last written
+	 */
+	public synchronized Collection<String> getIds() {
+		return new ArrayList<>(entries.keySet());
+	}
+
+	/**
+	 * @param id The id of the schedule
+	 * @return The recorded state of the schedule, null if it is not pending
+	 */
+	public synchronized Entry getEntry(String id) {
+		return entries.get(id);
+	}
+
+	/**
+	 * Put the schedule back in the state recorded under the given id and find
+	 * out how many runs were missed since. A Timer is started again with its
+	 * remaining delay, or right away if it was due in the meantime, and then
+	 * continues with its repeat delay. A calendar Schedule only gets the id,
+	 * it runs as per its own fields once its tasks are added.
+	 *
+	 * @param id The id of the schedule
+	 * @param schedule The schedule to be restored, created again by the
+	 *                 application with its tasks
+	 * @return The number of runs missed while the schedule was not running,
+	 *         -1 if nothing is recorded under the id
+	 */
+	public long restore(String id, Schedule schedule) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(id);
+		}
+		schedule.setJournalId(id);
+		if (entry == null) {
+			return -1;
+		}
+
+		long now = Scheduler.clockOf(schedule).currentTimeMillis();
+		long next = entry.nextRunTime;
+		long missed = 0;
+		if (schedule instanceof Timer && entry.isTimer()) {
+			// The repeat delay of a monotonic timer is kept in nanoseconds
+			boolean monotonic = (entry.flags & MONOTONIC) != 0;
+			long repeat = entry.repeatDelay;
+			long repeatMillis = monotonic && repeat > 0 ? repeat / 1000000L : repeat;
+			if (next <= now) {
+				long elapsed = now - next;
+				if (repeat <= 0) {
+					missed = 1;
+				} else if (!monotonic) {
+					missed = elapsed / repeat + 1;
+				} else if (elapsed < Long.MAX_VALUE / 1000000L) {
+					missed = elapsed * 1000000L / repeat + 1;
+				} else {
+					// Down for long enough to overflow the nanoseconds, some 292 years
+					missed = elapsed / Math.max(1, repeatMillis) + 1;
+				}
+				missed = Math.min(missed, MAX_MISSED);
+			}
+			long delay = Math.max(0, next - now);
+			Timer timer = (Timer) schedule;
+			boolean fixedRate = (entry.flags & FIXED_RATE) != 0;
+			if (monotonic) {
+				TimeUnit unit = TimeUnit.NANOSECONDS;
+				if (fixedRate) {
+					timer.startAtFixedRate(unit.convert(delay, TimeUnit.MILLISECONDS), repeat, unit);
+				} else {
+					timer.start(unit.convert(delay, TimeUnit.MILLISECONDS), repeat, unit);
+				}
+			} else if (fixedRate) {
+				timer.startAtFixedRate(delay, repeatMillis);
+			} else {
+				timer.start(delay, repeatMillis);
+			}
+		} else if (next > 0) {
+			for(long t = next; t != -1 && t <= now && missed < MAX_MISSED; t = schedule.peekNextRunTime(t)) {
+				missed += 1;
+			}
+		}
+		return missed;
+	}
+
+	/* The schedule has been armed for its next run */
+	void armed(Schedule schedule) {
+		record(schedule, ARM, 0);
+	}
+
+	/* The schedule has run at the given time and has been armed again */
+	void fired(Schedule schedule, long timestamp) {
+		record(schedule, FIRE, timestamp);
+	}
+
+	/* The schedule is not going to run anymore */
+	void cancelled(Schedule schedule) {
+		record(schedule, CANCEL, 0);
+	}
+
+	private void record(Schedule schedule, byte type, long last) {
+		String id = schedule.journalId;
+		if (id == null) {
+			return;
+		}
+
+		long next = schedule.nextRunTime;
+		if (next == -1) {
+			type = CANCEL;
+		}
+		byte flags = 0;
+		long repeat = -1;
+		if (schedule instanceof Timer) {
+			Timer timer = (Timer) schedule;
+			flags |= TIMER;
+			flags |= timer.isFixedRate() ? FIXED_RATE : 0;
+			flags |= timer.monotonic ? MONOTONIC : 0;
+			repeat = timer.monotonic ? timer.getRepeatNanos() : timer.getRepeatDelay();
+		}
+
+		byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > 0xFFFF) {
+			Scheduler.LOGGER.error("Schedule id too long for the journal - " + id);
+			return;
+		}
+
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			// Drop the records of a schedule cancelled before it was ever armed
+			if (type == CANCEL && !entries.containsKey(id)) {
+				return;
+			}
+			apply(id, type, flags, next, last, repeat);
+			try {
+				int length = RECORD_SIZE + bytes.length;
+				if (position + length > capacity) {
+					compact(length);
+				}
+				append(type, flags, next, last, repeat, bytes);
+			} catch (IOException ex) {
+				Scheduler.LOGGER.error("Error writing the schedule journal - ", ex);
+			}
+		}
+	}
+
+	private void append(byte type, byte flags, long next, long last, long repeat, byte[] id) {
+		int pos = position;
+		buffer.put(pos + 4, type);
+		buffer.put(pos + 5, flags);
+		buffer.putLong(pos + 6, next);
+		buffer.putLong(pos + 14, last);
+		buffer.putLong(pos + 22, repeat);
+		buffer.putShort(pos + 30, (short) id.length);
+		for(int i = 0; i < id.length; ++i) {
+			buffer.put(pos + RECORD_SIZE + i, id[i]);
+		}
+		// The length goes last, a record without it is not there
+		int length = RECORD_SIZE + id.length;
+		buffer.putInt(pos, length);
+		position = pos + length;
+		dirty = true;
+	}
+
+	/**
+	 * Rewrite the journal with only the latest state of every pending
+	 * schedule. Done automatically when the file is full.
+	 *
+	 * @throws IOException if the journal cannot be written
+	 */
+	public synchronized void compact() throws IOException {
+		compact(0);
+	}
+
+	private void compact(int reserve) throws IOException {
+		int live = HEADER_SIZE + reserve;
+		for(Entry entry:entries.values()) {
+			live += RECORD_SIZE + entry.id.getBytes(StandardCharsets.UTF_8).length;
+		}
+		// Keep at least half of the file free after the compaction
+		int size = capacity;
+		while (size < live * 2L && size < Integer.MAX_VALUE / 2) {
+			size <<= 1;
+		}
+
+		File temp = new File(file.getPath() + ".compact");
+		Files.deleteIfExists(temp.toPath());
+		MappedByteBuffer old = buffer;
+		FileChannel oldChannel = channel;
+		old.force();
+
+		map(temp, size);
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		position = HEADER_SIZE;
+		for(Entry entry:entries.values()) {
+			append(ARM, entry.flags, entry.nextRunTime, entry.lastRunTime, entry.repeatDelay,
+							entry.id.getBytes(StandardCharsets.UTF_8));
+		}
+		buffer.force();
+		dirty = false;
+		oldChannel.close();
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Sync all the records to the disk right away
+	 */
+	public void flush() {
+		MappedByteBuffer current;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			current = buffer;
+			dirty = false;
+		}
+		current.force();
+	}
+
+	private void flushLoop() {
+		while (!closed) {
+			try {
+				Thread.sleep(flushInterval);
+			} catch (InterruptedException ex) {
+				break;
+			}
+			if (dirty) {
+				flush();
+			}
+		}
+	}
+
+	/**
+	 * Sync the journal and close the file. The schedules are not recorded
+	 * anymore.
+	 *
+	 * @throws IOException if the file cannot be closed
+	 */
+	public void close() throws IOException {
+		flush();
+		synchronized (this) {
+			closed = true;
+			channel.close();
+		}
+		flusher.interrupt();
+	}
+}
@@ -0,0 +1,240 @@
+package net.symplifier.core.application.scheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coordinates the singleton Schedules between the processes running on the
+ * same host, so that such a schedule runs in only one of them. The singleton
+ * schedules are spread over a fixed number of slots by the hash of their
+ * name, and a process runs a singleton schedule only while it holds the lease
+ * on its slot. A lease is a lock on a single byte of a shared lock file,
+ * which the operating system releases the moment the holding process dies.
+ *
+ * Every process also holds a lock on a member byte of the same file, which
+ * lets the others count the live processes. A background thread checks the
+ * leases every renew interval, takes the free slots and gives up the slots
+ * beyond its fair share, so the singleton schedules end up split evenly
+ * between the processes and a dead process is taken over within one
+ * interval.
+ *
+ * Mark a schedule with {@link Schedule#setSingleton(String)} and build the
+ * Scheduler with {@link Scheduler.Builder#lease(ScheduleLease)}. The schedule
+ * stays armed in every process, the ones without the lease skip its runs.
+ *
+ * @author ranjan
+ */
+public class ScheduleLease {
+	private static final int DEFAULT_SLOTS = 64;
+	private static final int MAX_MEMBERS = 256;
+	private static final long DEFAULT_RENEW_INTERVAL = 500;
+
+	private final FileChannel channel;
+	private final int slots;
+	private final long renewInterval;
+
+	/* Locks on the slots held by this process, null when not held */
+	private final FileLock[] leases;
+	/* The slots held, one bit per slot, replaced as a whole on every change */
+	private volatile long[] owned;
+
+	private FileLock member;
+	private volatile int members;
+	private volatile boolean closed;
+	private final Thread renewer;
+
+	/**
+	 * Join the coordination through the given lock file with the default
+	 * number of slots and renew interval
+	 *
+	 * @param file The lock file shared by the processes, created if needed
+	 * @return The lease
+	 * @throws IOException if the lock file cannot be opened
+	 */
+	public static ScheduleLease open(File file) throws IOException {
+		return new ScheduleLease(file, DEFAULT_SLOTS, DEFAULT_RENEW_INTERVAL);
+	}
+
+	/**
+	 * Join the coordination through the given lock file
+	 *
+	 * @param file The lock file shared by the processes, created if needed
+	 * @param slots The number of slots, needs to be the same in all the
+	 *              processes. More slots spread the schedules more evenly.
+	 * @param renewInterval The milliseconds between the checks of the leases,
+	 *                      also the time to take over from a dead process
+	 * @throws IOException if the lock file cannot be opened or all the member
+	 *         places are taken
+	 */
+	public ScheduleLease(File file, int slots, long renewInterval) throws IOException {
+		if (slots < 1) {
+			throw new IllegalArgumentException("At least one slot is needed - " + slots);
+		}
+		this.slots = slots;
+		this.renewInterval = Math.max(1, renewInterval);
+		this.leases = new FileLock[slots];
+		this.owned = new long[(slots + 63) >>> 6];
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		for(int i = 0; i < MAX_MEMBERS && member == null; ++i) {
+			member = tryLock(memberOffset(i));
+		}
+		if (member == null) {
+			channel.close();
+			throw new IOException("Too many processes on the lock file - " + file);
+		}
+
+		renew();
+		renewer = new Thread(this::renewLoop, "ScheduleLease-" + file.getName());
+		renewer.setDaemon(true);
+		renewer.start();
+	}
+
+	private long memberOffset(int member) {
+		return slots + member;
+	}
+
+	private FileLock tryLock(long offset) throws IOException {
+		try {
+			return channel.tryLock(offset, 1, false);
+		} catch (OverlappingFileLockException ex) {
+			// Already held within this process
+			return null;
+		}
+	}
+
+	/**
+	 * @param schedule The schedule
+	 * @return true if the schedule is not a singleton or this process holds
+	 *         the lease on its slot
+	 */
+	public boolean owns(Schedule schedule) {
+		String name = schedule.singleton;
+		if (name == null) {
+			return true;
+		}
+		int slot = slotOf(name);
+		return (owned[slot >>> 6] & (1L << slot)) != 0;
+	}
+
+	int slotOf(String name) {
+		return (name.hashCode() & Integer.MAX_VALUE) % slots;
+	}
+
+	/**
+	 * @return The number of slots held by this process
+	 */
+	public int getOwnedSlots() {
+		int count = 0;
+		for(long word:owned) {
+			count += Long.bitCount(word);
+		}
+		return count;
+	}
+
+	/**
+	 * @return The number of live processes found on the last renewal
+	 */
+	public int getMembers() {
+		return members;
+	}
+
+	/* Count the live processes, take the free slots up to the fair share and
+	 * release the ones beyond */
+	private synchronized void renew() throws IOException {
+		if (closed) {
+			return;
+		}
+
+		int live = 0;
+		for(int i = 0; i < MAX_MEMBERS; ++i) {
+			long offset = memberOffset(i);
+			if (member.position() == offset) {
+				live += 1;
+				continue;
+			}
+			FileLock probe = tryLock(offset);
+			if (probe == null) {
+				live += 1;
+			} else {
+				probe.release();
+			}
+		}
+		members = live;
+
+		int share = (slots + live - 1) / live;
+		int held = 0;
+		for(int slot = 0; slot < slots; ++slot) {
+			// A lock gone invalid is not held anymore, the slot is taken again
+			if (leases[slot] != null && !leases[slot].isValid()) {
+				leases[slot] = null;
+			}
+			held += leases[slot] == null ? 0 : 1;
+		}
+
+		// Start from a different slot in every process, so that they do not
+		// all go after the same slots
+		int start = (int) ((member.position() - slots) * slots / MAX_MEMBERS);
+		List<FileLock> surplus = new ArrayList<>();
+		for(int n = 0; n < slots; ++n) {
+			int slot = (start + n) % slots;
+			if (held > share && leases[slot] != null) {
+				surplus.add(leases[slot]);
+				leases[slot] = null;
+				held -= 1;
+			} else if (held < share && leases[slot] == null) {
+				leases[slot] = tryLock(slot);
+				held += leases[slot] == null ? 0 : 1;
+			}
+		}
+
+		long[] update = new long[owned.length];
+		for(int slot = 0; slot < slots; ++slot) {
+			if (leases[slot] != null && leases[slot].isValid()) {
+				update[slot >>> 6] |= 1L << slot;
+			}
+		}
+		owned = update;
+
+		// The slots given up are let go only after this process stops claiming
+		// them, so that no other process takes one over while it still runs here
+		for(FileLock lease:surplus) {
+			lease.release();
+		}
+	}
+
+	private void renewLoop() {
+		while (!closed) {
+			try {
+				Thread.sleep(renewInterval);
+				renew();
+			} catch (InterruptedException ex) {
+				break;
+			} catch (IOException ex) {
+				Scheduler.LOGGER.error("Error renewing the schedule leases - ", ex);
+			}
+		}
+	}
+
+	/**
+	 * Give up all the leases, the other processes take over the singleton
+	 * schedules on their next renewal
+	 *
+	 * @throws IOException if the lock file cannot be closed
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			owned = new long[owned.length];
+			channel.close();
+		}
+		renewer.interrupt();
+	}
+}
@@ -0,0 +1,395 @@
+package net.symplifier.core.application.scheduler;
+
+import java.util.Arrays;
+
+/**
+ * The compiled form of the date and time fields of a {@link Schedule}. Every
+ * field is a bitmask with one bit for every allowed value, so the next allowed
+ * value at or after any given value is a single next set bit operation and
+ * finding the next run time is plain arithmetic on the epoch milliseconds,
+ * without a Calendar and without any allocation. The offsets of the time
+ * zone come from the {@link ZoneTransitions} of the zone, and the local times
+ * skipped or repeated on a daylight saving change are dealt with as per the
+ * {@link Schedule.GapPolicy} and {@link Schedule.OverlapPolicy} of the
+ * schedule.
+ *
+ * A ScheduleMatcher is immutable and can be used from any thread.
+ *
+ * @author ranjan
+ */
+final class ScheduleMatcher {
+	private static final long SECOND = 1000L;
+	private static final long MINUTE = 60 * SECOND;
+	private static final long HOUR = 60 * MINUTE;
+	private static final long DAY = 24 * HOUR;
+
+	/* Years to look ahead for a matching date before giving up */
+	private static final int YEAR_LIMIT = 400;
+
+	private static final int[] DAYS_IN_MONTH = {0, 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+	/* The masks allowing every value of a field */
+	static final long ALL_SECONDS = (1L << 60) - 1;
+	static final long ALL_MINUTES = ALL_SECONDS;
+	static final int ALL_HOURS = (1 << 24) - 1;
+	static final int ALL_DAYS = ~1;				/* 1 - 31 */
+	static final int ALL_MONTHS = 0x1FFE;		/* 1 - 12 */
+	static final int ALL_WEEKDAYS = 0xFE;		/* 1 - 7 */
+
+	private final long[] milliSeconds;			/* 1000 bits */
+	private final long seconds;
+	private final long minutes;
+	private final int hours;
+	private final int days;
+	private final int months;
+	private final int weekdays;
+	private final int[] years;				/* sorted, null when all the years are allowed */
+	private final boolean empty;				/* some field doesn't allow any value at all */
+
+	private final ZoneTransitions zone;
+	private final Schedule.GapPolicy gapPolicy;
+	private final Schedule.OverlapPolicy overlapPolicy;
+
+	ScheduleMatcher(long[] milliSeconds, long seconds, long minutes, int hours,
+									int weekdays, int days, int months, int[] years,
+									ZoneTransitions zone, Schedule.GapPolicy gapPolicy,
+									Schedule.OverlapPolicy overlapPolicy) {
+		this.milliSeconds = milliSeconds.clone();
+		this.seconds = seconds;
+		this.minutes = minutes;
+		this.hours = hours;
+		this.weekdays = weekdays;
+		this.days = days;
+		this.months = months;
+		this.years = years;
+		this.zone = zone;
+		this.gapPolicy = gapPolicy;
+		this.overlapPolicy = overlapPolicy;
+
+		boolean anyMilli = false;
+		for(long word:milliSeconds) {
+			anyMilli |= word != 0;
+		}
+		this.empty = !anyMilli || seconds == 0 || minutes == 0 || hours == 0
+						|| weekdays == 0 || days == 0 || months == 0 || (years != null && years.length == 0);
+	}
+
+	/**
+	 * Create the bitmask for a field from the given values. The values out of
+	 * the range are ignored, no values at all allows the whole range
+	 *
+	 * @param values The allowed values
+	 * @param min The minimum value of the field
+	 * @param max The maximum value of the field (at most 63)
+	 * @return The bitmask
+	 */
+	static long bits(int[] values, int min, int max) {
+		if (values == null || values.length == 0) {
+			return (-1L >>> (63 - max)) & (-1L << min);
+		}
+
+		long mask = 0;
+		for(int v:values) {
+			if (v >= min && v <= max) {
+				mask |= 1L << v;
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Create the bitmask for the millisecond field from the given values
+	 *
+	 * @param values The allowed values (0 - 999), none allows all
+	 * @return The bitmask as words of 64 bits
+	 */
+	static long[] milliBits(int[] values) {
+		long[] mask = new long[16];
+		if (values == null || values.length == 0) {
+			Arrays.fill(mask, -1L);
+			mask[15] = (1L << (1000 - 15 * 64)) - 1;
+		} else {
+			for(int v:values) {
+				if (v >= 0 && v < 1000) {
+					mask[v >> 6] |= 1L << v;
+				}
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Sorted copy of the years with the duplicates removed, null when all the
+	 * years are allowed
+	 */
+	static int[] yearList(int[] values) {
+		if (values == null || values.length == 0) {
+			return null;
+		}
+		int[] years = values.clone();
+		Arrays.sort(years);
+		int count = 0;
+		for(int i = 0; i < years.length; ++i) {
+			if (i == 0 || years[i] != years[i - 1]) {
+				years[count++] = years[i];
+			}
+		}
+		return Arrays.copyOf(years, count);
+	}
+
+	/* The next set bit at or after the given position, -1 when none */
+	private static int nextBit(long mask, int from) {
+		long m = mask & (-1L << from);
+		return m == 0 ? -1 : Long.numberOfTrailingZeros(m);
+	}
+
+	private static int nextBit(int mask, int from) {
+		int m = mask & (-1 << from);
+		return m == 0 ? -1 : Integer.numberOfTrailingZeros(m);
+	}
+
+	private static int nextMilli(long[] mask, int from) {
+		int word = from >> 6;
+		long m = mask[word] & (-1L << from);
+		while (m == 0) {
+			if (++word == mask.length) {
+				return -1;
+			}
+			m = mask[word];
+		}
+		return (word << 6) + Long.numberOfTrailingZeros(m);
+	}
+
+	/**
+	 * Find the first time strictly after the given timestamp that matches all
+	 * the fields in the time zone of the schedule.
+	 *
+	 * @param timestamp The threshold timestamp
+	 * @return The unix epoch of the next match, or -1 if there is none
+	 */
+	long next(long timestamp) {
+		if (empty) {
+			return -1;
+		}
+
+		long from = timestamp + 1;
+		long horizon = horizon(from);
+		long pending = -1;				/* A run moved out of the gap before the segment */
+		int segment = zone.segmentOf(from);
+		if (gapPolicy != Schedule.GapPolicy.SKIP && segment > 0) {
+			// The runs moved out of the last gap may not be over yet, the shifted
+			// ones for the length of the gap, the one at the transition only at
+			// its very instant
+			int before = zone.offset(segment - 1);
+			int after = zone.offset(segment);
+			long start = zone.start(segment);
+			boolean shift = gapPolicy == Schedule.GapPolicy.SHIFT;
+			if (before < after && (shift ? from - start < after - before : from == start)) {
+				long skipped = match(from + before, start + after);
+				if (skipped >= 0) {
+					pending = shift ? skipped - before : start;
+				}
+			}
+		}
+
+		while (true) {
+			// The local times run along with the epoch within a segment, so
+			// the first match in the segment is the first run in the segment
+			int offset = zone.offset(segment);
+			long start = zone.start(segment);
+			long end = zone.end(segment);
+			long lo = Math.max(from, start) + offset;
+			long hi = Math.min(end, horizon) + offset;
+
+			// The local times at the start of a segment after the clock is
+			// turned back occur for the second time, the ones at the end of a
+			// segment before the clock is turned back for the first time
+			if (overlapPolicy == Schedule.OverlapPolicy.FIRST && segment > 0) {
+				lo = Math.max(lo, start + zone.offset(segment - 1));
+			}
+			if (overlapPolicy == Schedule.OverlapPolicy.SECOND && end != Long.MAX_VALUE) {
+				hi = Math.min(hi, end + zone.offset(segment + 1));
+			}
+
+			long local = lo < hi ? match(lo, hi) : -1;
+			if (local >= 0) {
+				long run = local - offset;
+				return pending >= 0 && pending < run ? pending : run;
+			} else if (pending >= 0) {
+				return pending;
+			} else if (end >= horizon) {
+				return -1;
+			}
+
+			// The local times skipped when the clock is turned forward
+			int nextOffset = zone.offset(segment + 1);
+			if (nextOffset > offset && gapPolicy != Schedule.GapPolicy.SKIP) {
+				long skipped = match(end + offset, end + nextOffset);
+				if (skipped >= 0) {
+					pending = gapPolicy == Schedule.GapPolicy.SHIFT ? skipped - offset : end;
+				}
+			}
+			segment += 1;
+		}
+	}
+
+	/* The time after which the search gives up, some years after the first
+	 * allowed year */
+	private long horizon(long from) {
+		long z = Math.floorDiv(from, DAY) + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		// The year starting in March, which is close enough for the limit
+		long year = yoe + era * 400;
+		if (years != null) {
+			int idx = Arrays.binarySearch(years, (int) year);
+			if (idx < 0) {
+				idx = -idx - 1;
+				if (idx == years.length) {
+					return from;
+				}
+				year = years[idx];
+			}
+		}
+		return epochDay(year + YEAR_LIMIT, 1, 1) * DAY;
+	}
+
+	/* The first local time at or after lo and before hi that matches all the
+	 * fields, -1 when there is none */
+	private long match(long lo, long hi) {
+		long day = Math.floorDiv(lo, DAY);
+		long timeOfDay = lo - day * DAY;
+
+		while (day * DAY < hi) {
+			// Break down the day number in to the civil date
+			long z = day + 719468;
+			long era = Math.floorDiv(z, 146097);
+			long doe = z - era * 146097;
+			long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+			long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+			long mp = (5 * doy + 2) / 153;
+			int dom = (int) (doy - (153 * mp + 2) / 5 + 1);
+			int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+			int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+
+			if (years != null) {
+				int idx = Arrays.binarySearch(years, year);
+				if (idx < 0) {
+					idx = -idx - 1;
+					if (idx == years.length) {
+						return -1;
+					}
+					// Jump to the start of the next allowed year
+					day = epochDay(years[idx], 1, 1);
+					timeOfDay = 0;
+					continue;
+				}
+			}
+
+			int nextMonth = nextBit(months, month);
+			if (nextMonth != month) {
+				// Jump to the start of the next allowed month
+				day = nextMonth < 0 ? epochDay(year + 1, 1, 1) : epochDay(year, nextMonth, 1);
+				timeOfDay = 0;
+				continue;
+			}
+
+			int nextDom = nextBit(days, dom);
+			if (nextDom != dom) {
+				// Jump to the next allowed day within the month, or to the next month
+				if (nextDom < 0 || nextDom > monthLength(year, month)) {
+					day = month == 12 ? epochDay(year + 1, 1, 1) : epochDay(year, month + 1, 1);
+				} else {
+					day += nextDom - dom;
+				}
+				timeOfDay = 0;
+				continue;
+			}
+
+			if ((weekdays & (1 << ((int) Math.floorMod(day + 4, 7L) + 1))) == 0) {
+				day += 1;
+				timeOfDay = 0;
+				continue;
+			}
+
+			long time = nextTimeOfDay(timeOfDay);
+			if (time >= 0) {
+				long local = day * DAY + time;
+				return local < hi ? local : -1;
+			}
+
+			day += 1;
+			timeOfDay = 0;
+		}
+		return -1;
+	}
+
+	/* The first allowed time of the day at or after the given milliseconds of the day, -1 when none */
+	private long nextTimeOfDay(long timeOfDay) {
+		int h = (int) (timeOfDay / HOUR);
+		int m = (int) (timeOfDay / MINUTE % 60);
+		int s = (int) (timeOfDay / SECOND % 60);
+		int ms = (int) (timeOfDay % SECOND);
+
+		while (h < 24) {
+			int nh = nextBit(hours, h);
+			if (nh < 0) {
+				return -1;
+			} else if (nh != h) {
+				h = nh; m = 0; s = 0; ms = 0;
+			}
+
+			int nm = nextBit(minutes, m);
+			if (nm < 0) {
+				h += 1; m = 0; s = 0; ms = 0;
+				continue;
+			} else if (nm != m) {
+				m = nm; s = 0; ms = 0;
+			}
+
+			int ns = nextBit(seconds, s);
+			if (ns < 0) {
+				m += 1; s = 0; ms = 0;
+				if (m == 60) {
+					h += 1; m = 0;
+				}
+				continue;
+			} else if (ns != s) {
+				s = ns; ms = 0;
+			}
+
+			int nms = nextMilli(milliSeconds, ms);
+			if (nms < 0) {
+				s += 1; ms = 0;
+				if (s == 60) {
+					m += 1; s = 0;
+					if (m == 60) {
+						h += 1; m = 0;
+					}
+				}
+				continue;
+			}
+
+			return h * HOUR + m * MINUTE + s * SECOND + nms;
+		}
+		return -1;
+	}
+
+	private static int monthLength(int year, int month) {
+		if (month == 2 && (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0))) {
+			return 29;
+		}
+		return DAYS_IN_MONTH[month];
+	}
+
+	/* Days since 1970-01-01 for the given civil date */
+	private static long epochDay(long year, int month, int dom) {
+		year -= month <= 2 ? 1 : 0;
+		long era = Math.floorDiv(year, 400);
+		long yoe = year - era * 400;
+		long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + dom - 1;
+		long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+		return era * 146097 + doe - 719468;
+	}
+}
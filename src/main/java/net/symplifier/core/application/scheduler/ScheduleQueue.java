@@ -0,0 +1,259 @@
+package net.symplifier.core.application.scheduler;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An indexed binary min-heap of {@link Schedule}s ordered by the time at which
+ * they are supposed to run next. Every Schedule remembers its own slot in the
+ * heap, which makes insertion, removal and rescheduling O(log n) and the
+ * membership check O(1).
+ *
+ * The run time of each entry is kept alongside in the heap, so changing the
+ * nextRunTime of a Schedule that is already queued does not break the heap
+ * ordering. The queue is not thread safe, the Scheduler guards it.
+ *
+ * @author ranjan
+ */
+class ScheduleQueue {
+	private static final int INITIAL_CAPACITY = 64;
+
+	private Schedule[] heap = new Schedule[INITIAL_CAPACITY];
+	private long[] times = new long[INITIAL_CAPACITY];
+	private int size;
+
+	/* Converts the slack of the schedules (milliseconds) to the unit of the queue */
+	private final long slackScale;
+
+	/**
+	 * Create a schedule queue
+	 *
+	 * @param slackScale The number of time units of the queue in a millisecond
+	 */
+	public ScheduleQueue(long slackScale) {
+		this.slackScale = slackScale;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean contains(Schedule schedule) {
+		int idx = schedule.queueIndex;
+		return idx >= 0 && idx < size && heap[idx] == schedule;
+	}
+
+	/**
+	 * The Schedule that needs to run first, without removing it from the queue
+	 *
+	 * @return The first schedule or null if the queue is empty
+	 */
+	public Schedule peek() {
+		return size == 0 ? null : heap[0];
+	}
+
+	/**
+	 * The time at which the first Schedule needs to run. Only valid when the
+	 * queue is not empty
+	 *
+	 * @return The run time of the first schedule
+	 */
+	public long peekTime() {
+		return times[0];
+	}
+
+	/**
+	 * The latest time by which the Scheduler needs to wake up, taking the
+	 * slack of the schedules in to account. Only the entries due before the
+	 * best deadline found so far are visited, so this stays close to O(1)
+	 * unless many schedules are due within the slack of each other.
+	 *
+	 * @return The wake up time or Long.MAX_VALUE if the queue is empty
+	 */
+	public long peekDeadline() {
+		return size == 0 ? Long.MAX_VALUE : deadline(0, Long.MAX_VALUE);
+	}
+
+	private long deadline(int idx, long best) {
+		// The children are due after this entry and the slack is never
+		// negative, so nothing below can beat the best
+		if (idx >= size || times[idx] >= best) {
+			return best;
+		}
+		long deadline = times[idx] + heap[idx].slack * slackScale;
+		if (deadline < best) {
+			best = deadline;
+		}
+		best = deadline((idx << 1) + 1, best);
+		return deadline((idx << 1) + 2, best);
+	}
+
+	/**
+	 * Remove and return the Schedule that needs to run first
+	 *
+	 * @return The first schedule or null if the queue is empty
+	 */
+	public Schedule poll() {
+		if (size == 0) {
+			return null;
+		}
+		Schedule first = heap[0];
+		removeAt(0);
+		return first;
+	}
+
+	/**
+	 * Add the schedule to the queue to be run at the given time. If the schedule
+	 * is already in the queue, it is moved to its new position instead
+	 *
+	 * @param schedule The schedule to be queued
+	 * @param time The time at which the schedule needs to run
+	 */
+	public void offer(Schedule schedule, long time) {
+		if (contains(schedule)) {
+			int idx = schedule.queueIndex;
+			long old = times[idx];
+			times[idx] = time;
+			if (time < old) {
+				siftUp(idx);
+			} else if (time > old) {
+				siftDown(idx);
+			}
+			return;
+		}
+
+		if (size == heap.length) {
+			int capacity = heap.length << 1;
+			heap = Arrays.copyOf(heap, capacity);
+			times = Arrays.copyOf(times, capacity);
+		}
+
+		heap[size] = schedule;
+		times[size] = time;
+		schedule.queueIndex = size;
+		siftUp(size++);
+	}
+
+	/**
+	 * Add many schedules at once, none of which may be in the queue already.
+	 * When the batch is large compared to the queue, the heap is rebuilt in a
+	 * single O(n) pass instead of sifting every schedule in.
+	 *
+	 * @param schedules The schedules to be queued
+	 * @param runTimes The time at which each schedule needs to run
+	 * @param count The number of schedules from the start of the arrays
+	 */
+	public void offerAll(Schedule[] schedules, long[] runTimes, int count) {
+		if (size + count > heap.length) {
+			int capacity = Math.max(heap.length << 1, size + count);
+			heap = Arrays.copyOf(heap, capacity);
+			times = Arrays.copyOf(times, capacity);
+		}
+
+		int start = size;
+		for(int i = 0; i < count; ++i) {
+			heap[size] = schedules[i];
+			times[size] = runTimes[i];
+			schedules[i].queueIndex = size++;
+		}
+
+		if (count < (start >>> 3)) {
+			for(int i = start; i < size; ++i) {
+				siftUp(i);
+			}
+		} else {
+			for(int i = (size >>> 1) - 1; i >= 0; --i) {
+				siftDown(i);
+			}
+		}
+	}
+
+	/**
+	 * Remove the schedule from the queue
+	 *
+	 * @param schedule The schedule to be removed
+	 * @return true if the schedule was in the queue
+	 */
+	public boolean remove(Schedule schedule) {
+		if (!contains(schedule)) {
+			return false;
+		}
+		removeAt(schedule.queueIndex);
+		return true;
+	}
+
+	/**
+	 * Add all the queued schedules to the given list, in no particular order
+	 *
+	 * @param list The list to which the schedules are added
+	 */
+	public void collect(List<? super Schedule> list) {
+		for(int i = 0; i < size; ++i) {
+			list.add(heap[i]);
+		}
+	}
+
+	private void removeAt(int idx) {
+		heap[idx].queueIndex = -1;
+
+		int last = --size;
+		if (idx != last) {
+			Schedule moved = heap[last];
+			heap[idx] = moved;
+			times[idx] = times[last];
+			heap[last] = null;
+			siftDown(idx);
+			// The moved entry could also belong above its new slot
+			if (heap[idx] == moved) {
+				siftUp(idx);
+			}
+		} else {
+			heap[last] = null;
+		}
+	}
+
+	private void siftUp(int idx) {
+		Schedule schedule = heap[idx];
+		long time = times[idx];
+		while (idx > 0) {
+			int parent = (idx - 1) >>> 1;
+			if (times[parent] <= time) {
+				break;
+			}
+			heap[idx] = heap[parent];
+			times[idx] = times[parent];
+			heap[idx].queueIndex = idx;
+			idx = parent;
+		}
+		heap[idx] = schedule;
+		times[idx] = time;
+		schedule.queueIndex = idx;
+	}
+
+	private void siftDown(int idx) {
+		Schedule schedule = heap[idx];
+		long time = times[idx];
+		int half = size >>> 1;
+		while (idx < half) {
+			int child = (idx << 1) + 1;
+			int right = child + 1;
+			if (right < size && times[right] < times[child]) {
+				child = right;
+			}
+			if (time <= times[child]) {
+				break;
+			}
+			heap[idx] = heap[child];
+			times[idx] = times[child];
+			heap[idx].queueIndex = idx;
+			idx = child;
+		}
+		heap[idx] = schedule;
+		times[idx] = time;
+		schedule.queueIndex = idx;
+	}
+}
@@ -4,5 +4,14 @@ package net.symplifier.core.application.scheduler;
 import net.symplifier.core.application.threading.ThreadTarget;
 
 public interface ScheduledTask extends ThreadTarget<Scheduler, Schedule> {
-	
+
+	/**
+	 * The execution policy of this task, which overrides the policy of the
+	 * Schedule it runs on. Defaults to null, following the Schedule.
+	 *
+	 * @return The execution policy or null
+	 */
+	default ExecutionPolicy getExecutionPolicy() {
+		return null;
+	}
 }
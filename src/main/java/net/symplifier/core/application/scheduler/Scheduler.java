@@ -5,7 +5,14 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.stream.IntStream;
 
 /**
  * The main Scheduler implementation. The Scheduler can run any arbitrary 
@@ -14,7 +21,31 @@ import java.util.Iterator;
  * the number of tasks to be run are greater than the number of threads allocated
  * in the pool, the tasks are queued and run as soon as a thread is available.
  * 
- * Scheduler itself has a main thread, which does all the controlling.
+ * Scheduler itself is split in one or more shards, each with its own
+ * schedule queue and a main thread which does all the controlling for the
+ * shard. A Schedule is assigned to a shard the first time it is added and
+ * stays there. The assignment is either by the hash of the Schedule or by the
+ * thread that added it (affinity), which keeps the schedules of a producer
+ * thread on the same shard. The number of shards is set with the system
+ * property {@value #SHARDS_PROPERTY} (defaults to 1) and the assignment with
+ * {@value #ASSIGNMENT_PROPERTY} ({@code hash} or {@code thread}). All the
+ * shards share the same thread pool for running the tasks.
+ *
+ * {@link Timer}s can optionally be kept on a hierarchical timing wheel instead
+ * of the schedule queue, which makes starting and cancelling a Timer O(1) at
+ * the cost of a coarser resolution. This suits large numbers of short timeouts
+ * which are mostly cancelled before they fire. The wheel is enabled by setting
+ * the tick resolution (milliseconds) in the system property
+ * {@value #TIMER_TICK_PROPERTY}. Calendar Schedules always use the queue.
+ *
+ * The static methods work on the default Scheduler, configured through the
+ * system properties above. Independent Schedulers with their own pool, clock
+ * and shards are created with {@link #builder()}. A Schedule belongs to the
+ * Scheduler it is first added to, the default one unless set otherwise with
+ * {@link Schedule#setScheduler(Scheduler)}. The threads of a Scheduler are
+ * started along with the first Schedule added to it. A Scheduler with a
+ * {@link VirtualClock} has no threads at all and runs the schedules when
+ * advanced, see {@link #advanceTo(long)}.
  * 
  * @author ranjan
  * @version 1.0
@@ -24,107 +55,630 @@ import java.util.Iterator;
 public class Scheduler implements Runnable {
 	public static final Logger LOGGER = LogManager.getLogger("Scheduler");
 
-	private final ArrayList<Schedule> schedules = new ArrayList<>();
+	/** The system property for the tick resolution of the timer wheel */
+	public static final String TIMER_TICK_PROPERTY = "net.symplifier.scheduler.timerTick";
+	/** The system property for the number of shards */
+	public static final String SHARDS_PROPERTY = "net.symplifier.scheduler.shards";
+	/** The system property for the shard assignment, {@code hash} or {@code thread} */
+	public static final String ASSIGNMENT_PROPERTY = "net.symplifier.scheduler.assignment";
+
+	/* The number of schedules from which the bulk addition runs in parallel */
+	private static final int PARALLEL_THRESHOLD = 1024;
+
+	private static final AtomicReferenceFieldUpdater<Schedule, SchedulerShard> SHARD =
+					AtomicReferenceFieldUpdater.newUpdater(Schedule.class, SchedulerShard.class, "shard");
+	private static final AtomicReferenceFieldUpdater<Schedule, Scheduler> OWNER =
+					AtomicReferenceFieldUpdater.newUpdater(Schedule.class, Scheduler.class, "scheduler");
+
+	private static final Scheduler DEFAULT = new Builder()
+					.timerWheel(Long.getLong(TIMER_TICK_PROPERTY, 0))
+					.shards(Integer.getInteger(SHARDS_PROPERTY, 1))
+					.threadAffinity("thread".equalsIgnoreCase(System.getProperty(ASSIGNMENT_PROPERTY)))
+					.build();
+
 	private final ThreadPool<Scheduler, Schedule> pool = new ThreadPool<>(this);
-	private static Scheduler SELF = new Scheduler();
-	private volatile boolean exit;
+	private final SchedulerShard[] shards;
+	private final boolean threadAffinity;
+	private final int poolSize;
+	private final int maxPoolSize;
+	private final ThreadFactory threadFactory;
+	private final Clock clock;
 	private volatile boolean started;
+	private volatile boolean stopped;
 
-	private Scheduler() {
-		start();
+	private Scheduler(Builder builder) {
+		this.threadAffinity = builder.threadAffinity;
+		this.poolSize = builder.poolSize;
+		this.maxPoolSize = builder.maxPoolSize;
+		if (builder.poolCapacity > 0) {
+			pool.setCapacity(builder.poolCapacity, builder.overflowPolicy);
+		}
+		this.threadFactory = builder.threadFactory;
+		this.clock = builder.clock;
+
+		shards = new SchedulerShard[builder.shards];
+		for(int i=0; i<shards.length; ++i) {
+			shards[i] = new SchedulerShard(this, i, builder.name, pool, builder.timerTick, clock,
+							builder.journal, builder.lease);
+		}
+	}
+
+	/**
+	 * Configures a new Scheduler. Every setting has a default, so
+	 * {@code Scheduler.builder().build()} gives a Scheduler like the default
+	 * one.
+	 */
+	public static class Builder {
+		private String name = "Scheduler";
+		private int poolSize = 5;
+		private int maxPoolSize = 5;
+		private int poolCapacity;
+		private ThreadPool.OverflowPolicy overflowPolicy;
+		private ThreadFactory threadFactory;
+		private Clock clock = Clock.SYSTEM;
+		private long timerTick;
+		private int shards = 1;
+		private boolean threadAffinity;
+		private ScheduleJournal journal;
+		private ScheduleLease lease;
+
+		/**
+		 * @param name The name of the Scheduler, used for naming its threads
+		 * @return this builder
+		 */
+		public Builder name(String name) {
+			this.name = name;
+			return this;
+		}
+
+		/**
+		 * @param poolSize The number of threads running the tasks, defaults to 5
+		 * @return this builder
+		 */
+		public Builder poolSize(int poolSize) {
+			if (poolSize < 1) {
+				throw new IllegalArgumentException("The pool needs at least one thread - " + poolSize);
+			}
+			this.poolSize = poolSize;
+			this.maxPoolSize = poolSize;
+			return this;
+		}
+
+		/**
+		 * Make the pool elastic, threads are added up to the maximum while the
+		 * tasks wait and retired again when idle, see {@link ThreadPool}
+		 *
+		 * @param minPoolSize The number of threads kept at all times
+		 * @param maxPoolSize The maximum number of threads
+		 * @return this builder
+		 */
+		public Builder poolSize(int minPoolSize, int maxPoolSize) {
+			poolSize(minPoolSize);
+			if (maxPoolSize < minPoolSize) {
+				throw new IllegalArgumentException("The maximum pool size is below the minimum - " + maxPoolSize);
+			}
+			this.maxPoolSize = maxPoolSize;
+			return this;
+		}
+
+		/**
+		 * Bound the number of tasks waiting for the pool, so that the dispatch
+		 * feels the backpressure of slow tasks as per the policy. A task run
+		 * that is dropped counts as skipped on its Schedule when it has an
+		 * {@link ExecutionPolicy} other than unlimited.
+		 *
+		 * @param capacity The maximum number of tasks waiting
+		 * @param policy What to do with a task when the pool is full
+		 * @return this builder
+		 */
+		public Builder poolCapacity(int capacity, ThreadPool.OverflowPolicy policy) {
+			if (capacity < 1) {
+				throw new IllegalArgumentException("The capacity needs to be at least 1 - " + capacity);
+			}
+			this.poolCapacity = capacity;
+			this.overflowPolicy = policy;
+			return this;
+		}
+
+		/**
+		 * @param threadFactory The factory for all the threads of the
+		 *                      Scheduler, including the dispatch threads
+		 * @return this builder
+		 */
+		public Builder threadFactory(ThreadFactory threadFactory) {
+			this.threadFactory = threadFactory;
+			return this;
+		}
+
+		/**
+		 * @param clock The source of time, defaults to the system clock
+		 * @return this builder
+		 */
+		public Builder clock(Clock clock) {
+			this.clock = clock;
+			return this;
+		}
+
+		/**
+		 * Choose the queue backend for the Timers, the schedule queue (0, the
+		 * default) or a timing wheel with the given tick resolution
+		 *
+		 * @param tick The tick resolution of the timer wheel in milliseconds,
+		 *             0 to keep the Timers on the schedule queue
+		 * @return this builder
+		 */
+		public Builder timerWheel(long tick) {
+			this.timerTick = Math.max(0, tick);
+			return this;
+		}
+
+		/**
+		 * @param shards The number of shards, each with its own dispatch thread
+		 * @return this builder
+		 */
+		public Builder shards(int shards) {
+			this.shards = Math.max(1, shards);
+			return this;
+		}
+
+		/**
+		 * @param threadAffinity true to assign the Schedules to the shards by
+		 *                       the thread adding them instead of by hash
+		 * @return this builder
+		 */
+		public Builder threadAffinity(boolean threadAffinity) {
+			this.threadAffinity = threadAffinity;
+			return this;
+		}
+
+		/**
+		 * @param journal The journal recording the schedules with a journal
+		 *                id, see {@link ScheduleJournal}
+		 * @return this builder
+		 */
+		public Builder journal(ScheduleJournal journal) {
+			this.journal = journal;
+			return this;
+		}
+
+		/**
+		 * @param lease The lease deciding which of the processes runs the
+		 *              singleton schedules, see {@link ScheduleLease}
+		 * @return this builder
+		 */
+		public Builder lease(ScheduleLease lease) {
+			this.lease = lease;
+			return this;
+		}
+
+		public Scheduler build() {
+			return new Scheduler(this);
+		}
+	}
+
+	public static Builder builder() {
+		return new Builder();
+	}
+
+	/**
+	 * @return The Scheduler used by the static methods
+	 */
+	public static Scheduler getDefault() {
+		return DEFAULT;
 	}
 
 	public static void quit() {
-		SELF.stop();
+		DEFAULT.stop();
 	}
 
 	/**
 	 * Start the scheduler. All the threads from the pool are allocated and
 	 * ScheduledTask are executed as per their definition in Schedule.
-   *
-   * There is no need to call this method explicitly to start the scheduler
-   * as it is automatically started during the application initialization
-   * through the static constructor
+	 *
+	 * There is no need to call this method explicitly to start the scheduler
+	 * as it is automatically started when the first Schedule is added
+	 *
+	 * @throws IllegalStateException if the scheduler has been stopped
 	 */
-	public void start() {
-    if (!started) {
-      started = true;
+	public synchronized void start() {
+		if (stopped) {
+			throw new IllegalStateException("The scheduler has been stopped");
+		}
+		if (!started) {
+			started = true;
+			if (clock instanceof VirtualClock) {
+				// Driven by advance, nothing to start
+				return;
+			}
 
-      new Thread(this).start();
-      pool.start(5);
-    }
+			for(SchedulerShard shard:shards) {
+				shard.start(threadFactory);
+			}
+			pool.start(poolSize, maxPoolSize, threadFactory == null ? Thread::new : threadFactory);
+		}
 	}
 	
 	/**
-	 * Stop the scheduler. At the end of the application.
+	 * Stop the scheduler. At the end of the application, a stopped scheduler
+	 * cannot be started again and takes no more schedules.
 	 */
-	public void stop() {
-		exit = true;
+	public synchronized void stop() {
+		stopped = true;
 		pool.stop();			/* Stop the thread pool */
-		synchronized(schedules) {
-      schedules.notifyAll();	/* Notify the main thread for exit */
-    }
-    started = false;
+		for(SchedulerShard shard:shards) {
+			shard.stop();		/* Notify the main threads for exit */
+		}
+		started = false;
+		notifyAll();			/* Let go of the callers of run */
+	}
+
+	/**
+	 * Start the scheduler if needed and wait on the calling thread until it is
+	 * stopped, returns right away if it has been stopped already. The
+	 * schedules are dispatched by the threads of the shards, the calling
+	 * thread only waits for them. With a {@link VirtualClock} nothing
+	 * runs until the scheduler is advanced from another thread.
+	 *
+	 * @deprecated The Scheduler no longer dispatches on the thread that runs
+	 *             it, use {@link #start()} and {@link #stop()} instead
+	 */
+	@Deprecated
+	@Override
+	public final void run() {
+		synchronized (this) {
+			if (!stopped) {
+				startIfNeeded();
+			}
+			while (!stopped) {
+				try {
+					wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	private void startIfNeeded() {
+		if (!started || stopped) {
+			start();
+		}
+	}
+
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Add a schedule to this Scheduler for running, or move it to its new
+	 * position as per its next run time if it is already in. The next run
+	 * time is evaluated on the main thread of the shard, the call itself never
+	 * blocks.
+	 *
+	 * @param schedule The schedule to be included in the scheduler
+	 * @throws IllegalArgumentException if the schedule belongs to another
+	 *         Scheduler
+	 * @throws IllegalStateException if the scheduler has been stopped
+	 */
+	public void add(Schedule schedule) {
+		startIfNeeded();
+		bind(schedule);
+		shardOf(schedule).submit(schedule, true);
+	}
+
+	/**
+	 * Add many schedules at once, like when loading the schedules from the
+	 * configuration at the start up. The next run times are calculated up
+	 * front, in parallel for large collections, every shard builds its queue
+	 * in one go and its main thread is woken up only once. Same as adding
+	 * the schedules one by one otherwise.
+	 *
+	 * @param schedules The schedules to be included in the scheduler
+	 * @throws IllegalArgumentException if any schedule belongs to another
+	 *         Scheduler
+	 * @throws IllegalStateException if the scheduler has been stopped
+	 */
+	public void addAll(Collection<? extends Schedule> schedules) {
+		startIfNeeded();
+		Schedule[] list = schedules.toArray(new Schedule[schedules.size()]);
+		long timestamp = clock.currentTimeMillis();
+		long[] times = new long[list.length];
+		IntStream range = IntStream.range(0, list.length);
+		if (list.length >= PARALLEL_THRESHOLD) {
+			range = range.parallel();
+		}
+		// The Timers work out their run times from the time they are armed
+		range.forEach(i -> {
+			if (!(list[i] instanceof Timer)) {
+				times[i] = list[i].calcNextRunTime(timestamp);
+			}
+		});
+
+		// Split the schedules by shard
+		int[] shardOf = new int[list.length];
+		int[] counts = new int[shards.length];
+		for(int i = 0; i < list.length; ++i) {
+			bind(list[i]);
+			int idx = shardOf(list[i]).getIndex();
+			shardOf[i] = idx;
+			counts[idx] += 1;
+		}
+
+		for(int s = 0; s < shards.length; ++s) {
+			if (counts[s] == 0) {
+				continue;
+			}
+			Schedule[] part = new Schedule[counts[s]];
+			long[] partTimes = new long[counts[s]];
+			int n = 0;
+			for(int i = 0; i < list.length; ++i) {
+				if (shardOf[i] == s) {
+					part[n] = list[i];
+					partTimes[n++] = times[i];
+				}
+			}
+			shards[s].submitAll(part, partTimes);
+		}
+	}
+
+	/**
+	 * Run all the schedules due up to the given time on the calling thread,
+	 * moving the virtual clock straight from one run to the next. Only for a
+	 * Scheduler with a {@link VirtualClock}. The clock ends up at the given
+	 * time, a clock already past it stays where it is and only the schedules
+	 * due by then are run.
+	 *
+	 * @param timestamp The wall clock time (unix epoch) to advance to
+	 * @return The number of schedules run
+	 * @throws IllegalStateException if the clock is not a VirtualClock
+	 */
+	public long advanceTo(long timestamp) {
+		VirtualClock virtual = virtualClock();
+		// The clock may be ahead within the millisecond after a step
+		long target = Math.max(virtual.toNanos(timestamp), virtual.nanoTime());
+		long runs = 0;
+		long wait;
+		while ((wait = nextWait()) != Long.MAX_VALUE && wait <= target - virtual.nanoTime()) {
+			runs += fire(virtual, wait);
+		}
+		virtual.set(target);
+		return runs;
+	}
+
+	/**
+	 * Advance the virtual clock by the given time, see {@link #advanceTo(long)}
+	 *
+	 * @param millis The milliseconds to advance by
+	 * @return The number of schedules run
+	 * @throws IllegalStateException if the clock is not a VirtualClock
+	 */
+	public long advance(long millis) {
+		return advanceTo(virtualClock().currentTimeMillis() + millis);
+	}
+
+	/**
+	 * Move the virtual clock to the next time any schedule is due and run all
+	 * the schedules due then.
+	 *
+	 * @return false if nothing is scheduled anymore
+	 * @throws IllegalStateException if the clock is not a VirtualClock
+	 */
+	public boolean step() {
+		VirtualClock virtual = virtualClock();
+		long wait = nextWait();
+		if (wait == Long.MAX_VALUE) {
+			return false;
+		}
+		fire(virtual, wait);
+		return true;
+	}
+
+	private VirtualClock virtualClock() {
+		if (!(clock instanceof VirtualClock)) {
+			throw new IllegalStateException("The scheduler is not running on a virtual clock");
+		}
+		return (VirtualClock) clock;
+	}
+
+	/* The nanoseconds until the next schedule is due on any shard */
+	private long nextWait() {
+		long timestamp = clock.currentTimeMillis();
+		long nanos = clock.nanoTime();
+		long wait = Long.MAX_VALUE;
+		for(SchedulerShard shard:shards) {
+			wait = Math.min(wait, shard.prepare(timestamp, nanos));
+		}
+		return wait;
+	}
+
+	private int fire(VirtualClock virtual, long wait) {
+		if (wait > 0) {
+			virtual.set(virtual.nanoTime() + wait);
+		}
+		long timestamp = virtual.currentTimeMillis();
+		long nanos = virtual.nanoTime();
+		int runs = 0;
+		for(SchedulerShard shard:shards) {
+			runs += shard.dispatch(timestamp, nanos);
+		}
+		return runs;
+	}
+
+	/* Run the task on the pool, or right away on a virtual clock */
+	void execute(ScheduledTask task, Schedule schedule) {
+		if (clock instanceof VirtualClock) {
+			task.onRun(this, schedule);
+		} else {
+			pool.queue(task, schedule);
+		}
+	}
+
+	/**
+	 * Remove the schedule from this Scheduler
+	 *
+	 * @param schedule The schedule to be removed
+	 */
+	public void remove(Schedule schedule) {
+		if (schedule.scheduler == this) {
+			removeSchedule(schedule);
+		}
+	}
+
+	/**
+	 * @param schedule The schedule
+	 * @return true if the schedule is supposed to run on this Scheduler
+	 */
+	public boolean contains(Schedule schedule) {
+		return schedule.scheduler == this && isScheduled(schedule);
+	}
+
+	/**
+	 * The total number of times the main threads of this scheduler have woken
+	 * up, for any reason.
+	 *
+	 * @return The number of wake ups since the start
+	 */
+	public long wakeups() {
+		long wakeups = 0;
+		for(SchedulerShard shard:shards) {
+			wakeups += shard.getWakeups();
+		}
+		return wakeups;
+	}
+
+	/**
+	 * The number of times the main threads of this scheduler have woken up
+	 * during the last complete second. The slack on the schedules brings this
+	 * down by running the schedules due close to each other together.
+	 *
+	 * @return The wake ups per second
+	 */
+	public int wakeupsPerSecond() {
+		long timestamp = clock.currentTimeMillis();
+		int rate = 0;
+		for(SchedulerShard shard:shards) {
+			rate += shard.getWakeupRate(timestamp);
+		}
+		return rate;
+	}
+
+	/**
+	 * Receives the run times found by {@link #firings(long, long, FiringVisitor)}
+	 */
+	public interface FiringVisitor {
+		/**
+		 * A schedule is due to run at the given time
+		 *
+		 * @param schedule The schedule
+		 * @param time The time at which the schedule runs
+		 * @return false to stop the search
+		 */
+		boolean onFiring(Schedule schedule, long time);
+	}
+
+	/**
+	 * Find all the times at which the schedules in the scheduler would run
+	 * within the given window, in ascending order of time. The schedules are
+	 * not affected in any way. Useful for showing the upcoming runs and for
+	 * capacity planning.
+	 *
+	 * @param from The start of the window (inclusive)
+	 * @param to The end of the window (exclusive)
+	 * @param visitor Receives every run time within the window
+	 * @return The number of run times passed on to the visitor
+	 */
+	public int firings(long from, long to, FiringVisitor visitor) {
+		List<CompletableFuture<List<Schedule>>> snapshots = new ArrayList<>(shards.length);
+		for(SchedulerShard shard:shards) {
+			snapshots.add(shard.snapshot());
+		}
+
+		ArrayList<Schedule> schedules = new ArrayList<>();
+		for(CompletableFuture<List<Schedule>> snapshot:snapshots) {
+			schedules.addAll(snapshot.join());
+		}
+
+		// Merge the run times of all the schedules through a heap of the
+		// indexes ordered by the next run time of each schedule
+		int size = 0;
+		int[] heap = new int[schedules.size()];
+		long[] times = new long[schedules.size()];
+		for(int i = 0; i < heap.length; ++i) {
+			long time = schedules.get(i).peekNextRunTime(from - 1);
+			if (time != -1 && time < to) {
+				times[i] = time;
+				heap[size++] = i;
+			}
+		}
+		for(int i = (size >>> 1) - 1; i >= 0; --i) {
+			siftDown(heap, times, size, i);
+		}
+
+		int count = 0;
+		while (size > 0) {
+			int idx = heap[0];
+			Schedule schedule = schedules.get(idx);
+			count += 1;
+			if (!visitor.onFiring(schedule, times[idx])) {
+				break;
+			}
+
+			long next = schedule.peekNextRunTime(times[idx]);
+			if (next != -1 && next < to) {
+				times[idx] = next;
+			} else {
+				heap[0] = heap[--size];
+			}
+			siftDown(heap, times, size, 0);
+		}
+		return count;
 	}
 
 	public static void addTimer(Timer timer) {
 		addSchedule(timer);
 	}
+
 	/**
 	 * Add a schedule for running. The Schedule need not be explicitly added to 
 	 * the Scheduler but rather managed from Schedule. 
 	 * 
-	 * The Schedule are always arranged in ascending order by the time when
-	 * they need to be run next. 
+	 * The Schedule are always arranged by the time when they need to be run
+	 * next. If the schedule is already in the scheduler, it is moved to its
+	 * new position as per its next run time. The schedule goes to the
+	 * Scheduler it belongs to, the default one if none.
 	 * 
 	 * @param schedule The schedule to be included in the scheduler
+	 * @throws IllegalStateException if the Scheduler has been stopped
 	 */
 	public static void addSchedule(Schedule schedule) {
-		synchronized(SELF.schedules) {
-			long nextRunTime = schedule.getNextRunTime(System.currentTimeMillis());
+		ownerOf(schedule).add(schedule);
+	}
 
-			if (nextRunTime == -1) {
-				return;
-			}
+	/* Add the schedule with its next run time worked out afresh on the
+	 * dispatch thread, see Schedule.updateScheduler() */
+	static void updateSchedule(Schedule schedule) {
+		Scheduler owner = ownerOf(schedule);
+		owner.startIfNeeded();
+		owner.bind(schedule);
+		owner.shardOf(schedule).submit(schedule, true, true);
+	}
 
-			int insertedAt = -1;
-			int removeAt = -1;
-			for(int i=0; i<SELF.schedules.size(); ++i) {
-				Schedule chk = SELF.schedules.get(i);
-				// don't check with self, mark for removal
-				if (chk == schedule) {
-					removeAt = i;
-					continue;
-				}
-				
-				if (insertedAt == -1) {
-					if (nextRunTime < chk.getNextRunTime()) {
-						SELF.schedules.add(i, schedule);
-						insertedAt = i;
-					}
-				}
-			}
-			
-			// if something has been marked for removal, shifting the schedule from one point to another
-			// due to change in its configuration
-			if (removeAt >= 0) {
-				SELF.schedules.remove(removeAt);
-			}
-			
-			// if the schedule has not been inserted anywhere insert it at the end
-			if (insertedAt == -1) {
-				SELF.schedules.add(schedule);
-			}
-			
-			// If the schedule is inserted at the very beginning, we need to 
-			// reevaluate our wait time in the main scheduler thread
-			if (insertedAt == 0 || SELF.schedules.size() == 1) {
-				SELF.schedules.notifyAll();
-			}
-		}			
-		
+	/**
+	 * Add many schedules at once, see {@link #addAll(Collection)}
+	 *
+	 * @param schedules The schedules to be included in the scheduler
+	 */
+	public static void addSchedules(Collection<? extends Schedule> schedules) {
+		Map<Scheduler, List<Schedule>> owners = new IdentityHashMap<>();
+		for(Schedule schedule:schedules) {
+			owners.computeIfAbsent(ownerOf(schedule), k -> new ArrayList<>()).add(schedule);
+		}
+		for(Map.Entry<Scheduler, List<Schedule>> entry:owners.entrySet()) {
+			entry.getKey().addAll(entry.getValue());
+		}
 	}
-	
+
 	/**
 	 * Remove a Schedule from schedule. A Schedule need not be explicitly removed
 	 * from the Scheduler but rather controller indirectly from Schedule addTask 
@@ -133,97 +687,100 @@ public class Scheduler implements Runnable {
 	 * @param schedule Schedule to be removed
 	 */
 	public static void removeSchedule(Schedule schedule) {
-		synchronized(SELF.schedules) {
-			Iterator<Schedule> it = SELF.schedules.iterator();
-			boolean first = true;
-			
-			// Iterate through all schedules and remove the given schedule
-			while(it.hasNext()) {
-				Schedule sch = it.next();
-				if (sch == schedule) {
-					it.remove();
-					// if the schedule is the first on the list, we need to
-					// reevaluate our wait time in the main scheduler thread
-					if (first) {
-						SELF.schedules.notifyAll();
-					}
-					break;
-				}
-				first = false;
-			}
+		SchedulerShard shard = schedule.shard;
+		// Never added, nothing to remove
+		if (shard != null) {
+			shard.submit(schedule, false);
 		}
 	}
 
 	public static boolean isScheduled(Schedule schedule) {
-		synchronized (SELF.schedules) {
-			return SELF.schedules.contains(schedule);
+		return (schedule.state & SchedulerShard.SCHEDULED) != 0;
+	}
+
+	/**
+	 * The number of wake ups of the default Scheduler, see {@link #wakeups()}
+	 *
+	 * @return The number of wake ups since the start
+	 */
+	public static long getWakeups() {
+		return DEFAULT.wakeups();
+	}
+
+	/**
+	 * The wake ups per second of the default Scheduler, see
+	 * {@link #wakeupsPerSecond()}
+	 *
+	 * @return The wake ups per second
+	 */
+	public static int getWakeupsPerSecond() {
+		return DEFAULT.wakeupsPerSecond();
+	}
+
+	/**
+	 * The run times of the default Scheduler within the window, see
+	 * {@link #firings(long, long, FiringVisitor)}
+	 *
+	 * @param from The start of the window (inclusive)
+	 * @param to The end of the window (exclusive)
+	 * @param visitor Receives every run time within the window
+	 * @return The number of run times passed on to the visitor
+	 */
+	public static int getFirings(long from, long to, FiringVisitor visitor) {
+		return DEFAULT.firings(from, to, visitor);
+	}
+
+	/* The clock of the Scheduler the schedule belongs to */
+	static Clock clockOf(Schedule schedule) {
+		return ownerOf(schedule).clock;
+	}
+
+	private static Scheduler ownerOf(Schedule schedule) {
+		Scheduler owner = schedule.scheduler;
+		return owner == null ? DEFAULT : owner;
+	}
+
+	/* Make the schedule belong to this Scheduler if it doesn't belong to any */
+	private void bind(Schedule schedule) {
+		Scheduler owner = schedule.scheduler;
+		if (owner == null && OWNER.compareAndSet(schedule, null, this)) {
+			return;
+		}
+		if (schedule.scheduler != this) {
+			throw new IllegalArgumentException("The schedule belongs to another scheduler");
 		}
 	}
-	
-	@Override
-	public final void run() {
-		long timestamp, scheduled, delay;
-		scheduled = 0;
-		ArrayList<Schedule> schedulesToRun = new ArrayList<Schedule>();
-		while(!exit) {
-			schedulesToRun.clear();
-
-			timestamp = System.currentTimeMillis();
-			delay = scheduled - timestamp;
-			
-			synchronized(schedules) {
-				try {
-					// If no schedules are defined wait indefinitely
-					if (schedules.isEmpty()) {
-//						System.out.println("Waiting for external event no schedule to work on");
-						schedules.wait();
-					} else {
-						/* Find out how long do we need to wait before the Schedule in line needs to be run */						
-						delay = schedules.get(0).getNextRunTime() - timestamp;
-						if (delay > 0) {
-							//System.out.println("Waiting for " + delay + " milliseconds for a schedule to start");
-							schedules.wait(delay);
-						} else {
-//							System.out.println("No time to wait, delay calculated is " + delay + " milliseconds");
-						}
-					}
-				} catch (InterruptedException e) {
-					// This is not supposed to happen */
-					System.err.println("An error occured while waiting for schedules");
-				} 
-				
-				if(exit) break;	/* if asked for quitting, quit */
-				
-				Iterator<Schedule> it = schedules.iterator();
-				/* Iterate through all the schedules and find out the ones that need to be run
-				 * and also remove them from our schedules list for addition later after
-				 * executing the tasks
-				 */
-				while(it.hasNext()) {
-					Schedule sch = it.next();
-					scheduled = sch.getNextRunTime();
-					if (scheduled > System.currentTimeMillis()) {
-						break;
-					} else {
-						schedulesToRun.add(sch);
-						it.remove();
-					}
-				}
-			}	
-			
-			/* Run all the scheduled tasks */
-			for(Schedule schedule:schedulesToRun) {
-				synchronized(schedule) {
-					Iterator<ScheduledTask> tasks = schedule.getTasks();
-					while(tasks.hasNext()) {
-						this.pool.queue(tasks.next(), schedule);
-					}
-				}
-				
-				/* Activate the schedule after running the tasks */
-				addSchedule(schedule);
+
+	private static void siftDown(int[] heap, long[] times, int size, int idx) {
+		int item = heap[idx];
+		int half = size >>> 1;
+		while (idx < half) {
+			int child = (idx << 1) + 1;
+			if (child + 1 < size && times[heap[child + 1]] < times[heap[child]]) {
+				child += 1;
+			}
+			if (times[item] <= times[heap[child]]) {
+				break;
 			}
+			heap[idx] = heap[child];
+			idx = child;
 		}
+		heap[idx] = item;
 	}
 
+	/* Find the shard of the schedule, assigning one if it doesn't have one yet */
+	private SchedulerShard shardOf(Schedule schedule) {
+		SchedulerShard shard = schedule.shard;
+		if (shard != null) {
+			return shard;
+		}
+
+		int hash = threadAffinity ? (int) Thread.currentThread().getId() : System.identityHashCode(schedule);
+		shard = shards[(hash & Integer.MAX_VALUE) % shards.length];
+		if (SHARD.compareAndSet(schedule, null, shard)) {
+			return shard;
+		}
+		// Some other thread assigned it first
+		return schedule.shard;
+	}
 }
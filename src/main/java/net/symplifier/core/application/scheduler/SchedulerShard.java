@@ -0,0 +1,536 @@
+package net.symplifier.core.application.scheduler;
+
+import net.symplifier.core.application.threading.ThreadPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A shard of the {@link Scheduler}. Every shard has its own schedule queue,
+ * timer wheel and dispatch thread, and a Schedule stays on the shard it was
+ * first assigned to. The dispatch thread is the only one that touches the
+ * queue and the wheel. Adding or removing a Schedule only records the desired
+ * state on the Schedule and publishes it on a lock free submission stack,
+ * which the dispatch thread drains before every wait. A Schedule is on the
+ * submission stack at most once, no matter how many times it is added or
+ * removed in between, the last request wins.
+ *
+ * The monotonic {@link Timer}s are kept on a separate queue ordered by
+ * the monotonic clock, they are not affected by the changes in the wall clock.
+ * The dispatch thread parks until shortly before such a timer is due and
+ * spins for the rest of the wait.
+ *
+ * @author ranjan
+ */
+class SchedulerShard implements Runnable {
+	/* The state flags of a Schedule as seen by the Scheduler */
+	static final int SCHEDULED = 1;		/* The Schedule is supposed to be in the Scheduler */
+	static final int SUBMITTED = 2;		/* The Schedule is on the submission stack */
+	static final int RESET = 4;			/* The next run time is to be worked out afresh */
+
+	private static final AtomicIntegerFieldUpdater<Schedule> STATE =
+					AtomicIntegerFieldUpdater.newUpdater(Schedule.class, "state");
+
+	private final Scheduler scheduler;
+	private final int index;
+	private final String name;
+	private final ThreadPool<Scheduler, Schedule> pool;
+	private final Clock clock;
+	private final ScheduleJournal journal;		/* null when not journaling */
+	private final ScheduleLease lease;			/* null when running every singleton */
+	/* Spin instead of parking when a monotonic timer is due within this time */
+	private static final long SPIN_NANOS = 50000L;
+	/* The longest wait in milliseconds that fits in nanoseconds, a little short of 292 years */
+	private static final long MAX_WAIT_MILLIS = Long.MAX_VALUE / 1000000L - 1;
+
+	private final ScheduleQueue schedules = new ScheduleQueue(1);
+	private final TimerWheel timers;			/* null when the timers are kept on the queue */
+	/* Monotonic timers ordered by the monotonic clock */
+	private final ScheduleQueue monotonicTimers = new ScheduleQueue(1000000L);
+
+	/* Schedules added or removed but not yet picked up by the dispatch thread */
+	private final AtomicReference<Schedule> submitted = new AtomicReference<>();
+	/* Work that needs to be done on the dispatch thread, like reading the queue */
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	/* The dispatch thread, null while not started or once it is over. Set
+	 * and cleared holding the lock of the shard */
+	private volatile Thread thread;
+	private volatile boolean exit;
+	/* Driven by the caller instead of the dispatch thread, the tasks run on
+	 * the calling thread, used with the VirtualClock */
+	private final boolean synchronous;
+
+	/* Work lists of dispatch, reused every time */
+	private final ArrayList<Schedule> schedulesToRun = new ArrayList<>();
+	private final LinkedHashMap<ScheduledTask, Schedule> batch = new LinkedHashMap<>();
+
+	/* Wake up counters, only updated by the dispatch thread */
+	private volatile long wakeups;
+	private volatile long rateSecond;
+	private volatile int rateCount;
+	private volatile int lastRate;
+
+	SchedulerShard(Scheduler scheduler, int index, String name, ThreadPool<Scheduler, Schedule> pool,
+								 long timerTick, Clock clock, ScheduleJournal journal, ScheduleLease lease) {
+		this.scheduler = scheduler;
+		this.journal = journal;
+		this.lease = lease;
+		this.synchronous = clock instanceof VirtualClock;
+		this.index = index;
+		this.name = name;
+		this.pool = pool;
+		this.clock = clock;
+		this.timers = timerTick > 0 ? new TimerWheel(timerTick, clock.currentTimeMillis()) : null;
+	}
+
+	/**
+	 * Start the dispatch thread
+	 *
+	 * @param factory The factory for the thread, null for a plain thread
+	 *                named after the shard
+	 */
+	public void start(ThreadFactory factory) {
+		Thread t = factory == null ? new Thread(this, name + "-" + index) : factory.newThread(this);
+		synchronized (this) {
+			exit = false;
+			thread = t;
+		}
+		t.start();
+	}
+
+	public void stop() {
+		exit = true;
+		LockSupport.unpark(thread);
+	}
+
+	/* Record the desired state of the schedule and hand it over to the dispatch thread */
+	void submit(Schedule schedule, boolean scheduled) {
+		submit(schedule, scheduled, false);
+	}
+
+	/* Same as above, the reset makes the dispatch thread forget the next run
+	 * time of the schedule */
+	void submit(Schedule schedule, boolean scheduled, boolean reset) {
+		int state, update;
+		do {
+			state = schedule.state;
+			update = scheduled ? (state | SCHEDULED | SUBMITTED) : ((state & ~SCHEDULED) | SUBMITTED);
+			if (reset) {
+				update |= RESET;
+			}
+		} while (!STATE.compareAndSet(schedule, state, update));
+
+		// Already waiting on the stack, the dispatch thread picks up the new state
+		if ((state & SUBMITTED) != 0) {
+			return;
+		}
+
+		Schedule top;
+		do {
+			top = submitted.get();
+			schedule.nextSubmitted = top;
+		} while (!submitted.compareAndSet(top, schedule));
+
+		// The dispatch thread drains the whole stack before waiting, it only
+		// needs a wake up when the stack was empty
+		if (top == null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/* Add many schedules at once, the dispatch thread is woken up only once.
+	 * The run times precomputed by the caller are used when still valid */
+	void submitAll(Schedule[] list, long[] runTimes) {
+		for(Schedule schedule:list) {
+			int state;
+			do {
+				state = schedule.state;
+			} while (!STATE.compareAndSet(schedule, state, state | SCHEDULED));
+		}
+		execute(() -> armAll(list, runTimes));
+	}
+
+	private void armAll(Schedule[] list, long[] runTimes) {
+		long timestamp = clock.currentTimeMillis();
+		long nanos = clock.nanoTime();
+
+		// The new calendar schedules are collected at the start of the arrays
+		// and then go in to the queue in one go
+		int count = 0;
+		Set<Schedule> seen = Collections.newSetFromMap(new IdentityHashMap<>(list.length));
+		for(int i = 0; i < list.length; ++i) {
+			Schedule schedule = list[i];
+			// Removed or submitted again in the meantime, the latest request wins
+			if ((schedule.state & (SCHEDULED | SUBMITTED)) != SCHEDULED) {
+				continue;
+			}
+			// Added more than once in the same call, it takes a single place
+			if (!seen.add(schedule)) {
+				continue;
+			}
+
+			if (schedule instanceof Timer || schedules.contains(schedule)) {
+				arm(schedule, timestamp, nanos);
+			} else {
+				// A run time after the present one is still the next one
+				if (schedule.nextRunTime == 0 || schedule.nextRunTime <= timestamp) {
+					schedule.nextRunTime = runTimes[i] > timestamp ? runTimes[i] : 0;
+				}
+				long nextRunTime = schedule.getNextRunTime(timestamp);
+				if (nextRunTime == -1) {
+					STATE.compareAndSet(schedule, SCHEDULED, 0);
+				} else {
+					list[count] = schedule;
+					runTimes[count++] = nextRunTime;
+				}
+			}
+			if (journal != null) {
+				journal.armed(schedule);
+			}
+		}
+		schedules.offerAll(list, runTimes, count);
+	}
+
+	int getIndex() {
+		return index;
+	}
+
+	long getWakeups() {
+		return wakeups;
+	}
+
+	/* Number of wake ups in the last complete second */
+	int getWakeupRate(long timestamp) {
+		long second = timestamp / 1000;
+		if (rateSecond == second) {
+			return lastRate;
+		} else if (rateSecond == second - 1) {
+			return rateCount;
+		}
+		return 0;
+	}
+
+	private void countWakeup(long timestamp) {
+		long second = timestamp / 1000;
+		if (second != rateSecond) {
+			lastRate = second == rateSecond + 1 ? rateCount : 0;
+			rateCount = 0;
+			rateSecond = second;
+		}
+		rateCount += 1;
+		wakeups += 1;
+	}
+
+	/* Run the given work on the dispatch thread, right away when synchronous.
+	 * With no dispatch thread, before the start or after the stop, the work
+	 * runs on the calling thread holding the lock of the shard */
+	void execute(Runnable task) {
+		Thread t = thread;
+		if (synchronous || Thread.currentThread() == t) {
+			task.run();
+			return;
+		}
+		synchronized (this) {
+			t = thread;
+			if (t == null) {
+				task.run();
+				return;
+			}
+			tasks.add(task);
+		}
+		LockSupport.unpark(t);
+	}
+
+	/**
+	 * Take a snapshot of all the schedules in this shard
+	 *
+	 * @return The future completed with the schedules by the dispatch thread
+	 */
+	CompletableFuture<List<Schedule>> snapshot() {
+		CompletableFuture<List<Schedule>> future = new CompletableFuture<>();
+		execute(() -> {
+			ArrayList<Schedule> list = new ArrayList<>(schedules.size() + monotonicTimers.size()
+							+ (timers == null ? 0 : timers.size()));
+			schedules.collect(list);
+			monotonicTimers.collect(list);
+			if (timers != null) {
+				timers.collect(list);
+			}
+			future.complete(list);
+		});
+		return future;
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException ex) {
+				Scheduler.LOGGER.error("Exception in scheduler task - ", ex);
+			}
+		}
+	}
+
+	/* Apply all the submitted schedule states, only called from the dispatch thread */
+	private void drainSubmitted(long timestamp, long nanos) {
+		Schedule schedule = submitted.getAndSet(null);
+		if (schedule == null) {
+			return;
+		}
+
+		// The stack is in reverse order of submission
+		Schedule prev = null;
+		while (schedule != null) {
+			Schedule next = schedule.nextSubmitted;
+			schedule.nextSubmitted = prev;
+			prev = schedule;
+			schedule = next;
+		}
+
+		schedule = prev;
+		while (schedule != null) {
+			Schedule next = schedule.nextSubmitted;
+			schedule.nextSubmitted = null;
+
+			int state;
+			do {
+				state = schedule.state;
+			} while (!STATE.compareAndSet(schedule, state, state & ~(SUBMITTED | RESET)));
+
+			boolean reset = (state & RESET) != 0;
+			if (reset) {
+				schedule.nextRunTime = 0;
+			}
+			if ((state & SCHEDULED) != 0) {
+				// A timer already running keeps its next run, only a new start
+				// moves it, which could have been taken over by an earlier arm
+				if (!reset && schedule instanceof Timer && !((Timer) schedule).isStarting()
+								&& isArmed((Timer) schedule)) {
+					schedule = next;
+					continue;
+				}
+				arm(schedule, timestamp, nanos);
+				if (journal != null) {
+					journal.armed(schedule);
+				}
+			} else {
+				disarm(schedule);
+				if (journal != null) {
+					journal.cancelled(schedule);
+				}
+			}
+			schedule = next;
+		}
+	}
+
+	/* Place the schedule in the queue as per its next run time */
+	private void arm(Schedule schedule, long timestamp, long nanos) {
+		Timer timer = schedule instanceof Timer ? (Timer) schedule : null;
+		if (timer != null) {
+			timer.applyStart();
+		}
+		boolean monotonic = timer != null && timer.monotonic;
+		long nextRunTime = monotonic ? timer.getNextRunNanos(nanos, timestamp) : schedule.getNextRunTime(timestamp);
+
+		// The timer could have been restarted in a different mode, make sure
+		// it is not left behind in the other queue
+		disarm(schedule);
+		if (nextRunTime == -1) {
+			// Nothing more to run, unless it has been submitted again meanwhile
+			STATE.compareAndSet(schedule, SCHEDULED, 0);
+		} else if (monotonic) {
+			monotonicTimers.offer(schedule, nextRunTime);
+		} else if (timers != null && timer != null) {
+			timers.schedule(timer, nextRunTime);
+		} else {
+			schedules.offer(schedule, nextRunTime);
+		}
+	}
+
+	private boolean isArmed(Timer timer) {
+		return (timers != null && timers.contains(timer)) || monotonicTimers.contains(timer)
+						|| schedules.contains(timer);
+	}
+
+	private void disarm(Schedule schedule) {
+		if (schedule instanceof Timer) {
+			if (timers != null) {
+				timers.cancel((Timer) schedule);
+			}
+			monotonicTimers.remove(schedule);
+		}
+		schedules.remove(schedule);
+	}
+
+	/**
+	 * Apply the submitted schedules and the pending work, then find out how
+	 * long to wait before the Schedule in line needs to be run. The slack
+	 * lets the wait stretch for the others due soon.
+	 *
+	 * @return The wait in nanoseconds, Long.MAX_VALUE when nothing is scheduled
+	 */
+	long prepare(long timestamp, long nanos) {
+		drainSubmitted(timestamp, nanos);
+		runTasks();
+
+		long scheduled = schedules.peekDeadline();
+		if (timers != null) {
+			scheduled = Math.min(scheduled, timers.nextExpiry());
+		}
+		long wait = Long.MAX_VALUE;
+		if (scheduled != Long.MAX_VALUE) {
+			// A run centuries away would overflow the nanoseconds, it still
+			// needs a timed wait
+			long millis = scheduled - timestamp;
+			wait = millis < MAX_WAIT_MILLIS ? millis * 1000000L : MAX_WAIT_MILLIS * 1000000L;
+		}
+		if (!monotonicTimers.isEmpty()) {
+			wait = Math.min(wait, monotonicTimers.peekDeadline() - nanos);
+		}
+		return wait;
+	}
+
+	/**
+	 * Run all the schedules that are due, either through the pool or on the
+	 * calling thread when the shard is synchronous
+	 *
+	 * @return The number of schedules run
+	 */
+	int dispatch(long timestamp, long nanos) {
+		/* Take out all the schedules that need to be run from the queue
+		 * for addition later after executing the tasks
+		 */
+		schedulesToRun.clear();
+		while(!schedules.isEmpty() && schedules.peekTime() <= timestamp) {
+			schedulesToRun.add(schedules.poll());
+		}
+
+		while(!monotonicTimers.isEmpty() && monotonicTimers.peekTime() - nanos <= 0) {
+			schedulesToRun.add(monotonicTimers.poll());
+		}
+
+		/* Collect the timers that have expired on the wheel */
+		if (timers != null) {
+			timers.advance(timestamp, schedulesToRun);
+		}
+
+		/* Run all the scheduled tasks, handed over to the pool in one go */
+		for(Schedule schedule:schedulesToRun) {
+			// A singleton runs in the process holding its lease, only armed here
+			if (lease != null && !lease.owns(schedule)) {
+				continue;
+			}
+			if (schedule instanceof Timer) {
+				((Timer) schedule).onDue(timestamp, nanos);
+			}
+			synchronized(schedule) {
+				Iterator<ScheduledTask> tasks = schedule.getTasks();
+				while(tasks.hasNext()) {
+					// Overlap control, the task may need to be skipped
+					ScheduledTask target = schedule.dispatch(tasks.next());
+					if (target != null) {
+						batch.put(target, schedule);
+					}
+				}
+			}
+		}
+		if (synchronous) {
+			runBatch();
+		} else {
+			pool.queueAll(batch);
+		}
+		batch.clear();
+
+		/* Activate the schedules after running the tasks, unless submitted
+		 * again in the meantime, which takes precedence. The hand over can
+		 * take a while, so the fixed rate timers see the current time */
+		timestamp = clock.currentTimeMillis();
+		nanos = clock.nanoTime();
+		for(Schedule schedule:schedulesToRun) {
+			if ((schedule.state & SUBMITTED) == 0) {
+				arm(schedule, timestamp, nanos);
+				if (journal != null) {
+					journal.fired(schedule, timestamp);
+				}
+			}
+		}
+		return schedulesToRun.size();
+	}
+
+	private void runBatch() {
+		for(Map.Entry<ScheduledTask, Schedule> entry:batch.entrySet()) {
+			try {
+				entry.getKey().onRun(scheduler, entry.getValue());
+			} catch (RuntimeException ex) {
+				Scheduler.LOGGER.error("Exception in task - ", ex);
+			}
+		}
+	}
+
+	@Override
+	public void run() {
+		Thread self = Thread.currentThread();
+		long timestamp, nanos, wait;
+		while(!exit) {
+			timestamp = clock.currentTimeMillis();
+			nanos = clock.nanoTime();
+			wait = prepare(timestamp, nanos);
+
+			/* The monotonic timers are on the nano second clock, get close
+			 * by parking and do the final approach by spinning */
+			boolean spin = false;
+			if (wait != Long.MAX_VALUE && !monotonicTimers.isEmpty()
+							&& monotonicTimers.peekDeadline() - nanos == wait) {
+				spin = wait <= SPIN_NANOS;
+				if (!spin) {
+					wait -= SPIN_NANOS;
+				}
+			}
+
+			if (wait == Long.MAX_VALUE) {
+				// If no schedules are defined wait for a submission
+				LockSupport.park(this);
+				countWakeup(clock.currentTimeMillis());
+				continue;
+			} else if (wait > 0) {
+				if (spin) {
+					long until = nanos + wait;
+					while (clock.nanoTime() - until < 0 && submitted.get() == null
+									&& tasks.isEmpty() && !exit) {
+						// Busy wait for the monotonic timer, any hand over or the
+						// stop cuts it short
+					}
+				} else {
+					// Any submission wakes us up to reevaluate the wait time
+					LockSupport.parkNanos(this, wait);
+					countWakeup(clock.currentTimeMillis());
+				}
+				continue;
+			}
+
+			dispatch(timestamp, nanos);
+		}
+
+		synchronized (this) {
+			if (thread == self) {
+				thread = null;
+				// The work handed over before the thread was cleared, the later
+				// one runs on the calling thread
+				runTasks();
+			}
+		}
+	}
+}
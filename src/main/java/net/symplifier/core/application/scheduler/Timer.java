@@ -1,14 +1,95 @@
 package net.symplifier.core.application.scheduler;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 /**
  * Timer to schedule an event after a fixed interval
  *
+ * A Timer normally follows the wall clock (milliseconds). In the monotonic
+ * mode, which is used when started with a {@link TimeUnit} or after
+ * {@link #setMonotonic(boolean)}, the timer follows System.nanoTime() instead.
+ * It then supports delays below a millisecond and is not affected when the
+ * wall clock is adjusted.
+ *
+ * A repeating timer normally runs again the repeat delay after it has been
+ * dispatched, so the delays of the dispatch add up over the runs. A timer
+ * started at a fixed rate instead runs at the start time plus a whole number
+ * of periods, the start time being taken when the timer is started. When the
+ * timer falls behind, say after a long pause, the {@link MissedRunPolicy}
+ * decides what happens to the runs that were missed.
+ *
  * Created by ranjan on 12/9/14.
  */
 public class Timer extends Schedule {
+  /**
+   * What a fixed rate timer does with the runs it missed while falling behind
+   */
+  public enum MissedRunPolicy {
+    /** Run once and skip the missed runs */
+    SKIP,
+    /**
+     * Run all the missed runs one after the other, up to the maximum catch
+     * up. A run whose task is still waiting in the pool merges with it.
+     */
+    FIRE_ALL,
+    /** Run once, the number of missed runs is available through {@link #getMissedRuns()} */
+    COALESCE
+  }
+
+  /* The delays of a start, handed over to the dispatch thread which is the
+   * only one writing the timing fields below */
+  private static final class Start {
+    final boolean monotonic;
+    final long firstDelay;
+    final long repeatDelay;
+    final long firstDelayNanos;
+    final long repeatDelayNanos;
+    final boolean fixedRate;
+    final long anchor;
+
+    Start(boolean monotonic, long firstDelay, long repeatDelay, long firstDelayNanos,
+          long repeatDelayNanos, boolean fixedRate, long anchor) {
+      this.monotonic = monotonic;
+      this.firstDelay = firstDelay;
+      this.repeatDelay = repeatDelay;
+      this.firstDelayNanos = firstDelayNanos;
+      this.repeatDelayNanos = repeatDelayNanos;
+      this.fixedRate = fixedRate;
+      this.anchor = anchor;
+    }
+  }
+
+  private static final AtomicReferenceFieldUpdater<Timer, Start> PENDING_START =
+          AtomicReferenceFieldUpdater.newUpdater(Timer.class, Start.class, "pendingStart");
+
+  /* The latest start not yet picked up by the dispatch thread */
+  private volatile Start pendingStart;
+
   private long firstDelay;
   private long repeatDelay;
 
+  /* The monotonic mode */
+  private boolean preferMonotonic;
+  boolean monotonic;            /* The mode of the current start, read by the Scheduler */
+  private long firstDelayNanos;
+  private long repeatDelayNanos;
+  private long nextRunNanos;
+
+  /* The fixed rate mode */
+  private boolean fixedRate;
+  private long anchor;          /* The time of the first run, in the unit of the mode */
+  private MissedRunPolicy missedRunPolicy = MissedRunPolicy.SKIP;
+  private int maxCatchUp = 10;
+  private volatile long missedRuns;
+  private volatile long skippedRuns;
+
+  /* Links used by the TimerWheel when the timer is on the wheel */
+  Timer wheelNext;
+  Timer wheelPrev;
+  int wheelSlot = -1;
+  long wheelDeadline;
+
   public Timer() {
     this.nextRunTime = -1;
     firstDelay = -1;
@@ -20,7 +101,21 @@ public class Timer extends Schedule {
     addTask(task);
   }
 
+  /**
+   * Create a timer running on the given Scheduler
+   *
+   * @param scheduler The Scheduler for the timer
+   * @param task The task to be run by the timer
+   */
+  public Timer(Scheduler scheduler, ScheduledTask task) {
+    this();
+    setScheduler(scheduler);
+    addTask(task);
+  }
+
   public void cancel() {
+    // A start not taken over yet would otherwise come back on the next add
+    PENDING_START.set(this, null);
     Scheduler.removeSchedule(this);
   }
 
@@ -29,23 +124,260 @@ public class Timer extends Schedule {
   }
 
   public void start(long firstDelay, long repeatDelay) {
-    Scheduler.removeSchedule(this);
-    this.firstDelay = firstDelay;
-    this.repeatDelay = repeatDelay;
-    this.nextRunTime = 0;
+    if (preferMonotonic) {
+      start(firstDelay, repeatDelay, TimeUnit.MILLISECONDS);
+    } else {
+      restart(firstDelay, repeatDelay, false);
+    }
+  }
+
+  /**
+   * Start the timer in the monotonic mode
+   *
+   * @param delay The delay after which the timer runs
+   * @param unit The unit of the delay
+   */
+  public void start(long delay, TimeUnit unit) {
+    start(delay, -1, unit);
+  }
+
+  /**
+   * Start the timer in the monotonic mode, the timer follows System.nanoTime()
+   * and is not affected by the changes in the wall clock.
+   *
+   * @param firstDelay The delay after which the timer runs the first time
+   * @param repeatDelay The delay after which the timer runs again after every
+   *                    run, -1 to run only once
+   * @param unit The unit of the delays
+   */
+  public void start(long firstDelay, long repeatDelay, TimeUnit unit) {
+    restart(firstDelay, repeatDelay, unit, false);
+  }
+
+  /**
+   * Start the timer to run at a fixed rate, at the current time plus the
+   * first delay and then every period after that, no matter how late the
+   * earlier runs were.
+   *
+   * @param firstDelay The delay in milliseconds after which the timer runs the
+   *                   first time
+   * @param period The period in milliseconds
+   */
+  public void startAtFixedRate(long firstDelay, long period) {
+    if (preferMonotonic) {
+      startAtFixedRate(firstDelay, period, TimeUnit.MILLISECONDS);
+    } else {
+      restart(firstDelay, period, true);
+    }
+  }
+
+  /**
+   * Start the timer in the monotonic mode to run at a fixed rate
+   *
+   * @param firstDelay The delay after which the timer runs the first time
+   * @param period The period
+   * @param unit The unit of the delay and the period
+   */
+  public void startAtFixedRate(long firstDelay, long period, TimeUnit unit) {
+    restart(firstDelay, period, unit, true);
+  }
+
+  private void restart(long firstDelay, long repeatDelay, boolean fixedRate) {
+    long anchor = Scheduler.clockOf(this).currentTimeMillis() + firstDelay;
+    pendingStart = new Start(false, firstDelay, repeatDelay, 0, 0,
+            fixedRate && repeatDelay > 0, anchor);
+    Scheduler.addSchedule(this);
+  }
+
+  private void restart(long firstDelay, long repeatDelay, TimeUnit unit, boolean fixedRate) {
+    long firstDelayNanos = unit.toNanos(firstDelay);
+    long repeatDelayNanos = repeatDelay < 0 ? -1 : unit.toNanos(repeatDelay);
+    long anchor = Scheduler.clockOf(this).nanoTime() + firstDelayNanos;
+    pendingStart = new Start(true, unit.toMillis(firstDelay), repeatDelay < 0 ? -1 : unit.toMillis(repeatDelay),
+            firstDelayNanos, repeatDelayNanos, fixedRate && repeatDelayNanos > 0, anchor);
     Scheduler.addSchedule(this);
   }
 
+  /* Whether a start is waiting for the dispatch thread */
+  boolean isStarting() {
+    return pendingStart != null;
+  }
+
+  /* Take over the latest start, if any, so that the next run is worked out
+   * afresh. Only called from the dispatch thread */
+  void applyStart() {
+    Start start = PENDING_START.getAndSet(this, null);
+    if (start == null) {
+      return;
+    }
+    monotonic = start.monotonic;
+    firstDelay = start.firstDelay;
+    repeatDelay = start.repeatDelay;
+    firstDelayNanos = start.firstDelayNanos;
+    repeatDelayNanos = start.repeatDelayNanos;
+    fixedRate = start.fixedRate;
+    anchor = start.anchor;
+    missedRuns = 0;
+    nextRunTime = 0;
+  }
+
+  /**
+   * Set what a fixed rate timer does with the runs missed while it was
+   * behind. Defaults to {@link MissedRunPolicy#SKIP}.
+   *
+   * @param policy The missed run policy
+   */
+  public void setMissedRunPolicy(MissedRunPolicy policy) {
+    this.missedRunPolicy = policy;
+  }
+
+  public MissedRunPolicy getMissedRunPolicy() {
+    return missedRunPolicy;
+  }
+
+  /**
+   * Set the maximum number of missed runs that are caught up with the
+   * {@link MissedRunPolicy#FIRE_ALL} policy, the older ones are skipped.
+   * Defaults to 10.
+   *
+   * @param maxCatchUp The maximum number of missed runs to catch up
+   */
+  public void setMaxCatchUp(int maxCatchUp) {
+    this.maxCatchUp = Math.max(0, maxCatchUp);
+  }
+
+  public int getMaxCatchUp() {
+    return maxCatchUp;
+  }
+
+  long getRepeatDelay() {
+    return repeatDelay;
+  }
+
+  long getRepeatNanos() {
+    return repeatDelayNanos;
+  }
+
+  boolean isFixedRate() {
+    return fixedRate;
+  }
+
+  /**
+   * The number of missed runs coalesced in to the current run with the
+   * {@link MissedRunPolicy#COALESCE} policy, to be read by the task while it
+   * runs. Always 0 with the other policies.
+   *
+   * @return The number of periods missed before the current run
+   */
+  public long getMissedRuns() {
+    return missedRuns;
+  }
+
+  /**
+   * The total number of runs of a fixed rate timer that did not take place
+   * because the timer was behind, including the coalesced runs.
+   *
+   * @return The number of runs skipped since the timer was created
+   */
+  public long getSkippedRuns() {
+    return skippedRuns;
+  }
+
+  /**
+   * Run the timer on the monotonic clock even when started with the delays
+   * in milliseconds. Takes effect on the next start.
+   *
+   * @param monotonic true for the monotonic mode
+   */
+  public void setMonotonic(boolean monotonic) {
+    this.preferMonotonic = monotonic;
+  }
+
+  public boolean isMonotonic() {
+    return preferMonotonic;
+  }
+
   public long getNextRunTime(long timestamp) {
     if (nextRunTime == 0) {
-      nextRunTime = timestamp + firstDelay;
+      // Zero marks a timer that is not armed yet, which a clock at the epoch
+      // could otherwise produce
+      nextRunTime = Math.max(1, fixedRate ? anchor : timestamp + firstDelay);
     } else {
       if (repeatDelay == -1) {
         nextRunTime = -1;
+      } else if (fixedRate) {
+        nextRunTime = nextFixedRate(nextRunTime, timestamp, repeatDelay);
       } else {
         nextRunTime = timestamp + repeatDelay;
       }
     }
     return nextRunTime;
   }
+
+  /* The next run time (System.nanoTime()) in the monotonic mode, the wall
+   * clock estimate is kept in nextRunTime */
+  long getNextRunNanos(long nanos, long timestamp) {
+    if (nextRunTime == 0) {
+      nextRunNanos = fixedRate ? anchor : nanos + firstDelayNanos;
+    } else if (repeatDelayNanos < 0) {
+      nextRunTime = -1;
+      return -1;
+    } else if (fixedRate) {
+      nextRunNanos = nextFixedRate(nextRunNanos, nanos, repeatDelayNanos);
+    } else {
+      nextRunNanos = nanos + repeatDelayNanos;
+    }
+    nextRunTime = Math.max(1, timestamp + (nextRunNanos - nanos) / 1000000L);
+    return nextRunNanos;
+  }
+
+  /* Called by the Scheduler when the timer is due, before its tasks are
+   * handed over to the pool */
+  void onDue(long timestamp, long nanos) {
+    if (fixedRate && missedRunPolicy == MissedRunPolicy.COALESCE) {
+      missedRuns = monotonic ? (nanos - nextRunNanos) / repeatDelayNanos
+              : Math.max(0, (timestamp - nextRunTime) / repeatDelay);
+    }
+  }
+
+  /* The next run on the fixed rate after the run at the given time, as per
+   * the missed run policy. Only called from the dispatch thread */
+  private long nextFixedRate(long last, long now, long period) {
+    long next = last + period;
+    if (next - now > 0) {
+      return next;
+    }
+
+    // Number of runs due by now after the last one
+    long behind = (now - last) / period;
+    if (missedRunPolicy == MissedRunPolicy.FIRE_ALL) {
+      if (behind <= maxCatchUp) {
+        return next;
+      }
+      long skip = behind - maxCatchUp;
+      skippedRuns += skip;
+      return last + (skip + 1) * period;
+    }
+
+    skippedRuns += behind;
+    return last + (behind + 1) * period;
+  }
+
+  /**
+   * The projection of a running timer from its current next run time and
+   * the repeat delay. A timer that is not running, or whose start has not
+   * been picked up by the Scheduler yet, has no run time.
+   */
+  @Override
+  public long peekNextRunTime(long timestamp) {
+    long next = nextRunTime;
+    if (next <= 0 || pendingStart != null) {
+      return -1;
+    } else if (next > timestamp) {
+      return next;
+    } else if (repeatDelay <= 0) {
+      return -1;
+    }
+    return next + ((timestamp - next) / repeatDelay + 1) * repeatDelay;
+  }
 }
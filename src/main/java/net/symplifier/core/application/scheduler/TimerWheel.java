@@ -0,0 +1,250 @@
+package net.symplifier.core.application.scheduler;
+
+import java.util.List;
+
+/**
+ * A hashed hierarchical timing wheel for {@link Timer}s. Time is divided in
+ * ticks of a fixed resolution and the wheel has four levels of 64 slots each,
+ * every level covering 64 times the range of the level below it. A Timer is
+ * linked directly into the slot list of its expiry tick (or the tick at which
+ * it is cascaded down to a finer level), so starting and cancelling a Timer is
+ * O(1) and does not allocate.
+ *
+ * Timers are never fired early, the expiry is rounded up to the next tick, so
+ * a Timer can fire up to one tick late. The wheel is not thread safe, the
+ * Scheduler guards it.
+ *
+ * @author ranjan
+ */
+class TimerWheel {
+	private static final int LEVELS = 4;
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	/* Number of ticks that can be covered by the wheel without overflowing */
+	private static final long RANGE = 1L << (LEVELS * BITS);
+
+	private final long resolution;
+	private final long origin;
+
+	private final Timer[] slots = new Timer[LEVELS * SLOTS];
+	/* A bit for every non empty slot, one word per level */
+	private final long[] occupied = new long[LEVELS];
+
+	private long currentTick;
+	private int size;
+
+	/**
+	 * Create a timing wheel
+	 *
+	 * @param resolution The duration of a tick in milliseconds
+	 * @param now The current time from which the ticks are counted
+	 */
+	public TimerWheel(long resolution, long now) {
+		if (resolution <= 0) {
+			throw new IllegalArgumentException("The tick resolution must be positive - " + resolution);
+		}
+		this.resolution = resolution;
+		this.origin = now;
+	}
+
+	public long getResolution() {
+		return resolution;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean contains(Timer timer) {
+		return timer.wheelSlot >= 0;
+	}
+
+	/**
+	 * Add the timer to the wheel to expire at the given time. If the timer is
+	 * already on the wheel, it is moved to its new slot.
+	 *
+	 * @param timer The timer to be added
+	 * @param time The time (milliseconds) at which the timer expires
+	 */
+	public void schedule(Timer timer, long time) {
+		if (timer.wheelSlot >= 0) {
+			unlink(timer);
+		} else {
+			size += 1;
+		}
+
+		// Round up, the timer should never expire early
+		long elapsed = time - origin;
+		long tick = elapsed <= 0 ? 0 : (elapsed + resolution - 1) / resolution;
+		timer.wheelDeadline = Math.max(tick, currentTick + 1);
+		insert(timer);
+	}
+
+	/**
+	 * Remove the timer from the wheel
+	 *
+	 * @param timer The timer to be removed
+	 * @return true if the timer was on the wheel
+	 */
+	public boolean cancel(Timer timer) {
+		if (timer.wheelSlot < 0) {
+			return false;
+		}
+		unlink(timer);
+		size -= 1;
+		return true;
+	}
+
+	/**
+	 * The time of the next tick at which the wheel has something to do, either
+	 * expire timers or cascade timers down to a finer level.
+	 *
+	 * @return The time in milliseconds or Long.MAX_VALUE if the wheel is empty
+	 */
+	public long nextExpiry() {
+		if (size == 0) {
+			return Long.MAX_VALUE;
+		}
+
+		long next = Long.MAX_VALUE;
+		for(int level = 0; level < LEVELS; ++level) {
+			if (occupied[level] == 0) {
+				continue;
+			}
+			int shift = level * BITS;
+			long pos = (currentTick >> shift) + 1;
+			long bits = Long.rotateRight(occupied[level], (int) (pos & MASK));
+			long tick = (pos + Long.numberOfTrailingZeros(bits)) << shift;
+			if (tick < next) {
+				next = tick;
+			}
+		}
+		return origin + next * resolution;
+	}
+
+	/**
+	 * Move the wheel forward to the given time, collecting all the timers that
+	 * expire on the way. The expired timers are removed from the wheel.
+	 *
+	 * @param now The current time in milliseconds
+	 * @param expired The list to which the expired timers are added
+	 */
+	public void advance(long now, List<? super Timer> expired) {
+		long target = (now - origin) / resolution;
+		while (size > 0) {
+			long next = (nextExpiry() - origin) / resolution;
+			if (next > target) {
+				break;
+			}
+			processTick(next, expired);
+		}
+
+		if (target > currentTick) {
+			currentTick = target;
+		}
+	}
+
+	/**
+	 * Add all the timers on the wheel to the given list, in no particular order
+	 *
+	 * @param list The list to which the timers are added
+	 */
+	public void collect(List<? super Timer> list) {
+		for(Timer head:slots) {
+			for(Timer timer = head; timer != null; timer = timer.wheelNext) {
+				list.add(timer);
+			}
+		}
+	}
+
+	private void processTick(long tick, List<? super Timer> expired) {
+		currentTick = tick;
+
+		// Bring down the timers from the coarser levels first
+		for(int level = LEVELS - 1; level > 0; --level) {
+			if ((tick & ((1L << (level * BITS)) - 1)) == 0) {
+				cascade(level, (int) ((tick >> (level * BITS)) & MASK));
+			}
+		}
+
+		int idx = (int) (tick & MASK);
+		Timer timer = slots[idx];
+		slots[idx] = null;
+		occupied[0] &= ~(1L << idx);
+		while (timer != null) {
+			Timer next = timer.wheelNext;
+			timer.wheelNext = null;
+			timer.wheelPrev = null;
+			timer.wheelSlot = -1;
+			size -= 1;
+			expired.add(timer);
+			timer = next;
+		}
+	}
+
+	private void cascade(int level, int slot) {
+		int idx = level * SLOTS + slot;
+		Timer timer = slots[idx];
+		slots[idx] = null;
+		occupied[level] &= ~(1L << slot);
+		while (timer != null) {
+			Timer next = timer.wheelNext;
+			timer.wheelNext = null;
+			timer.wheelPrev = null;
+			insert(timer);
+			timer = next;
+		}
+	}
+
+	/* Link the timer in the slot as per its deadline relative to the current tick */
+	private void insert(Timer timer) {
+		long deadline = timer.wheelDeadline;
+		long delta = deadline - currentTick;
+		if (delta >= RANGE) {
+			// Too far in the future, park it at the farthest slot and let
+			// the cascade place it again
+			deadline = currentTick + RANGE - 1;
+			delta = RANGE - 1;
+		}
+
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= (1L << ((level + 1) * BITS))) {
+			level += 1;
+		}
+
+		int slot = (int) ((deadline >> (level * BITS)) & MASK);
+		int idx = level * SLOTS + slot;
+		Timer head = slots[idx];
+		timer.wheelNext = head;
+		timer.wheelPrev = null;
+		if (head != null) {
+			head.wheelPrev = timer;
+		}
+		slots[idx] = timer;
+		timer.wheelSlot = idx;
+		occupied[level] |= 1L << slot;
+	}
+
+	private void unlink(Timer timer) {
+		int idx = timer.wheelSlot;
+		if (timer.wheelPrev != null) {
+			timer.wheelPrev.wheelNext = timer.wheelNext;
+		} else {
+			slots[idx] = timer.wheelNext;
+			if (timer.wheelNext == null) {
+				occupied[idx >> BITS] &= ~(1L << (idx & MASK));
+			}
+		}
+		if (timer.wheelNext != null) {
+			timer.wheelNext.wheelPrev = timer.wheelPrev;
+		}
+		timer.wheelNext = null;
+		timer.wheelPrev = null;
+		timer.wheelSlot = -1;
+	}
+}
@@ -0,0 +1,72 @@
+package net.symplifier.core.application.scheduler;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock that only moves when told to, for simulating the {@link Scheduler}.
+ * A Scheduler built with a VirtualClock does not start any threads. It runs
+ * the schedules on the calling thread from {@link Scheduler#advance(long)},
+ * {@link Scheduler#advanceTo(long)} and {@link Scheduler#step()}, jumping
+ * the clock straight to the time of the next run. Weeks of schedules play out
+ * in moments, and the same way on every replay.
+ *
+ * The wall clock and the monotonic clock move together. The simulation is
+ * meant to be driven from a single thread.
+ *
+ * @author ranjan
+ */
+public class VirtualClock implements Clock {
+	private final long origin;		/* The wall clock time at nanoTime 0 */
+	private volatile long nanos;
+
+	/**
+	 * Create a virtual clock starting at the given time
+	 *
+	 * @param epochMillis The starting wall clock time (unix epoch)
+	 */
+	public VirtualClock(long epochMillis) {
+		this.origin = epochMillis;
+	}
+
+	/**
+	 * Create a virtual clock starting at the current time
+	 */
+	public VirtualClock() {
+		this(System.currentTimeMillis());
+	}
+
+	@Override
+	public long currentTimeMillis() {
+		return origin + Math.floorDiv(nanos, 1000000L);
+	}
+
+	@Override
+	public long nanoTime() {
+		return nanos;
+	}
+
+	/**
+	 * Move the clock forward without running anything. The Scheduler catches
+	 * up with the schedules due in between when it is advanced next.
+	 *
+	 * @param duration The time to move forward
+	 * @param unit The unit of the duration
+	 */
+	public void advance(long duration, TimeUnit unit) {
+		if (duration < 0) {
+			throw new IllegalArgumentException("The clock cannot go back - " + duration);
+		}
+		nanos += unit.toNanos(duration);
+	}
+
+	/* The monotonic time at the given wall clock time */
+	long toNanos(long epochMillis) {
+		return (epochMillis - origin) * 1000000L;
+	}
+
+	void set(long nanos) {
+		if (nanos > this.nanos) {
+			this.nanos = nanos;
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package net.symplifier.core.application.scheduler;
+
+import net.symplifier.core.application.threading.ThreadPool;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A set of tasks with dependencies between them, run as a single
+ * {@link ScheduledTask}. Every step is released as soon as all the steps it
+ * comes after are over. The thread that ends a step carries on with one of
+ * the steps it releases and hands the others to the pool of the Scheduler, so
+ * independent branches run in parallel and no thread waits for another. A
+ * step is added with the steps it comes after, which are already in the
+ * workflow, so the steps always form a directed acyclic graph.
+ *
+ * <pre>
+ *   Workflow nightly = new Workflow();
+ *   Workflow.Step a = nightly.add("extract", extract);
+ *   Workflow.Step b = nightly.add("load", load, a);
+ *   Workflow.Step c = nightly.add("index", index, a);
+ *   nightly.add("report", report, b, c);
+ *   Schedule.cron("0 0 2 * * *").addTask(nightly);
+ * </pre>
+ *
+ * Every run of the workflow keeps its own progress, so a run may overlap the
+ * previous one. The run of the workflow task itself runs the first step and
+ * the chain of steps it releases on the same thread, the other first steps
+ * go to the pool, so it is over only when that chain ends. When a step fails
+ * with an exception, or is dropped by the pool, on overflow or after it has
+ * stopped, the steps not started yet are skipped and the run is counted as
+ * failed.
+ *
+ * @author ranjan
+ */
+public class Workflow implements ScheduledTask {
+
+	/**
+	 * Receives the end of every run of the workflow
+	 */
+	public interface Listener {
+		/**
+		 * @param workflow The workflow
+		 * @param schedule The schedule that started the run
+		 * @param succeeded false if any step failed
+		 */
+		void onFinish(Workflow workflow, Schedule schedule, boolean succeeded);
+	}
+
+	/**
+	 * A step of the workflow
+	 */
+	public static final class Step {
+		private final Workflow workflow;
+		private final String name;
+		private final ScheduledTask task;
+		private final int index;
+		private final Step[] after;
+
+		private Step(Workflow workflow, String name, ScheduledTask task, int index, Step[] after) {
+			this.workflow = workflow;
+			this.name = name;
+			this.task = task;
+			this.index = index;
+			this.after = after;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public ScheduledTask getTask() {
+			return task;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/* The compiled form of the steps, shared by the runs */
+	private static final class Graph {
+		private final Step[] steps;
+		private final int[] predecessors;		/* The number of steps each step comes after */
+		private final int[][] successors;
+		private final int[] roots;
+
+		private Graph(ArrayList<Step> list) {
+			steps = list.toArray(new Step[list.size()]);
+			predecessors = new int[steps.length];
+			int[] counts = new int[steps.length];
+			int rootCount = 0;
+			for(Step step:steps) {
+				predecessors[step.index] = step.after.length;
+				rootCount += step.after.length == 0 ? 1 : 0;
+				for(Step before:step.after) {
+					counts[before.index] += 1;
+				}
+			}
+
+			successors = new int[steps.length][];
+			for(int i = 0; i < steps.length; ++i) {
+				successors[i] = new int[counts[i]];
+				counts[i] = 0;
+			}
+			roots = new int[rootCount];
+			rootCount = 0;
+			for(Step step:steps) {
+				if (step.after.length == 0) {
+					roots[rootCount++] = step.index;
+				}
+				for(Step before:step.after) {
+					successors[before.index][counts[before.index]++] = step.index;
+				}
+			}
+		}
+	}
+
+	private final ArrayList<Step> steps = new ArrayList<>();
+	private volatile Graph graph;
+	private volatile Listener listener;
+
+	private final AtomicInteger activeRuns = new AtomicInteger();
+	private final AtomicLong completedRuns = new AtomicLong();
+	private final AtomicLong failedRuns = new AtomicLong();
+
+	/**
+	 * Add a step to the workflow
+	 *
+	 * @param name The name of the step, for the logs
+	 * @param task The task run by the step
+	 * @param after The steps of this workflow after which this step runs,
+	 *              none to run it at the start
+	 * @return The step
+	 * @throws IllegalArgumentException if any of the steps belongs to another
+	 *         workflow
+	 */
+	public synchronized Step add(String name, ScheduledTask task, Step ... after) {
+		for(Step before:after) {
+			if (before.workflow != this) {
+				throw new IllegalArgumentException("The step " + before.name + " belongs to another workflow");
+			}
+		}
+		Step step = new Step(this, name, task, steps.size(), after.clone());
+		steps.add(step);
+		graph = null;
+		return step;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return The number of runs going on
+	 */
+	public int getActiveRuns() {
+		return activeRuns.get();
+	}
+
+	public long getCompletedRuns() {
+		return completedRuns.get();
+	}
+
+	public long getFailedRuns() {
+		return failedRuns.get();
+	}
+
+	private Graph graph() {
+		Graph g = graph;
+		if (g == null) {
+			synchronized (this) {
+				g = graph;
+				if (g == null) {
+					g = new Graph(steps);
+					graph = g;
+				}
+			}
+		}
+		return g;
+	}
+
+	@Override
+	public void onRun(Scheduler source, Schedule attachment) {
+		Graph g = graph();
+		activeRuns.incrementAndGet();
+		if (g.steps.length == 0) {
+			finish(attachment, true);
+			return;
+		}
+
+		Run run = new Run(g, source, attachment);
+		// The first step runs right here, the others go to the pool
+		for(int i = 1; i < g.roots.length; ++i) {
+			source.execute(new StepRun(run, g.roots[i]), attachment);
+		}
+		run.execute(g.roots[0]);
+	}
+
+	private void finish(Schedule schedule, boolean succeeded) {
+		activeRuns.decrementAndGet();
+		(succeeded ? completedRuns : failedRuns).incrementAndGet();
+		Listener l = listener;
+		if (l != null) {
+			try {
+				l.onFinish(this, schedule, succeeded);
+			} catch (RuntimeException ex) {
+				Scheduler.LOGGER.error("Exception in workflow listener - ", ex);
+			}
+		}
+	}
+
+	/* The progress of a single run of the workflow */
+	private final class Run {
+		private final Graph graph;
+		private final Scheduler source;
+		private final Schedule schedule;
+		private final AtomicIntegerArray waiting;		/* The predecessors not over yet */
+		private final AtomicInteger remaining;			/* The steps not over yet */
+		private volatile boolean failed;
+
+		private Run(Graph graph, Scheduler source, Schedule schedule) {
+			this.graph = graph;
+			this.source = source;
+			this.schedule = schedule;
+			this.waiting = new AtomicIntegerArray(graph.predecessors);
+			this.remaining = new AtomicInteger(graph.steps.length);
+		}
+
+		/* Run the step and then the steps released by it, one of them on the
+		 * same thread and the rest through the pool */
+		private void execute(int index) {
+			while (index >= 0) {
+				Step step = graph.steps[index];
+				if (!failed) {
+					try {
+						step.task.onRun(source, schedule);
+					} catch (RuntimeException ex) {
+						Scheduler.LOGGER.error("Exception in workflow step " + step.name + " - ", ex);
+						failed = true;
+					}
+				}
+
+				int next = -1;
+				for(int successor:graph.successors[index]) {
+					if (waiting.decrementAndGet(successor) == 0) {
+						if (next < 0) {
+							next = successor;
+						} else {
+							source.execute(new StepRun(this, successor), schedule);
+						}
+					}
+				}
+
+				if (remaining.decrementAndGet() == 0) {
+					finish(schedule, !failed);
+				}
+				index = next;
+			}
+		}
+	}
+
+	/* A step of a run handed over to the pool, a new target every time so
+	 * that the pool never merges it with another */
+	private static final class StepRun implements ScheduledTask {
+		private final Run run;
+		private final int index;
+
+		private StepRun(Run run, int index) {
+			this.run = run;
+			this.index = index;
+		}
+
+		@Override
+		public void onRun(Scheduler source, Schedule attachment) {
+			run.execute(index);
+		}
+
+		@Override
+		public void onDrop(Scheduler source, Schedule attachment) {
+			// The step is lost, let the rest of the run be skipped
+			run.failed = true;
+			run.execute(index);
+		}
+
+		@Override
+		public ThreadPool.Priority getPriority() {
+			return run.graph.steps[index].task.getPriority();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package net.symplifier.core.application.scheduler;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The offset changes of a time zone worked out in advance, so that the
+ * {@link ScheduleMatcher} finds the offset in effect at any time with a
+ * search on a flat array instead of going through the zone rules on every
+ * run. The time line is cut in to segments at the changes, within a segment
+ * the offset stays the same and the local time runs along with the epoch.
+ *
+ * The changes are worked out from {@value #FIRST_YEAR} to {@value #LAST_YEAR},
+ * the offset after the last change is kept beyond that. The tables are
+ * immutable and shared between all the schedules of a zone.
+ *
+ * @author ranjan
+ */
+final class ZoneTransitions {
+	private static final int FIRST_YEAR = 1900;
+	private static final int LAST_YEAR = 2400;
+
+	private static final ConcurrentHashMap<ZoneId, ZoneTransitions> TABLES = new ConcurrentHashMap<>();
+
+	private final ZoneId zone;
+	private final long[] instants;		/* The epoch milliseconds of the changes, ascending */
+	private final int[] offsets;		/* The offset in milliseconds of every segment, one more than the changes */
+
+	/**
+	 * The table of the given zone, worked out on the first use of the zone
+	 *
+	 * @param zone The time zone
+	 * @return The transitions of the zone
+	 */
+	static ZoneTransitions of(ZoneId zone) {
+		ZoneTransitions table = TABLES.get(zone);
+		if (table == null) {
+			table = TABLES.computeIfAbsent(zone, ZoneTransitions::new);
+		}
+		return table;
+	}
+
+	private ZoneTransitions(ZoneId zone) {
+		this.zone = zone;
+		ZoneRules rules = zone.getRules();
+		Instant first = Instant.ofEpochSecond(epochSecond(FIRST_YEAR));
+		long last = epochSecond(LAST_YEAR);
+
+		long[] times = new long[16];
+		int[] values = new int[17];
+		values[0] = rules.getOffset(first).getTotalSeconds() * 1000;
+		int count = 0;
+		if (!rules.isFixedOffset()) {
+			ZoneOffsetTransition transition = rules.nextTransition(first);
+			while (transition != null && transition.toEpochSecond() < last) {
+				if (count == times.length) {
+					times = Arrays.copyOf(times, count << 1);
+					values = Arrays.copyOf(values, (count << 1) + 1);
+				}
+				times[count] = transition.toEpochSecond() * 1000;
+				values[++count] = transition.getOffsetAfter().getTotalSeconds() * 1000;
+				transition = rules.nextTransition(transition.getInstant());
+			}
+		}
+		this.instants = Arrays.copyOf(times, count);
+		this.offsets = Arrays.copyOf(values, count + 1);
+	}
+
+	private static long epochSecond(int year) {
+		return LocalDate.of(year, 1, 1).atStartOfDay().toEpochSecond(ZoneOffset.UTC);
+	}
+
+	ZoneId getZone() {
+		return zone;
+	}
+
+	/**
+	 * @param instant The unix epoch
+	 * @return The segment in which the given time falls
+	 */
+	int segmentOf(long instant) {
+		int idx = Arrays.binarySearch(instants, instant);
+		return idx >= 0 ? idx + 1 : -idx - 1;
+	}
+
+	/**
+	 * @param segment The segment
+	 * @return The unix epoch at which the segment starts, Long.MIN_VALUE for
+	 *         the first one
+	 */
+	long start(int segment) {
+		return segment == 0 ? Long.MIN_VALUE : instants[segment - 1];
+	}
+
+	/**
+	 * @param segment The segment
+	 * @return The unix epoch at which the next segment starts, Long.MAX_VALUE
+	 *         for the last one
+	 */
+	long end(int segment) {
+		return segment == instants.length ? Long.MAX_VALUE : instants[segment];
+	}
+
+	/**
+	 * @param segment The segment
+	 * @return The offset from UTC in milliseconds within the segment
+	 */
+	int offset(int segment) {
+		return offsets[segment];
+	}
+}
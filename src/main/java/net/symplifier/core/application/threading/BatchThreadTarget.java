@@ -0,0 +1,48 @@
+package net.symplifier.core.application.threading;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A target that gets all the attachments queued for it while waiting in
+ * one run, instead of only the latest one, so that it can deal with them
+ * together, say in a single round trip to the database.
+ *
+ * Every attachment in a batch takes a place in a bounded pool, so a batch
+ * never grows beyond the capacity. An attachment that finds the pool full
+ * goes through the overflow policy on its own.
+ *
+ * @author ranjan
+ */
+public interface BatchThreadTarget <S, A> extends ThreadTarget<S, A> {
+
+  /**
+   * Called on a thread of the pool with the attachments in the order queued
+   *
+   * @param source The source of the pool
+   * @param attachments The attachments queued since the last run, never empty
+   */
+  void onRunBatch(S source, List<A> attachments);
+
+  /**
+   * A single run, used when the target is run outside a batch, say by the
+   * thread queueing it on overflow
+   */
+  @Override
+  default void onRun(S source, A attachment) {
+    onRunBatch(source, Collections.singletonList(attachment));
+  }
+
+  /**
+   * Called in place of onRunBatch when a bounded pool drops the batch. Calls
+   * onDrop for every attachment by default.
+   *
+   * @param source The source of the pool
+   * @param attachments The attachments of the dropped batch
+   */
+  default void onDropBatch(S source, List<A> attachments) {
+    for(A attachment:attachments) {
+      onDrop(source, attachment);
+    }
+  }
+}
@@ -3,86 +3,1315 @@ package net.symplifier.core.application.threading;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by ranjan on 6/10/15.
+ *
+ * A work stealing pool. Every worker has its own deque, the targets queued
+ * from a worker go on its deque and the ones queued from any other thread go
+ * on a shared injection queue. A worker runs from its own deque first, newest
+ * first, then from the injection queue in the order queued, and when both are
+ * empty it steals the oldest run of another worker. Only a worker with
+ * nothing to do parks, and it is woken directly by the thread queueing the
+ * next run, so no lock is shared by the workers.
+ *
+ * A target queued again before it runs is run only once, with the latest
+ * attachment, or with all the attachments queued meanwhile for a
+ * {@link BatchThreadTarget}. Every attachment added to a waiting batch
+ * takes a place of its own in a bounded pool, and goes through the overflow
+ * policy when there is none. A worker takes up to the drain batch of runs
+ * from a lane in a row before it looks at the lanes again.
+ *
+ * The pool may be elastic, between a minimum and a maximum number of threads.
+ * A thread is added when a run is queued or finished while no worker is idle
+ * and the runs waiting reach the depth threshold, or the oldest of them has
+ * waited for the age threshold. A thread above the minimum retires after
+ * being idle for the idle timeout. Every change is logged, counted and told
+ * to the {@link SizingListener}. An elastic pool also has a monitor thread
+ * looking at the age of the waiting runs every half the age threshold, so
+ * that it grows even when all the workers are held up in long runs and no
+ * run is queued or finished.
+ *
+ * The pool may also be bounded, with a capacity on the runs waiting. A new
+ * run beyond the capacity is dealt with as per the {@link OverflowPolicy},
+ * and a run that is dropped gets {@link ThreadTarget#onDrop} in place of
+ * onRun, as does a run queued after the pool has stopped. A target queued
+ * again while waiting never overflows, as it only gets its attachment
+ * replaced. A worker never waits for a place, as only the workers make
+ * them, it runs the target itself when the policy blocks.
+ *
+ * Every run goes in the lane of its {@link Priority}, the one of the target
+ * unless given while queueing. The workers drain the lanes in a weighted
+ * round robin, so the higher lanes get the larger share while the lower ones
+ * still move on under load, and a run that has waited in a lower lane for
+ * the starvation timeout is taken before any other.
+ *
+ * A {@link ThreadTask} submitted to the pool gives back a CompletableFuture
+ * of its result. Every submission is a run of its own and is never merged
+ * with another. Cancelling the future takes a waiting run out of the queue
+ * and interrupts a running one, which the task is expected to check. A run
+ * dropped by a bounded pool, left waiting when the pool stops, or submitted
+ * after it, completes its future exceptionally.
+ *
+ * The runs queued with a key run one after the other in the order queued,
+ * while the runs of the other keys go on in parallel. Every key with runs
+ * waiting takes the place of a single run in the pool, which runs the oldest
+ * run of the key and queues the key again for the next one, so no worker
+ * ever waits on a key held by another. The key keeps its place while it
+ * runs, so queueing it again never waits on a bounded pool.
  */
 public class ThreadPool<S, A> {
+  /**
+   * The reason for a change in the number of threads
+   */
+  public enum SizingReason {
+    /** Enough runs were waiting */
+    QUEUE_DEPTH,
+    /** A run was waiting for too long */
+    QUEUE_AGE,
+    /** A thread was idle for the idle timeout */
+    IDLE_TIMEOUT
+  }
+
+  /**
+   * The lanes of the pool, in the order of their priority
+   */
+  public enum Priority {
+    /** Latency sensitive runs, like heart beats and lease renewals */
+    HIGH,
+    /** The default */
+    NORMAL,
+    /** Bulk work that can wait */
+    LOW
+  }
+
+  /**
+   * What to do with a new run when a bounded pool is full
+   */
+  public enum OverflowPolicy {
+    /**
+     * Wait for a place in the queue. A worker of the pool never waits, as
+     * only the workers make places, it runs the target itself instead.
+     */
+    BLOCK,
+    /**
+     * Wait for a place up to the block timeout, then drop the run. A worker
+     * of the pool runs the target itself instead, as with BLOCK.
+     */
+    BLOCK_TIMEOUT,
+    /** Run the target on the thread queueing it */
+    CALLER_RUNS,
+    /** Drop the run being queued */
+    DROP_NEWEST,
+    /** Drop the oldest waiting run to make a place */
+    DROP_OLDEST
+  }
+
+  /**
+   * Receives every change in the number of threads of an elastic pool
+   */
+  public interface SizingListener {
+    /**
+     * Called on the thread making the change
+     *
+     * @param pool The pool
+     * @param threads The number of threads after the change
+     * @param reason The reason for the change
+     */
+    void onResize(ThreadPool<?, ?> pool, int threads, SizingReason reason);
+  }
+
   private static final Logger LOGGER = LogManager.getLogger("ThreadPool");
 
+  /* The rounds of looking for a run before a worker parks */
+  private static final int SPINS = 4;
+
+  private static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+  private static final long DEFAULT_AGE_THRESHOLD = TimeUnit.MILLISECONDS.toNanos(50);
+  private static final long DEFAULT_BLOCK_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+  private static final long DEFAULT_STARVATION_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+  private static final long MIN_MONITOR_PERIOD = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static final Priority[] PRIORITIES = Priority.values();
+  private static final int LANES = PRIORITIES.length;
+
   private volatile boolean exit = false;
   private final S source;
-  private final Map<ThreadTarget<S,A>, A> targets = new LinkedHashMap<>();
+
+  /* The runs waiting on every key queued with queueKeyed */
+  private final ConcurrentHashMap<Object, KeyQueue> keys = new ConcurrentHashMap<>();
+
+  /* The pending run of every queued target */
+  private final ConcurrentHashMap<ThreadTarget<S, A>, Task<S, A>> pending = new ConcurrentHashMap<>();
+  /* The runs queued from outside the pool, one queue for every lane */
+  private final ConcurrentLinkedQueue<Task<S, A>>[] injected = newLanes();
+  /* The parked workers, may hold workers that have found work since */
+  private final ConcurrentLinkedQueue<WorkerThread> idle = new ConcurrentLinkedQueue<>();
+  /* All the workers, replaced as a whole when a worker is added */
+  @SuppressWarnings("unchecked")
+  private volatile WorkerThread[] workers = (WorkerThread[]) new ThreadPool<?, ?>.WorkerThread[0];
+  private final ThreadLocal<WorkerThread> current = new ThreadLocal<>();
+
+  /* The elastic sizing */
+  private final AtomicInteger threads = new AtomicInteger();
+  private volatile int minThreads;
+  private volatile int maxThreads;
+  private volatile ThreadFactory factory;
+  private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+  private volatile int depthThreshold = 1;
+  private volatile long ageThreshold = DEFAULT_AGE_THRESHOLD;
+  private volatile SizingListener sizingListener;
+  private final AtomicLong threadsAdded = new AtomicLong();
+  private final AtomicLong threadsRetired = new AtomicLong();
+  private volatile Thread monitor;
+
+  /* The bounded queue, the runs are counted only when bounded */
+  private volatile int capacity = Integer.MAX_VALUE;
+  private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+  private volatile long blockTimeout = DEFAULT_BLOCK_TIMEOUT;
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicLong rejected = new AtomicLong();
+  private final Object space = new Object();
+  private volatile int spaceWaiters;
+
+  /* The priority lanes */
+  private volatile int[] weights = {8, 4, 1};
+  private volatile long starvationTimeout = DEFAULT_STARVATION_TIMEOUT;
+  private volatile int drainBatch = 1;
 
   public ThreadPool(S source) {
     this.source = source;
   }
 
+  @SuppressWarnings("unchecked")
+  private static <T> ConcurrentLinkedQueue<T>[] newLanes() {
+    ConcurrentLinkedQueue<T>[] lanes = (ConcurrentLinkedQueue<T>[]) new ConcurrentLinkedQueue<?>[LANES];
+    for(int i = 0; i < LANES; ++i) {
+      lanes[i] = new ConcurrentLinkedQueue<>();
+    }
+    return lanes;
+  }
+
   public void start(int threads) {
-    LOGGER.info("Starting poll with " + threads + " threads for " + source.getClass().toString());
-    for(int i=0; i<threads; ++i) {
-      new Thread(new WorkerThread()).start();
+    start(threads, Thread::new);
+  }
+
+  /**
+   * Start the pool with the threads created by the given factory
+   *
+   * @param threads The number of threads in the pool
+   * @param factory The factory creating the threads
+   */
+  public void start(int threads, ThreadFactory factory) {
+    start(threads, threads, factory);
+  }
+
+  /**
+   * Start an elastic pool, which keeps at least the minimum number of threads
+   * and adds more up to the maximum when the runs start waiting
+   *
+   * @param minThreads The number of threads started right away
+   * @param maxThreads The maximum number of threads
+   * @param factory The factory creating the threads
+   */
+  public void start(int minThreads, int maxThreads, ThreadFactory factory) {
+    if (minThreads < 1 || maxThreads < minThreads) {
+      throw new IllegalArgumentException("Invalid pool size " + minThreads + " - " + maxThreads);
+    }
+    LOGGER.info("Starting poll with " + minThreads + (maxThreads == minThreads ? "" : " to " + maxThreads)
+            + " threads for " + source.getClass().toString());
+    this.minThreads = minThreads;
+    this.maxThreads = maxThreads;
+    this.factory = factory;
+    threads.addAndGet(minThreads);
+    for(int i=0; i<minThreads; ++i) {
+      spawn();
+    }
+    if (maxThreads > minThreads) {
+      Thread thread = factory.newThread(this::monitor);
+      thread.setDaemon(true);
+      monitor = thread;
+      thread.start();
+    }
+  }
+
+  /**
+   * Set how long a thread above the minimum stays idle before it retires,
+   * 60 seconds if not set
+   *
+   * @param timeout The idle timeout
+   * @param unit The unit of the timeout
+   */
+  public void setIdleTimeout(long timeout, TimeUnit unit) {
+    this.idleTimeout = Math.max(1, unit.toNanos(timeout));
+  }
+
+  /**
+   * Set when an elastic pool adds a thread, with no worker idle. A thread is
+   * added as soon as a run waits if not set.
+   *
+   * @param depth The number of runs waiting
+   * @param age How long the oldest run has been waiting
+   * @param unit The unit of the age
+   */
+  public void setGrowthThresholds(int depth, long age, TimeUnit unit) {
+    this.depthThreshold = Math.max(1, depth);
+    this.ageThreshold = unit.toNanos(age);
+  }
+
+  /**
+   * Bound the number of runs waiting in the pool. Needs to be set before the
+   * pool is started.
+   *
+   * @param capacity The maximum number of runs waiting
+   * @param policy What to do with a new run when the pool is full
+   * @throws IllegalStateException if the pool has been started
+   */
+  public void setCapacity(int capacity, OverflowPolicy policy) {
+    if (factory != null) {
+      throw new IllegalStateException("The capacity needs to be set before the pool is started");
+    }
+    if (capacity < 1) {
+      throw new IllegalArgumentException("The capacity needs to be at least 1 - " + capacity);
+    }
+    this.capacity = capacity;
+    this.overflowPolicy = policy;
+  }
+
+  /**
+   * Set the share of the runs taken from every lane while all of them have
+   * runs waiting, 8, 4 and 1 if not set
+   *
+   * @param high The weight of the high priority lane
+   * @param normal The weight of the normal priority lane
+   * @param low The weight of the low priority lane
+   */
+  public void setPriorityWeights(int high, int normal, int low) {
+    if (high < 1 || normal < 1 || low < 1) {
+      throw new IllegalArgumentException("The weights need to be at least 1");
+    }
+    this.weights = new int[] {high, normal, low};
+  }
+
+  /**
+   * Set how long a run may wait in a lower lane before it is taken ahead of
+   * the higher ones, 1 second if not set
+   *
+   * @param timeout The starvation timeout, 0 to rely on the weights alone
+   * @param unit The unit of the timeout
+   */
+  public void setStarvationTimeout(long timeout, TimeUnit unit) {
+    this.starvationTimeout = unit.toNanos(timeout);
+  }
+
+  /**
+   * Set the number of runs a worker takes from a lane in a row, and a key
+   * runs in a row, before going through the lanes again, 1 if not set. A
+   * larger batch costs less for every run when the runs are tiny, at the
+   * price of a coarser weighted round robin.
+   *
+   * @param runs The number of runs in a row
+   */
+  public void setDrainBatch(int runs) {
+    this.drainBatch = Math.max(1, runs);
+  }
+
+  public int getDrainBatch() {
+    return drainBatch;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /**
+   * Set how long {@link OverflowPolicy#BLOCK_TIMEOUT} waits for a place, 1
+   * second if not set
+   *
+   * @param timeout The block timeout
+   * @param unit The unit of the timeout
+   */
+  public void setBlockTimeout(long timeout, TimeUnit unit) {
+    this.blockTimeout = unit.toNanos(timeout);
+  }
+
+  /**
+   * @return The number of new runs that found the bounded pool full, whether
+   *         dropped, run by the caller or dropped after blocking
+   */
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  public void setSizingListener(SizingListener listener) {
+    this.sizingListener = listener;
+  }
+
+  /**
+   * @return The number of threads in the pool
+   */
+  public int getThreadCount() {
+    return threads.get();
+  }
+
+  public int getMinThreads() {
+    return minThreads;
+  }
+
+  public int getMaxThreads() {
+    return maxThreads;
+  }
+
+  /**
+   * @return The number of runs waiting for a thread
+   */
+  public int getQueuedCount() {
+    return pending.size();
+  }
+
+  /**
+   * @return The number of threads added beyond the minimum so far
+   */
+  public long getThreadsAdded() {
+    return threadsAdded.get();
+  }
+
+  /**
+   * @return The number of threads retired so far
+   */
+  public long getThreadsRetired() {
+    return threadsRetired.get();
+  }
+
+  /* Start a new worker, the thread count is already taken care of */
+  private void spawn() {
+    WorkerThread worker = new WorkerThread();
+    synchronized (this) {
+      WorkerThread[] list = Arrays.copyOf(workers, workers.length + 1);
+      list[list.length - 1] = worker;
+      workers = list;
+    }
+    factory.newThread(worker).start();
+  }
+
+  /* Add a thread if the runs are waiting with no worker to take them */
+  private void grow() {
+    int count = threads.get();
+    if (count >= maxThreads || exit) {
+      return;
+    }
+
+    SizingReason reason = null;
+    if (pending.size() >= depthThreshold) {
+      reason = SizingReason.QUEUE_DEPTH;
+    } else if (ageThreshold > 0 && oldest() >= ageThreshold) {
+      reason = SizingReason.QUEUE_AGE;
+    }
+    if (reason != null) {
+      add(count, reason);
+    }
+  }
+
+  /* Add a thread to the given count, unless changed meanwhile */
+  private void add(int count, SizingReason reason) {
+    if (threads.compareAndSet(count, count + 1)) {
+      threadsAdded.incrementAndGet();
+      spawn();
+      resized(count + 1, reason);
+    }
+  }
+
+  /* Look at the age of the waiting runs from time to time, the queue events
+   * alone miss a backlog that waits on workers all held up in long runs */
+  private void monitor() {
+    while (!exit) {
+      long threshold = ageThreshold;
+      LockSupport.parkNanos(this, threshold > 0 ? Math.max(threshold / 2, MIN_MONITOR_PERIOD) : DEFAULT_AGE_THRESHOLD);
+      int count = threads.get();
+      if (!exit && threshold > 0 && count < maxThreads && !pending.isEmpty()
+              && !anyParked() && oldest() >= threshold) {
+        add(count, SizingReason.QUEUE_AGE);
+      }
+    }
+  }
+
+  /* Whether a worker is parked, and so can take a waiting run */
+  private boolean anyParked() {
+    for(WorkerThread worker:workers) {
+      if (worker.parked == 1) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /* How long the oldest run seen at the heads of the queues has waited */
+  private long oldest() {
+    long now = System.nanoTime();
+    long age = 0;
+    for(int lane = 0; lane < LANES; ++lane) {
+      Task<S, A> task = injected[lane].peek();
+      if (task != null) {
+        age = Math.max(age, now - task.queued);
+      }
+      for(WorkerThread worker:workers) {
+        task = worker.deques[lane].peekFirst();
+        if (task != null) {
+          age = Math.max(age, now - task.queued);
+        }
+      }
+    }
+    return age;
+  }
+
+  private void resized(int count, SizingReason reason) {
+    LOGGER.info("Pool for " + source.getClass().getSimpleName() + " resized to " + count + " threads - " + reason);
+    SizingListener listener = sizingListener;
+    if (listener != null) {
+      try {
+        listener.onResize(this, count, reason);
+      } catch (RuntimeException ex) {
+        LOGGER.error("Exception in the sizing listener - ", ex);
+      }
     }
   }
 
   public void stop() {
     exit = true;
-    synchronized (targets) {
-      targets.clear();
-      targets.notifyAll();
+    Thread thread = monitor;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+    for(Task<S, A> task:pending.values()) {
+      if (task.target instanceof ThreadPool.Submission) {
+        ((Submission<?>) task.target).reject();
+      }
+    }
+    pending.clear();
+    // A submission waiting on a key is not pending by itself
+    for(KeyQueue queue:keys.values()) {
+      queue.stop();
+    }
+    keys.clear();
+    for(ConcurrentLinkedQueue<Task<S, A>> lane:injected) {
+      lane.clear();
+    }
+    for(WorkerThread worker:workers) {
+      for(ConcurrentLinkedDeque<Task<S, A>> lane:worker.deques) {
+        lane.clear();
+      }
+      worker.wake();
+    }
+    queued.set(0);
+    synchronized (space) {
+      space.notifyAll();
     }
   }
 
   public void queue(ThreadTarget<S, A> target, A attachment) {
-    synchronized (targets) {
-      targets.put(target, attachment);
-      targets.notify();
+    queue(target, attachment, target.getPriority());
+  }
+
+  /**
+   * Queue the target in the lane of the given priority. A target already
+   * waiting stays in its lane and only gets the attachment replaced.
+   *
+   * @param target The target to be run
+   * @param attachment The attachment passed to the target
+   * @param priority The priority of the run
+   */
+  public void queue(ThreadTarget<S, A> target, A attachment, Priority priority) {
+    if (offer(target, attachment, priority.ordinal(), false) && !signal(1)) {
+      grow();
     }
   }
 
-  class WorkerThread implements Runnable {
+  /* Queue a key again on the place it already has in a bounded pool */
+  private void requeue(KeyQueue queue, Priority priority) {
+    if (offer(queue, null, priority.ordinal(), capacity != Integer.MAX_VALUE) && !signal(1)) {
+      grow();
+    }
+  }
 
-    @Override
-    public void run() {
-      while(!exit) {
+  /**
+   * Take the waiting run of the target out of the queue. A run already taken
+   * by a worker is not affected.
+   *
+   * @param target The queued target
+   * @return true if a waiting run was removed
+   */
+  public boolean cancel(ThreadTarget<S, A> target) {
+    Task<S, A> task = pending.remove(target);
+    if (task == null) {
+      return false;
+    }
+    // The run stays in its queue until a worker finds it no longer pending
+    if (capacity != Integer.MAX_VALUE) {
+      release(task.batch == null ? 1 : task.close().size());
+    }
+    return true;
+  }
+
+  /**
+   * Submit a task for its result, in the normal lane
+   *
+   * @param task The task to be run
+   * @param attachment The attachment passed to the task
+   * @param <R> The type of the result
+   * @return The future completing with the result of the task
+   */
+  public <R> CompletableFuture<R> submit(ThreadTask<S, A, R> task, A attachment) {
+    return submit(task, attachment, Priority.NORMAL);
+  }
+
+  /**
+   * Submit a task for its result. The future completes with the value
+   * returned, or exceptionally with the exception thrown, by the task, with a
+   * RejectedExecutionException when the pool drops the run, and with a
+   * CancellationException when cancelled. The stages depending on the future
+   * may run on the thread of the pool that completes it.
+   *
+   * @param task The task to be run
+   * @param attachment The attachment passed to the task
+   * @param priority The priority of the run
+   * @param <R> The type of the result
+   * @return The future completing with the result of the task
+   */
+  public <R> CompletableFuture<R> submit(ThreadTask<S, A, R> task, A attachment, Priority priority) {
+    Submission<R> submission = new Submission<>(task);
+    queue(submission, attachment, priority);
+    return submission;
+  }
+
+  /**
+   * Submit a callable for its result, in the normal lane
+   *
+   * @param callable The callable to be run
+   * @param <R> The type of the result
+   * @return The future completing with the result of the callable
+   */
+  public <R> CompletableFuture<R> submit(Callable<R> callable) {
+    return submit((source, attachment) -> callable.call(), null, Priority.NORMAL);
+  }
+
+  /**
+   * Queue the target to run after all the runs queued earlier with the same
+   * key, and before the ones queued later. The keyed runs are never merged,
+   * every one of them runs with its own attachment. A bounded pool counts a
+   * key with runs waiting as a single run, and drops all the runs waiting on
+   * the key when it drops the key.
+   *
+   * @param key The key, compared with equals
+   * @param target The target to be run
+   * @param attachment The attachment passed to the target
+   */
+  public void queueKeyed(Object key, ThreadTarget<S, A> target, A attachment) {
+    KeyedRun<S, A> run = new KeyedRun<>(target, attachment);
+    while (!exit) {
+      KeyQueue queue = keys.computeIfAbsent(key, KeyQueue::new);
+      boolean first;
+      synchronized (queue) {
+        if (queue.retired) {
+          // Emptied and taken off the map in between
+          continue;
+        }
+        queue.runs.addLast(run);
+        first = queue.runs.size() == 1;
+      }
+      if (first) {
+        queue(queue, null, target.getPriority());
+      }
+      return;
+    }
+    refuse(target, attachment);
+  }
+
+  /**
+   * Submit a task for its result, to run in order with the other runs
+   * queued with the same key
+   *
+   * @param key The key, compared with equals
+   * @param task The task to be run
+   * @param attachment The attachment passed to the task
+   * @param <R> The type of the result
+   * @return The future completing with the result of the task
+   * @see #queueKeyed(Object, ThreadTarget, Object)
+   */
+  public <R> CompletableFuture<R> submitKeyed(Object key, ThreadTask<S, A, R> task, A attachment) {
+    Submission<R> submission = new Submission<>(task);
+    queueKeyed(key, submission, attachment);
+    return submission;
+  }
+
+  /**
+   * Queue a batch of targets at once, in the iteration order of the map.
+   * The idle workers are woken once for the whole batch.
+   *
+   * @param batch The targets with their attachments
+   */
+  public void queueAll(Map<? extends ThreadTarget<S, A>, ? extends A> batch) {
+    int added = 0;
+    for(Map.Entry<? extends ThreadTarget<S, A>, ? extends A> entry:batch.entrySet()) {
+      if (offer(entry.getKey(), entry.getValue(), entry.getKey().getPriority().ordinal(), false)) {
+        added += 1;
+      }
+    }
+    if (added > 0 && !signal(added)) {
+      grow();
+    }
+  }
+
+  /* Add a run of the target, or replace the attachment of its pending run.
+   * Returns true when a run was added */
+  private boolean offer(ThreadTarget<S, A> target, A attachment, int lane, boolean reserved) {
+    Task<S, A> task = null;
+    while (!exit) {
+      Task<S, A> existing = pending.get(target);
+      if (existing != null && existing.batch != null) {
+        if (!reserved && capacity != Integer.MAX_VALUE) {
+          // Every attachment of a batch takes a place of its own
+          if (!reserve(target, attachment)) {
+            return false;
+          }
+          reserved = true;
+          continue;
+        }
+        // Once added the attachment is part of the batch the worker takes,
+        // along with its place
+        if (existing.append(attachment)) {
+          return false;
+        }
+        continue;
+      } else if (existing != null) {
+        existing.attachment = attachment;
+        // A worker takes the run out of the map before reading the
+        // attachment, so the run still being there means it is not lost
+        if (pending.get(target) == existing) {
+          if (reserved) {
+            release();
+          }
+          return false;
+        }
+        continue;
+      }
+
+      if (!reserved && capacity != Integer.MAX_VALUE) {
+        if (!reserve(target, attachment)) {
+          return false;
+        }
+        // Look for a waiting run again, the wait may have been long
+        reserved = true;
+        continue;
+      }
+
+      if (task == null) {
+        task = new Task<>(target, attachment);
+      }
+      if (pending.putIfAbsent(target, task) == null) {
+        WorkerThread worker = current.get();
+        if (worker != null) {
+          worker.deques[lane].addLast(task);
+        } else {
+          injected[lane].offer(task);
+        }
+        // Added while the pool was stopping, after the waiting runs were
+        // cleared, no worker is going to take it
+        if (exit && pending.remove(target, task)) {
+          break;
+        }
+        return true;
+      }
+    }
+    if (reserved) {
+      release();
+    }
+    refuse(target, attachment);
+    return false;
+  }
+
+  /* Drop a run queued once the pool has stopped */
+  private void refuse(ThreadTarget<S, A> target, A attachment) {
+    if (target instanceof ThreadPool.Submission) {
+      ((Submission<?>) target).reject();
+    } else {
+      drop(target, attachment);
+    }
+  }
 
-        synchronized (targets) {
-          while (!exit && targets.isEmpty()) {
-            try {
-              targets.wait();
-            } catch (InterruptedException ex) {
-              // Unexpected error
-              break;
+  /* Take a place in the bounded queue, or deal with the run as per the
+   * overflow policy. Returns false when the run is not to be queued */
+  private boolean reserve(ThreadTarget<S, A> target, A attachment) {
+    long deadline = System.nanoTime() + blockTimeout;
+    while (!exit) {
+      int count = queued.get();
+      if (count < capacity) {
+        if (queued.compareAndSet(count, count + 1)) {
+          return true;
+        }
+        continue;
+      }
+
+      switch (overflowPolicy) {
+        case BLOCK:
+        case BLOCK_TIMEOUT:
+          if (current.get() != null) {
+            // A worker waiting for a place that only the workers can make
+            // could wait forever, it runs the target the same as CALLER_RUNS
+            rejected.incrementAndGet();
+            runTask(target, attachment);
+            return false;
+          }
+          if (awaitSpace(overflowPolicy == OverflowPolicy.BLOCK ? 0 : deadline)) {
+            continue;
+          }
+          break;
+        case DROP_OLDEST:
+          if (!dropOldest()) {
+            // The waiting runs are being taken by the workers right now
+            Thread.yield();
+          }
+          continue;
+        case CALLER_RUNS:
+          rejected.incrementAndGet();
+          runTask(target, attachment);
+          return false;
+        default:
+          break;
+      }
+      rejected.incrementAndGet();
+      drop(target, attachment);
+      return false;
+    }
+    return false;
+  }
+
+  /* Wait for a place in the queue until the deadline, 0 for no deadline.
+   * Returns false on timeout or interruption */
+  private boolean awaitSpace(long deadline) {
+    synchronized (space) {
+      spaceWaiters += 1;
+      try {
+        while (!exit && queued.get() >= capacity) {
+          if (deadline == 0) {
+            space.wait();
+          } else {
+            long wait = deadline - System.nanoTime();
+            if (wait <= 0) {
+              return false;
             }
+            TimeUnit.NANOSECONDS.timedWait(space, wait);
           }
         }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return false;
+      } finally {
+        spaceWaiters -= 1;
+      }
+    }
+    return !exit;
+  }
 
-        if (exit) {
+  /* Give back a place in the bounded queue */
+  private void release() {
+    release(1);
+  }
+
+  /* Give back the places of a run, more than one for a batch */
+  private void release(int places) {
+    queued.addAndGet(-places);
+    if (spaceWaiters > 0) {
+      synchronized (space) {
+        if (places == 1) {
+          space.notify();
+        } else {
+          space.notifyAll();
+        }
+      }
+    }
+  }
+
+  /* Drop the oldest waiting run of the lowest lane, false when none could
+   * be found */
+  private boolean dropOldest() {
+    Task<S, A> task = null;
+    for(int lane = LANES - 1; lane >= 0 && task == null; --lane) {
+      task = injected[lane].poll();
+      for(WorkerThread worker:workers) {
+        if (task != null) {
           break;
         }
+        task = worker.deques[lane].pollFirst();
+      }
+    }
+    if (task == null || !pending.remove(task.target, task)) {
+      return false;
+    }
+    if (task.batch != null) {
+      List<A> batch = task.close();
+      release(batch.size());
+      rejected.addAndGet(batch.size());
+      try {
+        ((BatchThreadTarget<S, A>) task.target).onDropBatch(source, batch);
+      } catch (RuntimeException ex) {
+        LOGGER.error("Exception in dropping task - ", ex);
+      }
+    } else {
+      release();
+      rejected.incrementAndGet();
+      drop(task.target, task.attachment);
+    }
+    return true;
+  }
 
-        Map.Entry<ThreadTarget<S,A>, A> item = null;
-        synchronized (targets) {
-          Iterator<Map.Entry<ThreadTarget<S, A>, A>> it = targets.entrySet().iterator();
-          if (it.hasNext()) {
-            item = it.next();
-            it.remove();
+  private void drop(ThreadTarget<S, A> target, A attachment) {
+    try {
+      target.onDrop(source, attachment);
+    } catch (RuntimeException ex) {
+      LOGGER.error("Exception in dropping task - ", ex);
+    }
+  }
+
+  private void runTask(ThreadTarget<S, A> target, A attachment) {
+    try {
+      target.onRun(source, attachment);
+    } catch (RuntimeException ex) {
+      // We cannot allow an exception on the thread to break our application
+      LOGGER.error("Exception in task - ", ex);
+      ex.printStackTrace();
+    }
+  }
+
+  /* Run the attachments taken from a batch run */
+  private void runBatch(ThreadTarget<S, A> target, List<A> attachments) {
+    try {
+      ((BatchThreadTarget<S, A>) target).onRunBatch(source, attachments);
+    } catch (RuntimeException ex) {
+      LOGGER.error("Exception in task - ", ex);
+      ex.printStackTrace();
+    }
+  }
+
+  /* Wake up to the given number of parked workers, false when there were
+   * not enough of them */
+  private boolean signal(int count) {
+    while (count > 0) {
+      WorkerThread worker = idle.poll();
+      if (worker == null) {
+        return false;
+      }
+      if (worker.wake()) {
+        count -= 1;
+      }
+    }
+    return true;
+  }
+
+  /* A run of a target, the attachment is replaced when queued again, or
+   * added to the batch of a batch target */
+  private static final class Task<S, A> {
+    private final ThreadTarget<S, A> target;
+    private volatile A attachment;
+    private final ArrayList<A> batch;     /* Guarded by this, null unless a batch target */
+    private boolean closed;
+    private final long queued = System.nanoTime();
+
+    private Task(ThreadTarget<S, A> target, A attachment) {
+      this.target = target;
+      this.attachment = attachment;
+      if (target instanceof BatchThreadTarget) {
+        batch = new ArrayList<>();
+        batch.add(attachment);
+      } else {
+        batch = null;
+      }
+    }
+
+    /* Add to the batch, false once the batch has been taken */
+    private synchronized boolean append(A attachment) {
+      if (closed) {
+        return false;
+      }
+      batch.add(attachment);
+      return true;
+    }
+
+    /* Take the batch, after the run is out of the pending map */
+    private synchronized List<A> close() {
+      closed = true;
+      return batch;
+    }
+  }
+
+  /* A submitted task, the target of its own single run and the future of
+   * its result */
+  private final class Submission<R> extends CompletableFuture<R> implements ThreadTarget<S, A> {
+    private final ThreadTask<S, A, R> task;
+    private Thread runner;          /* The thread running the task, guarded by this */
+
+    private Submission(ThreadTask<S, A, R> task) {
+      this.task = task;
+    }
+
+    @Override
+    public void onRun(S source, A attachment) {
+      synchronized (this) {
+        if (isDone()) {
+          return;
+        }
+        runner = Thread.currentThread();
+      }
+
+      R result = null;
+      Throwable failure = null;
+      try {
+        result = task.call(source, attachment);
+      } catch (Throwable ex) {
+        failure = ex;
+      } finally {
+        synchronized (this) {
+          runner = null;
+        }
+        // The interrupt of a cancel is meant for this task alone
+        Thread.interrupted();
+      }
+
+      if (failure == null) {
+        complete(result);
+      } else {
+        completeExceptionally(failure);
+      }
+    }
+
+    @Override
+    public void onDrop(S source, A attachment) {
+      completeExceptionally(new RejectedExecutionException("Dropped by the pool"));
+    }
+
+    /* Fail the future as the pool has stopped, unless the task is running */
+    private synchronized void reject() {
+      if (runner == null) {
+        completeExceptionally(new RejectedExecutionException("The pool has stopped"));
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (!super.cancel(mayInterruptIfRunning)) {
+        return isCancelled();
+      }
+      ThreadPool.this.cancel(this);
+      synchronized (this) {
+        if (runner != null && mayInterruptIfRunning) {
+          runner.interrupt();
+        }
+      }
+      return true;
+    }
+  }
+
+  /* A run queued with a key */
+  private static final class KeyedRun<S, A> {
+    private final ThreadTarget<S, A> target;
+    private final A attachment;
+
+    private KeyedRun(ThreadTarget<S, A> target, A attachment) {
+      this.target = target;
+      this.attachment = attachment;
+    }
+  }
+
+  /* The runs waiting on a key, queued in the pool as a single target while
+   * it has runs. The run at the head stays there until it has run, so that
+   * a run queued meanwhile does not queue the key a second time */
+  private final class KeyQueue implements ThreadTarget<S, A> {
+    private final Object key;
+    private final ArrayDeque<KeyedRun<S, A>> runs = new ArrayDeque<>();   /* Guarded by this */
+    private boolean retired;
+    private boolean pooled;       /* Taken from the queue by a worker, holding the place of the key */
+
+    private KeyQueue(Object key) {
+      this.key = key;
+    }
+
+    @Override
+    public void onRun(S source, A attachment) {
+      // Run by the thread queueing the key on overflow, with no place in the
+      // pool to go back to, the key is then drained right here
+      boolean held = pooled;
+      pooled = false;
+
+      KeyedRun<S, A> run;
+      synchronized (this) {
+        run = runs.peekFirst();
+      }
+      int left = drainBatch;
+      while (run != null) {
+        runTask(run.target, run.attachment);
+
+        synchronized (this) {
+          runs.pollFirst();
+          run = runs.peekFirst();
+          if (run == null) {
+            retired = true;
+            keys.remove(key, this);
+          }
+        }
+        if (held && --left == 0 && run != null) {
+          // Let the other keys have the worker, the rest runs later
+          requeue(this, run.target.getPriority());
+          return;
+        }
+      }
+      if (held && capacity != Integer.MAX_VALUE) {
+        release();
+      }
+    }
+
+    @Override
+    public void onDrop(S source, A attachment) {
+      List<KeyedRun<S, A>> dropped;
+      synchronized (this) {
+        retired = true;
+        keys.remove(key, this);
+        dropped = new ArrayList<>(runs);
+        runs.clear();
+      }
+      for(KeyedRun<S, A> run:dropped) {
+        drop(run.target, run.attachment);
+      }
+    }
+
+    /* Give up the runs of the key as the pool stops, failing the futures of
+     * the submissions among them */
+    private void stop() {
+      List<KeyedRun<S, A>> left;
+      synchronized (this) {
+        retired = true;
+        left = new ArrayList<>(runs);
+        runs.clear();
+      }
+      for(KeyedRun<S, A> run:left) {
+        if (run.target instanceof ThreadPool.Submission) {
+          ((Submission<?>) run.target).reject();
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static final AtomicIntegerFieldUpdater<ThreadPool.WorkerThread> PARKED =
+          AtomicIntegerFieldUpdater.newUpdater(ThreadPool.WorkerThread.class, "parked");
+
+  class WorkerThread implements Runnable {
+    private final ConcurrentLinkedDeque<Task<S, A>>[] deques;
+    private final int[] credits = new int[LANES];     /* The weighted round robin of the lanes */
+    private int lane;                                 /* The lane of the last run taken */
+    private int burst;                                /* The runs left to take from the lane in a row */
+    private volatile Thread thread;
+    volatile int parked;
+
+    @SuppressWarnings("unchecked")
+    WorkerThread() {
+      deques = (ConcurrentLinkedDeque<Task<S, A>>[]) new ConcurrentLinkedDeque<?>[LANES];
+      for(int i = 0; i < LANES; ++i) {
+        deques[i] = new ConcurrentLinkedDeque<>();
+      }
+    }
+
+    /* Unpark the worker if it is parked, true if it was */
+    boolean wake() {
+      if (PARKED.compareAndSet(this, 1, 0)) {
+        LockSupport.unpark(thread);
+        return true;
+      }
+      return false;
+    }
+
+    /* The next run for this worker, null when there is none anywhere */
+    private Task<S, A> find() {
+      if (burst > 0) {
+        burst -= 1;
+        Task<S, A> task = take(lane);
+        if (task != null) {
+          return task;
+        }
+      }
+
+      int due = starved();
+      if (due < 0) {
+        due = nextLane();
+      }
+      Task<S, A> task = take(due);
+      lane = due;
+      // The lane due is empty, fall back to the others in priority order
+      for(int i = 0; i < LANES && task == null; ++i) {
+        if (i != due) {
+          task = take(i);
+          lane = i;
+        }
+      }
+      burst = task == null ? 0 : drainBatch - 1;
+      return task;
+    }
+
+    /* The lane due as per the smooth weighted round robin */
+    private int nextLane() {
+      int[] w = weights;
+      int total = 0;
+      int best = 0;
+      for(int i = 0; i < LANES; ++i) {
+        credits[i] += w[i];
+        total += w[i];
+        if (credits[i] > credits[best]) {
+          best = i;
+        }
+      }
+      credits[best] -= total;
+      return best;
+    }
+
+    /* The lowest lane with a run waiting past the starvation timeout, -1
+     * when none */
+    private int starved() {
+      long timeout = starvationTimeout;
+      if (timeout <= 0) {
+        return -1;
+      }
+      long now = System.nanoTime();
+      for(int lane = LANES - 1; lane > 0; --lane) {
+        Task<S, A> head = injected[lane].peek();
+        if (head != null && now - head.queued >= timeout) {
+          return lane;
+        }
+      }
+      return -1;
+    }
+
+    /* A run from the lane, from this worker, from outside or stolen */
+    private Task<S, A> take(int lane) {
+      Task<S, A> task = deques[lane].pollLast();
+      if (task == null) {
+        task = injected[lane].poll();
+      }
+      if (task == null) {
+        WorkerThread[] list = workers;
+        int start = ThreadLocalRandom.current().nextInt(list.length);
+        for(int i = 0; i < list.length && task == null; ++i) {
+          WorkerThread victim = list[(start + i) % list.length];
+          if (victim != this) {
+            task = victim.deques[lane].pollFirst();
           }
         }
+      }
+      return task;
+    }
+
+    /* Leave the pool after the idle timeout if above the minimum, true if
+     * retired */
+    private boolean retire() {
+      // Nobody can wake this worker once it is not parked
+      if (!PARKED.compareAndSet(this, 1, 0)) {
+        return false;
+      }
+      int count = threads.get();
+      while (count > minThreads) {
+        if (threads.compareAndSet(count, count - 1)) {
+          synchronized (ThreadPool.this) {
+            WorkerThread[] list = workers;
+            WorkerThread[] update = Arrays.copyOf(list, list.length - 1);
+            for(int i = 0, j = 0; i < list.length; ++i) {
+              if (list[i] != this) {
+                update[j++] = list[i];
+              }
+            }
+            workers = update;
+          }
+          threadsRetired.incrementAndGet();
+          resized(count - 1, SizingReason.IDLE_TIMEOUT);
+          return true;
+        }
+        count = threads.get();
+      }
+      return false;
+    }
 
-        if (item != null) {
-          try {
-            item.getKey().onRun(source, item.getValue());
-          } catch (RuntimeException ex) {
-            // We cannot allow an exception on the thread to break our application
-            LOGGER.error("Exception in task - ", ex);
-            ex.printStackTrace();
+    @Override
+    public void run() {
+      thread = Thread.currentThread();
+      current.set(this);
+      while(!exit) {
+        Task<S, A> task = find();
+        for(int i = 0; i < SPINS && task == null; ++i) {
+          // Runs often come in bursts, a short spin saves parking in between
+          Thread.yield();
+          task = find();
+        }
+        if (task == null) {
+          // Get listed as idle before looking once more, so that a run
+          // queued in between either is found or wakes this worker up
+          parked = 1;
+          idle.offer(this);
+          task = find();
+          if (task == null) {
+            long deadline = System.nanoTime() + idleTimeout;
+            while (parked == 1 && !exit) {
+              if (threads.get() <= minThreads) {
+                LockSupport.park(this);
+              } else if (deadline - System.nanoTime() > 0) {
+                LockSupport.parkNanos(this, deadline - System.nanoTime());
+              } else if (retire()) {
+                current.remove();
+                return;
+              }
+            }
+            continue;
+          }
+          PARKED.compareAndSet(this, 1, 0);
+        }
+
+        if (pending.remove(task.target, task)) {
+          List<A> batch = task.batch == null ? null : task.close();
+          if (task.target instanceof ThreadPool.KeyQueue) {
+            // The key gives back its place once emptied, or keeps it when
+            // queued again
+            ((KeyQueue) task.target).pooled = true;
+          } else if (capacity != Integer.MAX_VALUE) {
+            release(batch == null ? 1 : batch.size());
+          }
+          if (batch != null) {
+            runBatch(task.target, batch);
+          } else {
+            runTask(task.target, task.attachment);
+          }
+          if (!pending.isEmpty() && idle.isEmpty()) {
+            grow();
           }
         }
       }
+      current.remove();
     }
   }
 }
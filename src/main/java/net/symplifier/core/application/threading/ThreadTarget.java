@@ -6,4 +6,25 @@ package net.symplifier.core.application.threading;
 public interface ThreadTarget <S, A>{
 
   void onRun(S source, A attachment);
+
+  /**
+   * Called in place of onRun when a bounded pool drops the run, or when the
+   * run is queued after the pool has stopped, on the thread that made the
+   * pool drop it. Does nothing by default.
+   *
+   * @param source The source of the pool
+   * @param attachment The attachment of the dropped run
+   */
+  default void onDrop(S source, A attachment) {
+  }
+
+  /**
+   * The lane of the pool in which the runs of this target wait, unless
+   * another one is given while queueing
+   *
+   * @return The priority, {@link ThreadPool.Priority#NORMAL} by default
+   */
+  default ThreadPool.Priority getPriority() {
+    return ThreadPool.Priority.NORMAL;
+  }
 }
@@ -0,0 +1,23 @@
+package net.symplifier.core.application.threading;
+
+/**
+ * A run submitted to the pool that gives back a result, see
+ * {@link ThreadPool#submit(ThreadTask, Object)}
+ *
+ * @author ranjan
+ */
+@FunctionalInterface
+public interface ThreadTask <S, A, R> {
+
+  /**
+   * Called on a thread of the pool. A task that runs for long should check
+   * the interrupted flag of the thread, which is raised when the task is
+   * cancelled while running.
+   *
+   * @param source The source of the pool
+   * @param attachment The attachment given while submitting
+   * @return The result with which the future completes
+   * @throws Exception to complete the future exceptionally
+   */
+  R call(S source, A attachment) throws Exception;
+}
@@ -0,0 +1,81 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the bulk registration of schedules with {@link Scheduler#addAll}
+ *
+ * @author ranjan
+ */
+public class BulkAddTest {
+	private static final long START = 1767225600000L;		/* 2026-01-01T00:00:00Z */
+
+	private Scheduler scheduler;
+
+	@Before
+	public void setUp() {
+		scheduler = Scheduler.builder().clock(new VirtualClock(START)).shards(2).build();
+	}
+
+	/* A schedule with the task on it, but not on the Scheduler */
+	private Schedule detached(String cron, AtomicInteger runs) {
+		Schedule schedule = Schedule.cron(cron);
+		schedule.setScheduler(scheduler);
+		schedule.addTask((source, attachment) -> runs.incrementAndGet());
+		scheduler.advance(0);
+		scheduler.remove(schedule);
+		scheduler.advance(0);
+		return schedule;
+	}
+
+	@Test
+	public void testAllSchedulesAdded() {
+		AtomicInteger runs = new AtomicInteger();
+		List<Schedule> list = new ArrayList<>();
+		for(int i = 0; i < 1000; ++i) {
+			list.add(detached("0 * * * * *", runs));
+		}
+		assertEquals(0, runs.get());
+
+		scheduler.addAll(list);
+		for(Schedule schedule:list) {
+			assertTrue(scheduler.contains(schedule));
+		}
+		scheduler.advance(10 * 60000L);
+		assertEquals(10 * 1000, runs.get());
+	}
+
+	@Test
+	public void testDuplicateInBatchTakesSinglePlace() {
+		AtomicInteger dupRuns = new AtomicInteger();
+		AtomicInteger otherRuns = new AtomicInteger();
+		Schedule dup = detached("0 * * * * *", dupRuns);
+		Schedule other = detached("0 * * * * *", otherRuns);
+
+		scheduler.addAll(Arrays.asList(dup, other, dup));
+		long now = scheduler.getClock().currentTimeMillis();
+		assertEquals(2 * 10, scheduler.firings(now, now + 10 * 60000L, (schedule, time) -> true));
+
+		scheduler.advance(60000L);
+		assertEquals(1, dupRuns.get());
+		assertEquals(1, otherRuns.get());
+
+		scheduler.remove(dup);
+		scheduler.advance(60000L);
+		assertFalse(scheduler.contains(dup));
+		now = scheduler.getClock().currentTimeMillis();
+		assertEquals(10, scheduler.firings(now, now + 10 * 60000L, (schedule, time) -> true));
+		assertEquals(1, dupRuns.get());
+		assertEquals(2, otherRuns.get());
+	}
+}
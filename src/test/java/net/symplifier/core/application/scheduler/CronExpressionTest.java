@@ -0,0 +1,103 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the parsing of the cron expressions and the run times of the
+ * schedules made from them, in UTC
+ *
+ * @author ranjan
+ */
+public class CronExpressionTest {
+	private static final long FRIDAY = utc("2026-10-16T16:53:00Z");
+
+	private static long utc(String instant) {
+		return Instant.parse(instant).toEpochMilli();
+	}
+
+	/* The next run times of the expression, -1 once it stops running */
+	private static long[] runs(String expression, long from, int count) {
+		Schedule schedule = Schedule.cron(expression, ZoneOffset.UTC);
+		long[] times = new long[count];
+		for(int i = 0; i < count; ++i) {
+			from = from == -1 ? -1 : schedule.peekNextRunTime(from);
+			times[i] = from;
+		}
+		return times;
+	}
+
+	@Test
+	public void testFieldsCompiledToBits() {
+		CronExpression cron = CronExpression.parse("15,45 0-2 */6 1/10 JAN,oct ?");
+		assertEquals((1L << 15) | (1L << 45), cron.seconds);
+		assertEquals(0b111L, cron.minutes);
+		assertEquals((1 << 0) | (1 << 6) | (1 << 12) | (1 << 18), cron.hours);
+		assertEquals((1 << 1) | (1 << 11) | (1 << 21) | (1 << 31), cron.days);
+		assertEquals((1 << 1) | (1 << 10), cron.months);
+	}
+
+	@Test
+	public void testOfficeHours() {
+		assertArrayEquals(new long[] {
+						utc("2026-10-16T16:55:00Z"),
+						utc("2026-10-16T17:00:00Z"),
+						utc("2026-10-16T17:05:00Z")
+		}, runs("0 */5 9-17 * * MON-FRI", FRIDAY, 3));
+		assertEquals(utc("2026-10-19T09:00:00Z"), runs("0 */5 9-17 * * MON-FRI", utc("2026-10-16T17:55:00Z"), 1)[0]);
+	}
+
+	@Test
+	public void testSundayAsZeroOrSeven() {
+		long[] sunday = {utc("2026-10-18T02:30:00Z"), utc("2026-10-25T02:30:00Z")};
+		assertArrayEquals(sunday, runs("30 2 * * 0", FRIDAY, 2));
+		assertArrayEquals(sunday, runs("30 2 * * 7", FRIDAY, 2));
+		assertArrayEquals(sunday, runs("30 2 * * SUN", FRIDAY, 2));
+	}
+
+	@Test
+	public void testStepFromValueAndMonthNames() {
+		assertArrayEquals(new long[] {
+						utc("2026-10-21T12:00:00Z"),
+						utc("2026-10-31T12:00:00Z"),
+						utc("2027-01-01T12:00:00Z"),
+						utc("2027-01-11T12:00:00Z")
+		}, runs("0 0 12 1/10 jan,oct ?", FRIDAY, 4));
+	}
+
+	@Test
+	public void testYearsAndLeapDays() {
+		assertArrayEquals(new long[] {
+						utc("2028-02-29T00:00:00Z"),
+						utc("2032-02-29T00:00:00Z"),
+						utc("2036-02-29T00:00:00Z"),
+						utc("2040-02-29T00:00:00Z"),
+						-1
+		}, runs("0 0 0 29 2 * 2028-2040/4", FRIDAY, 5));
+	}
+
+	@Test
+	public void testNeverMatchingDate() {
+		assertEquals(-1, runs("0 0 0 31 2 *", FRIDAY, 1)[0]);
+	}
+
+	@Test
+	public void testInvalidExpressions() {
+		String[] invalid = {"* * *", "* * * * * * * *", "61 * * * * *", "0 0 0 0 * *", "x * * * *",
+						"*/0 * * * *", "5-1 * * * *", "* * * * 13 *", "* * * * FOO"};
+		for(String expression:invalid) {
+			try {
+				Schedule.cron(expression);
+				fail("Parsed " + expression);
+			} catch (IllegalArgumentException ex) {
+				// Expected
+			}
+		}
+	}
+}
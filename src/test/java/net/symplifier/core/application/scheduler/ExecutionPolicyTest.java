@@ -0,0 +1,179 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the overlap control of the runs of the tasks as per their
+ * ExecutionPolicy. The runs handed over to the pool are held back and run
+ * by the test to make them overlap.
+ *
+ * @author ranjan
+ */
+public class ExecutionPolicyTest {
+	private Schedule schedule;
+	private final AtomicInteger runs = new AtomicInteger();
+	private final ScheduledTask task = (source, attachment) -> runs.incrementAndGet();
+
+	@Before
+	public void setUp() {
+		schedule = new Timer();
+		schedule.addTask(task);
+	}
+
+	private static void run(ScheduledTask target) {
+		target.onRun(null, null);
+	}
+
+	@Test
+	public void testUnlimitedHandsOverTask() {
+		assertSame(task, schedule.dispatch(task));
+		assertSame(task, schedule.dispatch(task));
+		assertEquals(0, schedule.getOverlappedExecutions());
+	}
+
+	@Test
+	public void testSkipIfRunning() {
+		schedule.setExecutionPolicy(ExecutionPolicy.SKIP_IF_RUNNING);
+		ScheduledTask first = schedule.dispatch(task);
+		assertNotNull(first);
+		assertNull(schedule.dispatch(task));
+		assertNull(schedule.dispatch(task));
+		assertEquals(2, schedule.getSkippedExecutions());
+
+		run(first);
+		assertEquals(1, runs.get());
+		assertNotNull(schedule.dispatch(task));
+	}
+
+	@Test
+	public void testQueueOne() {
+		schedule.setExecutionPolicy(ExecutionPolicy.QUEUE_ONE);
+		ScheduledTask first = schedule.dispatch(task);
+		assertNull(schedule.dispatch(task));
+		assertNull(schedule.dispatch(task));
+		assertEquals(1, schedule.getOverlappedExecutions());
+		assertEquals(1, schedule.getSkippedExecutions());
+
+		// The waiting run goes right after the running one
+		run(first);
+		assertEquals(2, runs.get());
+		assertNotNull(schedule.dispatch(task));
+	}
+
+	@Test
+	public void testConcurrentLimit() {
+		schedule.setExecutionPolicy(ExecutionPolicy.concurrent(3));
+		ScheduledTask first = schedule.dispatch(task);
+		ScheduledTask second = schedule.dispatch(task);
+		ScheduledTask third = schedule.dispatch(task);
+		assertNotSame(first, second);
+		assertNotSame(second, third);
+		assertNull(schedule.dispatch(task));
+		assertEquals(2, schedule.getOverlappedExecutions());
+		assertEquals(1, schedule.getSkippedExecutions());
+
+		run(second);
+		assertNotNull(schedule.dispatch(task));
+		assertNull(schedule.dispatch(task));
+	}
+
+	@Test
+	public void testTaskPolicyOverSchedulePolicy() {
+		ScheduledTask own = new ScheduledTask() {
+			@Override
+			public void onRun(Scheduler source, Schedule attachment) {
+				runs.incrementAndGet();
+			}
+
+			@Override
+			public ExecutionPolicy getExecutionPolicy() {
+				return ExecutionPolicy.UNLIMITED;
+			}
+		};
+		schedule.addTask(own);
+		schedule.setExecutionPolicy(ExecutionPolicy.SKIP_IF_RUNNING);
+
+		assertNotNull(schedule.dispatch(task));
+		assertNull(schedule.dispatch(task));
+		assertSame(own, schedule.dispatch(own));
+		assertSame(own, schedule.dispatch(own));
+	}
+
+	@Test
+	public void testFailedRunIsOver() {
+		schedule.setExecutionPolicy(ExecutionPolicy.SKIP_IF_RUNNING);
+		ScheduledTask failing = (source, attachment) -> {
+			throw new IllegalStateException("Failing on purpose");
+		};
+		run(schedule.dispatch(failing));
+		assertNotNull(schedule.dispatch(failing));
+	}
+
+	@Test
+	public void testDroppedRunIsOver() {
+		schedule.setExecutionPolicy(ExecutionPolicy.QUEUE_ONE);
+		ScheduledTask first = schedule.dispatch(task);
+		assertNull(schedule.dispatch(task));
+		first.onDrop(null, null);
+
+		// The waiting run went along with the dropped one
+		assertEquals(2, schedule.getSkippedExecutions());
+		assertEquals(0, runs.get());
+		assertNotNull(schedule.dispatch(task));
+	}
+
+	@Test
+	public void testAtLeastOneConcurrent() {
+		assertSame(ExecutionPolicy.SKIP_IF_RUNNING, ExecutionPolicy.concurrent(1));
+		try {
+			ExecutionPolicy.concurrent(0);
+			fail("No concurrent runs were taken");
+		} catch (IllegalArgumentException ex) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testSkippedOnPool() throws InterruptedException {
+		Scheduler scheduler = Scheduler.builder().poolSize(2).build();
+		CountDownLatch gate = new CountDownLatch(1);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger most = new AtomicInteger();
+		Timer timer = new Timer(scheduler, (source, attachment) -> {
+			most.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try {
+				gate.await(5, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			running.decrementAndGet();
+		});
+		timer.setExecutionPolicy(ExecutionPolicy.SKIP_IF_RUNNING);
+		try {
+			timer.start(0, 10);
+			long end = System.currentTimeMillis() + 5000;
+			while (timer.getSkippedExecutions() < 3) {
+				assertTrue("Nothing skipped", System.currentTimeMillis() < end);
+				Thread.sleep(5);
+			}
+			assertEquals(1, most.get());
+		} finally {
+			gate.countDown();
+			timer.cancel();
+			scheduler.stop();
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the Timers running at a fixed rate and the policies on the runs they
+ * miss while behind
+ *
+ * @author ranjan
+ */
+public class FixedRateTimerTest {
+	private static final long START = 1767225600000L;		/* 2026-01-01T00:00:00Z */
+
+	private VirtualClock clock;
+	private Scheduler scheduler;
+	private Timer timer;
+	private final List<Long> runs = new ArrayList<>();
+	private final List<Long> missed = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		clock = new VirtualClock(START);
+		scheduler = Scheduler.builder().clock(clock).build();
+		timer = new Timer(scheduler, (source, attachment) -> {
+			runs.add(clock.currentTimeMillis() - START);
+			missed.add(timer.getMissedRuns());
+		});
+	}
+
+	/* Run on time once, then fall behind by the given milliseconds */
+	private void fallBehind(long millis) {
+		scheduler.advance(100);
+		clock.advance(millis, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void testRateKeptWhenLate() {
+		timer.startAtFixedRate(100, 100);
+		scheduler.advance(100);
+		clock.advance(130, TimeUnit.MILLISECONDS);
+		scheduler.advance(100);
+
+		// The run late at 230 does not push the later runs
+		assertEquals(Arrays.asList(100L, 230L, 300L), runs);
+		assertEquals(0, timer.getSkippedRuns());
+	}
+
+	@Test
+	public void testSkip() {
+		timer.setMissedRunPolicy(Timer.MissedRunPolicy.SKIP);
+		timer.startAtFixedRate(100, 100);
+		fallBehind(550);
+		scheduler.advance(150);
+
+		assertEquals(Arrays.asList(100L, 650L, 700L, 800L), runs);
+		assertEquals(Arrays.asList(0L, 0L, 0L, 0L), missed);
+		assertEquals(4, timer.getSkippedRuns());
+	}
+
+	@Test
+	public void testCoalesce() {
+		timer.setMissedRunPolicy(Timer.MissedRunPolicy.COALESCE);
+		timer.startAtFixedRate(100, 100);
+		fallBehind(550);
+		scheduler.advance(150);
+
+		assertEquals(Arrays.asList(100L, 650L, 700L, 800L), runs);
+		assertEquals(Arrays.asList(0L, 4L, 0L, 0L), missed);
+		assertEquals(4, timer.getSkippedRuns());
+	}
+
+	@Test
+	public void testFireAll() {
+		timer.setMissedRunPolicy(Timer.MissedRunPolicy.FIRE_ALL);
+		timer.startAtFixedRate(100, 100);
+		fallBehind(550);
+		scheduler.advance(150);
+
+		assertEquals(Arrays.asList(100L, 650L, 650L, 650L, 650L, 650L, 700L, 800L), runs);
+		assertEquals(0, timer.getSkippedRuns());
+	}
+
+	@Test
+	public void testFireAllUpToMaxCatchUp() {
+		timer.setMissedRunPolicy(Timer.MissedRunPolicy.FIRE_ALL);
+		timer.setMaxCatchUp(2);
+		timer.startAtFixedRate(100, 100);
+		fallBehind(550);
+		scheduler.advance(150);
+
+		assertEquals(Arrays.asList(100L, 650L, 650L, 650L, 700L, 800L), runs);
+		assertEquals(2, timer.getSkippedRuns());
+	}
+
+	@Test
+	public void testMonotonicCoalesce() {
+		timer.setMissedRunPolicy(Timer.MissedRunPolicy.COALESCE);
+		timer.startAtFixedRate(100, 100, TimeUnit.MICROSECONDS);
+		clock.advance(550, TimeUnit.MICROSECONDS);
+		scheduler.step();
+		assertEquals(550000L, clock.nanoTime());
+		scheduler.step();
+
+		assertEquals(Arrays.asList(4L, 0L), missed);
+		assertEquals(4, timer.getSkippedRuns());
+		assertEquals(600000L, clock.nanoTime());
+	}
+}
@@ -0,0 +1,95 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the Timers in the monotonic mode, following the nanosecond clock
+ * with delays finer than a millisecond
+ *
+ * @author ranjan
+ */
+public class MonotonicTimerTest {
+	private static final long START = 1767225600000L;		/* 2026-01-01T00:00:00Z */
+
+	private VirtualClock clock;
+	private Scheduler scheduler;
+	private final List<Long> runs = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		clock = new VirtualClock(START);
+		scheduler = Scheduler.builder().clock(clock).build();
+	}
+
+	/* A timer logging the microseconds at which it ran */
+	private Timer timer() {
+		return new Timer(scheduler, (source, attachment) -> runs.add(clock.nanoTime() / 1000));
+	}
+
+	@Test
+	public void testSubMillisecondDelay() {
+		Timer timer = timer();
+		timer.start(1500, TimeUnit.MICROSECONDS);
+		assertTrue(scheduler.step());
+
+		assertEquals(Arrays.asList(1500L), runs);
+		assertFalse(timer.isScheduled());
+		assertFalse(scheduler.step());
+	}
+
+	@Test
+	public void testSubMillisecondRepeat() {
+		Timer timer = timer();
+		timer.start(500, 250, TimeUnit.MICROSECONDS);
+		scheduler.advance(2);
+
+		assertEquals(Arrays.asList(500L, 750L, 1000L, 1250L, 1500L, 1750L, 2000L), runs);
+		assertTrue(timer.isScheduled());
+		timer.cancel();
+		assertFalse(scheduler.step());
+	}
+
+	@Test
+	public void testMillisecondsOnMonotonicClock() {
+		Timer timer = timer();
+		timer.setMonotonic(true);
+		timer.start(3, 2);
+		scheduler.advance(8);
+
+		assertTrue(timer.monotonic);
+		assertEquals(Arrays.asList(3000L, 5000L, 7000L), runs);
+	}
+
+	@Test
+	public void testRestartTakesLatestDelays() {
+		Timer timer = timer();
+		timer.start(10, TimeUnit.MILLISECONDS);
+		timer.start(100, 100, TimeUnit.MICROSECONDS);
+		assertTrue(scheduler.step());
+		assertTrue(scheduler.step());
+		timer.cancel();
+
+		assertEquals(Arrays.asList(100L, 200L), runs);
+	}
+
+	@Test
+	public void testMonotonicAndWallClockTimersInOrder() {
+		List<String> order = new ArrayList<>();
+		new Timer(scheduler, (source, attachment) -> order.add("wall")).start(1);
+		new Timer(scheduler, (source, attachment) -> order.add("fine")).start(999, TimeUnit.MICROSECONDS);
+		new Timer(scheduler, (source, attachment) -> order.add("late")).start(1001, TimeUnit.MICROSECONDS);
+		scheduler.advance(5);
+
+		assertEquals(Arrays.asList("fine", "wall", "late"), order);
+	}
+}
@@ -0,0 +1,157 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the replay of the ScheduleJournal and the runs it finds missed while
+ * the schedules were not running
+ *
+ * @author ranjan
+ */
+public class ScheduleJournalTest {
+	private static final long START = 1767225600000L;		/* 2026-01-01T00:00:00Z */
+	private static final ScheduledTask NOOP = (source, attachment) -> { };
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("schedule", ".journal");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+		new File(file.getPath() + ".compact").delete();
+	}
+
+	/* Journal the schedules for 2.5 seconds and close the journal */
+	private void record() throws IOException {
+		ScheduleJournal journal = new ScheduleJournal(file, 4096, 50);
+		Scheduler scheduler = Scheduler.builder().clock(new VirtualClock(START)).journal(journal).build();
+
+		Timer once = new Timer(scheduler, NOOP);
+		once.setJournalId("once");
+		once.start(10000);
+		Timer rate = new Timer(scheduler, NOOP);
+		rate.setJournalId("rate");
+		rate.startAtFixedRate(0, 1000);
+		Timer monotonic = new Timer(scheduler, NOOP);
+		monotonic.setJournalId("monotonic");
+		monotonic.start(0, 1, TimeUnit.HOURS);
+		Timer gone = new Timer(scheduler, NOOP);
+		gone.setJournalId("gone");
+		gone.start(5000);
+		Schedule cron = Schedule.cron("0 * * * * *");
+		cron.setScheduler(scheduler);
+		cron.setJournalId("cron");
+		cron.addTask(NOOP);
+
+		scheduler.advance(2500);
+		gone.cancel();
+		scheduler.advance(0);
+		journal.close();
+	}
+
+	/* A Scheduler on the journal, with the clock the given time after the recording */
+	private static Scheduler reopened(ScheduleJournal journal, long down) {
+		return Scheduler.builder().clock(new VirtualClock(START + 2500 + down)).journal(journal).build();
+	}
+
+	@Test
+	public void testPendingSchedulesReplayed() throws IOException {
+		record();
+		ScheduleJournal journal = ScheduleJournal.open(file);
+		try {
+			assertEquals(new HashSet<>(Arrays.asList("once", "rate", "monotonic", "cron")), new HashSet<>(journal.getIds()));
+			assertNull(journal.getEntry("gone"));
+			assertEquals(START + 2000, journal.getEntry("rate").getLastRunTime());
+			assertEquals(START + 3000, journal.getEntry("rate").getNextRunTime());
+			assertEquals(-1, journal.restore("unknown", new Timer()));
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testMissedRunsCounted() throws IOException {
+		record();
+		ScheduleJournal journal = ScheduleJournal.open(file);
+		try {
+			// Down for 125 seconds, from 2.5s to 127.5s after the start
+			Scheduler scheduler = reopened(journal, 125000);
+			AtomicInteger rateRuns = new AtomicInteger();
+			AtomicInteger onceRuns = new AtomicInteger();
+			Timer rate = new Timer(scheduler, (source, attachment) -> rateRuns.incrementAndGet());
+			Timer once = new Timer(scheduler, (source, attachment) -> onceRuns.incrementAndGet());
+			Schedule cron = Schedule.cron("0 * * * * *");
+			cron.setScheduler(scheduler);
+
+			assertEquals(125, journal.restore("rate", rate));
+			assertEquals(1, journal.restore("once", once));
+			assertEquals(2, journal.restore("cron", cron));
+
+			// The timers due in the meantime run right away
+			scheduler.advance(0);
+			assertEquals(1, rateRuns.get());
+			assertEquals(1, onceRuns.get());
+			scheduler.advance(5000);
+			assertEquals(6, rateRuns.get());
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testMissedRunsOfMonotonicTimerDownForLong() throws IOException {
+		record();
+		ScheduleJournal journal = ScheduleJournal.open(file);
+		try {
+			long hour = TimeUnit.HOURS.toMillis(1);
+			assertEquals(2, journal.restore("monotonic", new Timer(reopened(journal, 2 * hour), NOOP)));
+
+			// Down for four centuries, long past where the nanoseconds overflow
+			long missed = journal.restore("monotonic", new Timer(reopened(journal, 400 * 365 * 24 * hour), NOOP));
+			assertTrue("Missed " + missed, missed > 0 && missed <= 1 << 20);
+		} finally {
+			journal.close();
+		}
+	}
+
+	@Test
+	public void testCompactionKeepsPendingSchedules() throws IOException {
+		record();
+		ScheduleJournal journal = ScheduleJournal.open(file);
+		try {
+			long before = file.length();
+			journal.compact();
+			assertTrue(file.length() <= before);
+		} finally {
+			journal.close();
+		}
+
+		journal = ScheduleJournal.open(file);
+		try {
+			assertEquals(new HashSet<>(Arrays.asList("once", "rate", "monotonic", "cron")), new HashSet<>(journal.getIds()));
+			assertNull(journal.getEntry("gone"));
+			assertNotNull(journal.getEntry("monotonic"));
+			assertEquals(START + 3000, journal.getEntry("rate").getNextRunTime());
+		} finally {
+			journal.close();
+		}
+	}
+}
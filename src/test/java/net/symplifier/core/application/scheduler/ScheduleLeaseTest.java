@@ -0,0 +1,90 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the split of the singleton slots between the leases on a lock file.
+ * The leases in the same process do not share their locks, so each of them
+ * stands in for a process of its own.
+ *
+ * @author ranjan
+ */
+public class ScheduleLeaseTest {
+	private static final int SLOTS = 16;
+	private static final long RENEW_INTERVAL = 20;
+	private static final long TIMEOUT = 5000;
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("schedule", ".lease");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (!condition.getAsBoolean()) {
+			assertTrue(what, System.currentTimeMillis() < end);
+			Thread.sleep(RENEW_INTERVAL);
+		}
+	}
+
+	@Test
+	public void testSingleMemberOwnsAllSlots() throws IOException {
+		ScheduleLease lease = new ScheduleLease(file, SLOTS, RENEW_INTERVAL);
+		Schedule singleton = new Schedule();
+		singleton.setSingleton("report");
+		try {
+			assertEquals(1, lease.getMembers());
+			assertEquals(SLOTS, lease.getOwnedSlots());
+			assertTrue(lease.owns(singleton));
+			assertTrue(lease.owns(new Schedule()));
+		} finally {
+			lease.close();
+		}
+		assertEquals(0, lease.getOwnedSlots());
+		assertFalse(lease.owns(singleton));
+		assertTrue(lease.owns(new Schedule()));
+	}
+
+	@Test
+	public void testSlotsSplitAndTakenOver() throws IOException, InterruptedException {
+		ScheduleLease first = new ScheduleLease(file, SLOTS, RENEW_INTERVAL);
+		ScheduleLease second = new ScheduleLease(file, SLOTS, RENEW_INTERVAL);
+		try {
+			await("The slots were not split", () -> first.getOwnedSlots() == SLOTS / 2
+							&& second.getOwnedSlots() == SLOTS / 2);
+			assertEquals(2, first.getMembers());
+			assertEquals(2, second.getMembers());
+
+			// Every singleton runs in exactly one of them
+			for(int i = 0; i < 100; ++i) {
+				Schedule singleton = new Schedule();
+				singleton.setSingleton("job-" + i);
+				assertTrue(first.owns(singleton) != second.owns(singleton));
+			}
+
+			first.close();
+			await("The slots were not taken over", () -> second.getOwnedSlots() == SLOTS);
+			assertEquals(1, second.getMembers());
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+}
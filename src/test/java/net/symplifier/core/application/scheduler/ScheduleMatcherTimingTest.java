@@ -0,0 +1,168 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.time.ZoneOffset;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Times the next run time search of the Schedule against the Calendar based
+ * search it used before, over the same run of consecutive runs. The old
+ * search carries a second over into the minute without going back to the
+ * first second, so the results are only compared for a schedule on the
+ * seconds alone. The timings are printed for comparison.
+ *
+ * @author ranjan
+ */
+public class ScheduleMatcherTimingTest {
+	private static final long START = 1767225600000L;		/* 2026-01-01T00:00:00Z */
+	private static final int RUNS = 20000;
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	/* The old Schedule.calcNextRunTime in UTC, without the date fields which
+	 * none of the schedules timed here has */
+	private static final class CalendarSchedule {
+		private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+		private final int[] milliSeconds = new int[] {0};
+		private final int[] seconds;
+		private final int[] minutes;
+		private final int[] hours;
+
+		private CalendarSchedule(int[] seconds, int[] minutes, int[] hours) {
+			this.seconds = seconds;
+			this.minutes = minutes;
+			this.hours = hours;
+			dateFormat.setTimeZone(UTC);
+		}
+
+		private static int findNextValue(int[] array, int refValue, int rollover) {
+			if (array == null || array.length == 0) {
+				return refValue;
+			}
+			for(int x:array) {
+				if (x>=refValue) {
+					return x;
+				}
+			}
+			return array[0] + rollover;
+		}
+
+		private long calcNextRunTime(long timestamp) {
+			Calendar cal = Calendar.getInstance(UTC);
+			cal.setTime(new Date(timestamp + 1));
+			String orgDayValue = dateFormat.format(cal.getTime());
+
+			fixTime(cal);
+			String newDayValue = dateFormat.format(cal.getTime());
+			if (!newDayValue.equals(orgDayValue)) {
+				cal.set(Calendar.HOUR_OF_DAY, 0);
+				cal.set(Calendar.MINUTE, 0);
+				cal.set(Calendar.SECOND, 0);
+				fixTime(cal);
+			}
+			return cal.getTime().getTime();
+		}
+
+		private void fixTime(Calendar cal) {
+			int hour = cal.get(Calendar.HOUR_OF_DAY);
+			int minute = cal.get(Calendar.MINUTE);
+			int second = cal.get(Calendar.SECOND);
+			int milli = cal.get(Calendar.MILLISECOND);
+
+			milli = findNextValue(milliSeconds, milli, 1000);
+			if (milli >= 1000) {
+				milli = milli - 1000;
+				second += 1;
+			}
+			cal.set(Calendar.MILLISECOND, milli);
+
+			second = findNextValue(seconds, second, 60);
+			if (second >= 60) {
+				second = second - 60;
+				minute += 1;
+			}
+			cal.set(Calendar.SECOND, second);
+
+			minute = findNextValue(minutes, minute, 60);
+			if (minute >= 60) {
+				minute = minute - 60;
+				hour += 1;
+			}
+			cal.set(Calendar.MINUTE, minute);
+
+			hour = findNextValue(hours, hour, 24);
+			if (hour >= 24) {
+				cal.set(Calendar.HOUR_OF_DAY, hour - 24);
+				cal.add(Calendar.DAY_OF_MONTH, 1);
+			} else {
+				cal.set(Calendar.HOUR_OF_DAY, hour);
+			}
+		}
+	}
+
+	private static long[] runCalendar(CalendarSchedule schedule, int count) {
+		long[] runs = new long[count];
+		long time = START;
+		for(int i = 0; i < count; ++i) {
+			time = schedule.calcNextRunTime(time);
+			runs[i] = time;
+		}
+		return runs;
+	}
+
+	private static long[] runMatcher(Schedule schedule, int count) {
+		long[] runs = new long[count];
+		long time = START;
+		for(int i = 0; i < count; ++i) {
+			time = schedule.peekNextRunTime(time);
+			runs[i] = time;
+		}
+		return runs;
+	}
+
+	/* Time both searches over the same schedule and return the runs of each */
+	private static long[][] time(String name, CalendarSchedule old, Schedule schedule) {
+		runCalendar(old, RUNS / 10);
+		runMatcher(schedule, RUNS / 10);
+
+		long start = System.nanoTime();
+		long[] calendar = runCalendar(old, RUNS);
+		long calendarNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		long[] matcher = runMatcher(schedule, RUNS);
+		long matcherNanos = System.nanoTime() - start;
+
+		System.out.printf("%-26s calendar %7.1f ns, matcher %6.1f ns per run%n",
+						name, (double) calendarNanos / RUNS, (double) matcherNanos / RUNS);
+		return new long[][] {calendar, matcher};
+	}
+
+	@Test
+	public void testMatcherAgainstCalendar() {
+		int[] quarters = new int[] {0, 15, 30, 45};
+		Schedule seconds = new Schedule();
+		seconds.setTimeZone(ZoneOffset.UTC);
+		seconds.setSeconds(quarters);
+		long[][] runs = time("every 15 seconds", new CalendarSchedule(quarters, null, null), seconds);
+		assertArrayEquals(runs[0], runs[1]);
+
+		Schedule hourly = new Schedule();
+		hourly.setTimeZone(ZoneOffset.UTC);
+		hourly.setSeconds(0);
+		hourly.setMinutes(0, 30);
+		time("every half hour", new CalendarSchedule(new int[] {0}, new int[] {0, 30}, null), hourly);
+
+		Schedule office = new Schedule();
+		office.setTimeZone(ZoneOffset.UTC);
+		office.setSeconds(0);
+		office.setMinutes(0);
+		office.setHours(9, 17);
+		time("daily at 9 and 17 o'clock", new CalendarSchedule(new int[] {0}, new int[] {0}, new int[] {9, 17}), office);
+	}
+}
@@ -0,0 +1,109 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the projection of the upcoming run times of the schedules, which
+ * leaves the schedules as they are
+ *
+ * @author ranjan
+ */
+public class ScheduleProjectionTest {
+	private static final long START = 1767225600000L;		/* 2026-01-01T00:00:00Z */
+	private static final long MINUTE = 60000L;
+
+	private Scheduler scheduler;
+
+	@Before
+	public void setUp() {
+		scheduler = Scheduler.builder().clock(new VirtualClock(START)).shards(2).build();
+	}
+
+	private Schedule cron(String expression) {
+		Schedule schedule = Schedule.cron(expression, ZoneOffset.UTC);
+		schedule.setScheduler(scheduler);
+		schedule.addTask((source, attachment) -> { });
+		return schedule;
+	}
+
+	@Test
+	public void testNextRunTimesOfSchedule() {
+		Schedule schedule = cron("0 */15 * * * *");
+		scheduler.advance(0);
+		long next = schedule.getNextRunTime();
+
+		long[] times = new long[4];
+		assertEquals(4, schedule.getNextRunTimes(START, times));
+		assertArrayEquals(new long[] {START + 15 * MINUTE, START + 30 * MINUTE, START + 45 * MINUTE, START + 60 * MINUTE}, times);
+
+		long[] part = new long[5];
+		assertEquals(2, schedule.getNextRunTimes(START + 30 * MINUTE, part, 3, 2));
+		assertArrayEquals(new long[] {0, 0, 0, START + 45 * MINUTE, START + 60 * MINUTE}, part);
+
+		// The schedule is not moved by the projection
+		assertEquals(next, schedule.getNextRunTime());
+	}
+
+	@Test
+	public void testNextRunTimesOfEndingSchedule() {
+		Schedule schedule = Schedule.cron("0 0 0 1 1 * 2027-2028", ZoneOffset.UTC);
+		long[] times = new long[5];
+		assertEquals(2, schedule.getNextRunTimes(START, times));
+		assertEquals(-1, schedule.peekNextRunTime(times[1]));
+	}
+
+	@Test
+	public void testNextRunTimesOfTimer() {
+		Timer timer = new Timer(scheduler, (source, attachment) -> { });
+		timer.start(1000, MINUTE);
+		scheduler.advance(0);
+
+		long[] times = new long[3];
+		assertEquals(3, timer.getNextRunTimes(START, times));
+		assertArrayEquals(new long[] {START + 1000, START + 1000 + MINUTE, START + 1000 + 2 * MINUTE}, times);
+	}
+
+	@Test
+	public void testFiringsInOrderWithinWindow() {
+		Schedule quarter = cron("0 */15 * * * *");
+		Schedule hourly = cron("0 0 * * * *");
+		scheduler.advance(0);
+
+		List<Long> times = new ArrayList<>();
+		List<Schedule> schedules = new ArrayList<>();
+		int count = scheduler.firings(START, START + 2 * 60 * MINUTE, (schedule, time) -> {
+			times.add(time);
+			schedules.add(schedule);
+			return true;
+		});
+		// The window is inclusive of the start and exclusive of the end
+		assertEquals(8 + 2, count);
+		for(int i = 1; i < times.size(); ++i) {
+			assertTrue(times.get(i) >= times.get(i - 1));
+		}
+		assertEquals(START, (long) times.get(0));
+		assertEquals(START + 105 * MINUTE, (long) times.get(times.size() - 1));
+		assertEquals(2, schedules.stream().filter(schedule -> schedule == hourly).count());
+		assertSame(quarter, schedules.get(schedules.size() - 1));
+	}
+
+	@Test
+	public void testFiringsStopWhenVisitorSays() {
+		cron("0 * * * * *");
+		scheduler.advance(0);
+		int[] seen = {0};
+		int count = scheduler.firings(START, START + 60 * MINUTE, (schedule, time) -> ++seen[0] < 5);
+		assertEquals(5, count);
+		assertEquals(5, seen[0]);
+	}
+}
@@ -0,0 +1,154 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the heap ordering of the ScheduleQueue
+ *
+ * @author ranjan
+ */
+public class ScheduleQueueTest {
+
+	private static Schedule[] schedules(int count) {
+		Schedule[] list = new Schedule[count];
+		for(int i = 0; i < count; ++i) {
+			list[i] = new Schedule();
+		}
+		return list;
+	}
+
+	/* Poll the whole queue and check that the run times never go back */
+	private static void assertDrainsInOrder(ScheduleQueue queue, int count) {
+		long last = Long.MIN_VALUE;
+		for(int i = 0; i < count; ++i) {
+			long time = queue.peekTime();
+			Schedule schedule = queue.poll();
+			assertTrue("Polled " + time + " after " + last, time >= last);
+			assertFalse(queue.contains(schedule));
+			last = time;
+		}
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void testPollInOrderOfRunTime() {
+		for(int count:new int[] {10000, 100000}) {
+			ScheduleQueue queue = new ScheduleQueue(1);
+			Random random = new Random(count);
+			for(Schedule schedule:schedules(count)) {
+				queue.offer(schedule, random.nextInt(count));
+			}
+			assertEquals(count, queue.size());
+			assertDrainsInOrder(queue, count);
+		}
+	}
+
+	@Test
+	public void testOfferAllInOrderOfRunTime() {
+		for(int count:new int[] {10000, 100000}) {
+			Random random = new Random(count);
+
+			// Large batch on an empty queue rebuilds the heap, a small one on a
+			// full queue sifts every schedule in
+			for(int queued:new int[] {0, count}) {
+				int added = queued == 0 ? count : count / 10;
+				ScheduleQueue queue = new ScheduleQueue(1);
+				for(Schedule schedule:schedules(queued)) {
+					queue.offer(schedule, random.nextInt(count));
+				}
+				Schedule[] batch = schedules(added);
+				long[] runTimes = new long[added];
+				for(int i = 0; i < added; ++i) {
+					runTimes[i] = random.nextInt(count);
+				}
+				queue.offerAll(batch, runTimes, added);
+				assertEquals(queued + added, queue.size());
+				for(Schedule schedule:batch) {
+					assertTrue(queue.contains(schedule));
+				}
+				assertDrainsInOrder(queue, queued + added);
+			}
+		}
+	}
+
+	@Test
+	public void testOfferAgainMovesSchedule() {
+		ScheduleQueue queue = new ScheduleQueue(1);
+		Schedule[] list = schedules(3);
+		queue.offer(list[0], 10);
+		queue.offer(list[1], 20);
+		queue.offer(list[2], 30);
+
+		queue.offer(list[2], 5);
+		assertEquals(3, queue.size());
+		assertSame(list[2], queue.peek());
+		assertEquals(5, queue.peekTime());
+
+		queue.offer(list[2], 25);
+		assertSame(list[0], queue.poll());
+		assertSame(list[1], queue.poll());
+		assertSame(list[2], queue.poll());
+	}
+
+	@Test
+	public void testRemove() {
+		ScheduleQueue queue = new ScheduleQueue(1);
+		Schedule[] list = schedules(100);
+		for(int i = 0; i < list.length; ++i) {
+			queue.offer(list[i], list.length - i);
+		}
+		for(int i = 0; i < list.length; i += 2) {
+			assertTrue(queue.remove(list[i]));
+			assertFalse(queue.remove(list[i]));
+		}
+		assertEquals(50, queue.size());
+		for(int i = list.length - 1; i > 0; i -= 2) {
+			assertSame(list[i], queue.poll());
+		}
+		assertFalse(queue.remove(new Schedule()));
+	}
+
+	@Test
+	public void testRandomOperationsMatchReference() {
+		ScheduleQueue queue = new ScheduleQueue(1);
+		Map<Schedule, Long> reference = new HashMap<>();
+		Schedule[] list = schedules(2000);
+		Random random = new Random(1);
+		for(int n = 0; n < 200000; ++n) {
+			Schedule schedule = list[random.nextInt(list.length)];
+			int op = random.nextInt(4);
+			if (op < 2) {
+				long time = random.nextInt(100000);
+				queue.offer(schedule, time);
+				reference.put(schedule, time);
+			} else if (op == 2) {
+				assertEquals(reference.remove(schedule) != null, queue.remove(schedule));
+			} else if (!queue.isEmpty()) {
+				long time = queue.peekTime();
+				assertEquals(Long.valueOf(time), reference.remove(queue.poll()));
+				for(long other:reference.values()) {
+					assertTrue(other >= time);
+				}
+			}
+			assertEquals(reference.size(), queue.size());
+		}
+
+		List<Schedule> collected = new ArrayList<>();
+		queue.collect(collected);
+		assertEquals(reference.size(), collected.size());
+		assertTrue(reference.keySet().containsAll(collected));
+	}
+}
@@ -0,0 +1,103 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Times the ScheduleQueue against the sorted list the Scheduler used before,
+ * on the same run of re-arms: the first schedule is taken off and put back
+ * with a later run time, as the dispatch does after running it. The timings
+ * are printed for comparison, only the order of the runs is checked.
+ *
+ * @author ranjan
+ */
+public class ScheduleQueueTimingTest {
+	private static final int REARMS = 20000;
+
+	/* Stands in for a Schedule on the sorted list, with its next run time */
+	private static final class Entry {
+		private long nextRunTime;
+	}
+
+	/* The insertion of the old Scheduler.addSchedule, a linear scan of the
+	 * list which also takes out the earlier place of the schedule */
+	private static void insert(ArrayList<Entry> schedules, Entry schedule, long nextRunTime) {
+		schedule.nextRunTime = nextRunTime;
+		int insertedAt = -1;
+		int removeAt = -1;
+		for(int i=0; i<schedules.size(); ++i) {
+			Entry chk = schedules.get(i);
+			if (chk == schedule) {
+				removeAt = i;
+				continue;
+			}
+			if (insertedAt == -1) {
+				if (nextRunTime < chk.nextRunTime) {
+					schedules.add(i, schedule);
+					insertedAt = i;
+				}
+			}
+		}
+		if (removeAt >= 0) {
+			schedules.remove(removeAt);
+		}
+		if (insertedAt == -1) {
+			schedules.add(schedule);
+		}
+	}
+
+	private static long[] runList(int count, int rearms) {
+		Random random = new Random(count);
+		ArrayList<Entry> schedules = new ArrayList<>();
+		for(int i = 0; i < count; ++i) {
+			insert(schedules, new Entry(), random.nextInt(count));
+		}
+		long[] runs = new long[rearms];
+		for(int i = 0; i < rearms; ++i) {
+			Entry first = schedules.remove(0);
+			runs[i] = first.nextRunTime;
+			insert(schedules, first, first.nextRunTime + 1 + random.nextInt(count));
+		}
+		return runs;
+	}
+
+	private static long[] runQueue(int count, int rearms) {
+		Random random = new Random(count);
+		ScheduleQueue queue = new ScheduleQueue(1);
+		for(int i = 0; i < count; ++i) {
+			queue.offer(new Schedule(), random.nextInt(count));
+		}
+		long[] runs = new long[rearms];
+		for(int i = 0; i < rearms; ++i) {
+			long time = queue.peekTime();
+			runs[i] = time;
+			queue.offer(queue.poll(), time + 1 + random.nextInt(count));
+		}
+		return runs;
+	}
+
+	@Test
+	public void testQueueAgainstSortedList() {
+		for(int count:new int[] {100, 1000, 10000}) {
+			// Warm up both before timing
+			runList(count, REARMS / 10);
+			runQueue(count, REARMS / 10);
+
+			long start = System.nanoTime();
+			long[] list = runList(count, REARMS);
+			long listNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long[] queue = runQueue(count, REARMS);
+			long queueNanos = System.nanoTime() - start;
+
+			assertArrayEquals(list, queue);
+			System.out.printf("%6d schedules: sorted list %8.1f ns, queue %6.1f ns per re-arm%n",
+							count, (double) listNanos / REARMS, (double) queueNanos / REARMS);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests the slack on the schedules, letting the ones due close to each other
+ * run together
+ *
+ * @author ranjan
+ */
+public class ScheduleSlackTest {
+	private static final long START = 1767225600000L;		/* 2026-01-01T00:00:00Z */
+
+	private Scheduler scheduler;
+	private final List<String> runs = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		scheduler = Scheduler.builder().clock(new VirtualClock(START)).build();
+	}
+
+	/* A one shot timer logging its name and the time it ran at */
+	private Timer timer(String name, long delay, long slack) {
+		Timer timer = new Timer(scheduler, (source, attachment) ->
+						runs.add(name + "@" + (scheduler.getClock().currentTimeMillis() - START)));
+		timer.setSlack(slack);
+		timer.start(delay);
+		return timer;
+	}
+
+	/* Step through all the schedules, returning the number of wake ups */
+	private int steps() {
+		int steps = 0;
+		while (scheduler.step()) {
+			steps += 1;
+		}
+		return steps;
+	}
+
+	@Test
+	public void testWithoutSlackRunsOnTime() {
+		timer("a", 100, 0);
+		timer("b", 150, 0);
+		timer("c", 180, 0);
+
+		assertEquals(3, steps());
+		assertEquals(Arrays.asList("a@100", "b@150", "c@180"), runs);
+	}
+
+	@Test
+	public void testSlackRunsTogether() {
+		timer("a", 100, 100);
+		timer("b", 150, 100);
+		timer("c", 180, 100);
+
+		assertEquals(1, steps());
+		assertEquals(Arrays.asList("a@200", "b@200", "c@200"), runs);
+	}
+
+	@Test
+	public void testNeverEarly() {
+		timer("a", 100, 100);
+		timer("b", 300, 100);
+
+		// b is not due when a runs at the end of its slack
+		assertEquals(2, steps());
+		assertEquals(Arrays.asList("a@200", "b@400"), runs);
+	}
+
+	@Test
+	public void testTightestSlackWins() {
+		timer("a", 100, 1000);
+		timer("b", 150, 10);
+
+		assertEquals(1, steps());
+		assertEquals(Arrays.asList("a@160", "b@160"), runs);
+	}
+
+	@Test
+	public void testNegativeSlackIsNone() {
+		Timer timer = timer("a", 100, -50);
+		assertEquals(0, timer.getSlack());
+
+		scheduler.advance(1000);
+		assertEquals(Arrays.asList("a@100"), runs);
+		assertFalse(scheduler.step());
+	}
+}
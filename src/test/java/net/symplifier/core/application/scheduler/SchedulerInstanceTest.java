@@ -0,0 +1,104 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the Scheduler instances built on their own, which start their
+ * threads only when the first schedule comes in
+ *
+ * @author ranjan
+ */
+public class SchedulerInstanceTest {
+	private static final long TIMEOUT = 5;
+
+	private final AtomicInteger made = new AtomicInteger();
+	private final Scheduler scheduler = Scheduler.builder().name("Custom").poolSize(2).shards(2)
+					.threadFactory(target -> {
+						Thread thread = new Thread(target, "custom-" + made.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}).build();
+
+	@After
+	public void tearDown() {
+		scheduler.stop();
+	}
+
+	@Test
+	public void testLazyStart() throws InterruptedException {
+		assertEquals(0, made.get());
+
+		CountDownLatch ran = new CountDownLatch(1);
+		List<Object> sources = new CopyOnWriteArrayList<>();
+		List<String> threads = new CopyOnWriteArrayList<>();
+		Timer timer = new Timer(scheduler, (source, attachment) -> {
+			sources.add(source);
+			threads.add(Thread.currentThread().getName());
+			ran.countDown();
+		});
+		timer.start(10);
+		assertTrue(made.get() > 0);
+		assertTrue(scheduler.contains(timer));
+		assertFalse(Scheduler.getDefault().contains(timer));
+
+		assertTrue(ran.await(TIMEOUT, TimeUnit.SECONDS));
+		assertSame(scheduler, sources.get(0));
+		assertTrue(threads.get(0).startsWith("custom-"));
+	}
+
+	@Test
+	public void testScheduleBelongsToOneScheduler() {
+		Timer timer = new Timer(scheduler, (source, attachment) -> { });
+		timer.start(1000);
+		Scheduler other = Scheduler.builder().clock(new VirtualClock()).build();
+		try {
+			other.add(timer);
+			fail("The schedule was taken by another scheduler");
+		} catch (IllegalArgumentException ex) {
+			assertTrue(scheduler.contains(timer));
+		}
+	}
+
+	@Test
+	public void testStoppedSchedulerTakesNothing() {
+		scheduler.stop();
+		try {
+			new Timer(scheduler, (source, attachment) -> { }).start(10);
+			fail("A stopped scheduler took a schedule");
+		} catch (IllegalStateException ex) {
+			// Expected
+		}
+		try {
+			scheduler.start();
+			fail("A stopped scheduler started again");
+		} catch (IllegalStateException ex) {
+			assertEquals(0, made.get());
+		}
+	}
+
+	@Test
+	public void testVirtualClockStartsNoThreads() {
+		AtomicInteger threads = new AtomicInteger();
+		Scheduler virtual = Scheduler.builder().clock(new VirtualClock())
+						.threadFactory(target -> {
+							threads.incrementAndGet();
+							return new Thread(target);
+						}).build();
+		new Timer(virtual, (source, attachment) -> { }).start(10);
+		virtual.start();
+		assertEquals(0, threads.get());
+	}
+}
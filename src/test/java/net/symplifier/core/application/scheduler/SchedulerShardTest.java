@@ -0,0 +1,115 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the spread of the schedules over the shards of a Scheduler
+ *
+ * @author ranjan
+ */
+public class SchedulerShardTest {
+	private static final long START = 1767225600000L;		/* 2026-01-01T00:00:00Z */
+	private static final long TIMEOUT = 5;
+	private static final int SHARDS = 4;
+
+	private static Set<SchedulerShard> shardsOf(List<? extends Schedule> schedules) {
+		Set<SchedulerShard> shards = Collections.newSetFromMap(new IdentityHashMap<>());
+		for(Schedule schedule:schedules) {
+			shards.add(schedule.shard);
+		}
+		return shards;
+	}
+
+	@Test
+	public void testSchedulesSpreadOverShards() {
+		Scheduler scheduler = Scheduler.builder().clock(new VirtualClock(START)).shards(SHARDS).build();
+		AtomicInteger runs = new AtomicInteger();
+		List<Timer> timers = new ArrayList<>();
+		for(int i = 0; i < 200; ++i) {
+			Timer timer = new Timer(scheduler, (source, attachment) -> runs.incrementAndGet());
+			timer.start(i % 10, 1000);
+			timers.add(timer);
+		}
+		assertEquals(SHARDS, shardsOf(timers).size());
+
+		scheduler.advance(2500);
+		assertEquals(200 * 3, runs.get());
+	}
+
+	@Test
+	public void testScheduleStaysOnItsShard() {
+		Scheduler scheduler = Scheduler.builder().clock(new VirtualClock(START)).shards(SHARDS).build();
+		AtomicInteger runs = new AtomicInteger();
+		Timer timer = new Timer(scheduler, (source, attachment) -> runs.incrementAndGet());
+		timer.start(100);
+		SchedulerShard shard = timer.shard;
+		for(int i = 0; i < 100; ++i) {
+			timer.start(100);
+			scheduler.advance(10);
+			assertSame(shard, timer.shard);
+		}
+		scheduler.advance(100);
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	public void testThreadAffinityKeepsSchedulesOfThreadTogether() {
+		Scheduler scheduler = Scheduler.builder().clock(new VirtualClock(START)).shards(SHARDS)
+						.threadAffinity(true).build();
+		List<Timer> timers = new ArrayList<>();
+		for(int i = 0; i < 100; ++i) {
+			Timer timer = new Timer(scheduler, (source, attachment) -> { });
+			timer.start(1000);
+			timers.add(timer);
+		}
+		assertEquals(1, shardsOf(timers).size());
+	}
+
+	@Test
+	public void testShardThreadsDispatch() throws InterruptedException {
+		Scheduler scheduler = Scheduler.builder().shards(SHARDS).poolSize(2).build();
+		try {
+			CountDownLatch done = new CountDownLatch(100);
+			for(int i = 0; i < 100; ++i) {
+				new Timer(scheduler, (source, attachment) -> done.countDown()).start(i % 20);
+			}
+			assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+		} finally {
+			scheduler.stop();
+		}
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testRunWaitsUntilStopped() throws InterruptedException {
+		Scheduler scheduler = Scheduler.builder().shards(2).poolSize(1).build();
+		Thread runner = new Thread(scheduler);
+		runner.start();
+
+		CountDownLatch done = new CountDownLatch(1);
+		new Timer(scheduler, (source, attachment) -> done.countDown()).start(10);
+		assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+		assertTrue(runner.isAlive());
+
+		scheduler.stop();
+		runner.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+		assertFalse(runner.isAlive());
+
+		// A stopped scheduler is not run again
+		scheduler.run();
+	}
+}
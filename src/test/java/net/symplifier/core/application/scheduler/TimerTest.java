@@ -0,0 +1,111 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the starts of the Timers, which are handed over to the dispatch
+ * thread, on a virtual clock
+ *
+ * @author ranjan
+ */
+public class TimerTest {
+	private static final long START = 1767225600000L;		/* 2026-01-01T00:00:00Z */
+
+	private VirtualClock clock;
+	private Scheduler scheduler;
+
+	@Before
+	public void setUp() {
+		clock = new VirtualClock(START);
+		scheduler = Scheduler.builder().clock(clock).build();
+	}
+
+	private ScheduledTask record(List<Long> runs) {
+		return (source, attachment) -> runs.add(clock.currentTimeMillis() - START);
+	}
+
+	@Test
+	public void testOneShot() {
+		List<Long> runs = new ArrayList<>();
+		Timer timer = new Timer(scheduler, record(runs));
+		timer.start(100);
+		scheduler.advance(1000);
+		assertEquals(Arrays.asList(100L), runs);
+		assertFalse(timer.isScheduled());
+	}
+
+	@Test
+	public void testRepeating() {
+		List<Long> runs = new ArrayList<>();
+		Timer timer = new Timer(scheduler, record(runs));
+		timer.start(100, 200);
+		scheduler.advance(1000);
+		assertEquals(Arrays.asList(100L, 300L, 500L, 700L, 900L), runs);
+		assertTrue(timer.isScheduled());
+	}
+
+	@Test
+	public void testRestartReplacesEarlierStart() {
+		List<Long> runs = new ArrayList<>();
+		Timer timer = new Timer(scheduler, record(runs));
+		timer.start(100, 100);
+		timer.start(500);
+		scheduler.advance(1000);
+		assertEquals(Arrays.asList(500L), runs);
+	}
+
+	@Test
+	public void testOneShotRestartedFromItsTask() {
+		AtomicInteger runs = new AtomicInteger();
+		Timer[] timer = new Timer[1];
+		timer[0] = new Timer(scheduler, (source, attachment) -> {
+			if (runs.incrementAndGet() < 50) {
+				timer[0].start(10);
+			}
+		});
+		timer[0].start(10);
+		scheduler.advance(10000);
+		assertEquals(50, runs.get());
+		assertFalse(timer[0].isScheduled());
+	}
+
+	@Test
+	public void testCancelDropsPendingStart() {
+		List<Long> runs = new ArrayList<>();
+		ScheduledTask task = record(runs);
+		Timer timer = new Timer(scheduler, task);
+		timer.start(100);
+		timer.cancel();
+
+		// Added again without a start, the cancelled start does not come back
+		timer.removeTask(task);
+		timer.addTask(task);
+		scheduler.advance(1000);
+		assertEquals(new ArrayList<Long>(), runs);
+		assertEquals(-1, timer.peekNextRunTime(clock.currentTimeMillis()));
+	}
+
+	@Test
+	public void testUpdateSchedulerWorksOutNextRunAfresh() {
+		List<Long> runs = new ArrayList<>();
+		Schedule schedule = Schedule.cron("0 * * * * *");
+		schedule.setScheduler(scheduler);
+		schedule.addTask(record(runs));
+		scheduler.advance(10000);
+
+		schedule.setSeconds(30);
+		schedule.updateScheduler();
+		scheduler.advance(60000);
+		assertEquals(Arrays.asList(30000L), runs);
+	}
+}
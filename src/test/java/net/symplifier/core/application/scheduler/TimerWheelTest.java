@@ -0,0 +1,130 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the expiry of the Timers on the TimerWheel, on its own and as the
+ * backend of a Scheduler
+ *
+ * @author ranjan
+ */
+public class TimerWheelTest {
+	private static final long START = 1767225600000L;		/* 2026-01-01T00:00:00Z */
+
+	@Test
+	public void testExpiresOnTickNeverEarly() {
+		TimerWheel wheel = new TimerWheel(10, START);
+		Timer timer = new Timer();
+		wheel.schedule(timer, START + 25);
+		assertTrue(wheel.contains(timer));
+		assertEquals(START + 30, wheel.nextExpiry());
+
+		List<Timer> expired = new ArrayList<>();
+		wheel.advance(START + 29, expired);
+		assertTrue(expired.isEmpty());
+		wheel.advance(START + 30, expired);
+		assertEquals(Arrays.asList(timer), expired);
+		assertFalse(wheel.contains(timer));
+		assertTrue(wheel.isEmpty());
+		assertEquals(Long.MAX_VALUE, wheel.nextExpiry());
+	}
+
+	@Test
+	public void testCancelAndReschedule() {
+		TimerWheel wheel = new TimerWheel(1, START);
+		Timer cancelled = new Timer();
+		Timer moved = new Timer();
+		wheel.schedule(cancelled, START + 100);
+		wheel.schedule(moved, START + 100);
+		assertTrue(wheel.cancel(cancelled));
+		assertFalse(wheel.cancel(cancelled));
+		wheel.schedule(moved, START + 5000);
+		assertEquals(1, wheel.size());
+
+		List<Timer> expired = new ArrayList<>();
+		wheel.advance(START + 4999, expired);
+		assertTrue(expired.isEmpty());
+		wheel.advance(START + 5000, expired);
+		assertEquals(Arrays.asList(moved), expired);
+	}
+
+	@Test
+	public void testFarTimersCascadeDown() {
+		TimerWheel wheel = new TimerWheel(1, START);
+		long[] delays = {63, 64, 4095, 4096, 262143, 262144, 16777215, 30000000};
+		Timer[] timers = new Timer[delays.length];
+		for(int i = 0; i < delays.length; ++i) {
+			timers[i] = new Timer();
+			wheel.schedule(timers[i], START + delays[i]);
+		}
+		for(int i = 0; i < delays.length; ++i) {
+			List<Timer> expired = new ArrayList<>();
+			wheel.advance(START + delays[i] - 1, expired);
+			assertTrue("Early at " + delays[i], expired.isEmpty());
+			wheel.advance(START + delays[i], expired);
+			assertEquals("At " + delays[i], Arrays.asList(timers[i]), expired);
+		}
+		assertTrue(wheel.isEmpty());
+	}
+
+	@Test
+	public void testRandomOperationsMatchReference() {
+		Random random = new Random(5);
+		long now = START;
+		TimerWheel wheel = new TimerWheel(1, now);
+		Map<Timer, Long> due = new HashMap<>();
+		Timer[] timers = new Timer[1000];
+		for(int i = 0; i < timers.length; ++i) {
+			timers[i] = new Timer();
+		}
+		for(int n = 0; n < 50000; ++n) {
+			Timer timer = timers[random.nextInt(timers.length)];
+			int op = random.nextInt(10);
+			if (op < 4) {
+				long time = now + (random.nextInt(5) == 0 ? random.nextInt(30000000) : random.nextInt(5000));
+				wheel.schedule(timer, time);
+				due.put(timer, time);
+			} else if (op < 6) {
+				assertEquals(due.remove(timer) != null, wheel.cancel(timer));
+			} else {
+				now += random.nextInt(300);
+				List<Timer> expired = new ArrayList<>();
+				wheel.advance(now, expired);
+				for(Timer fired:expired) {
+					long time = due.remove(fired);
+					assertTrue("Expired early", time <= now);
+				}
+				for(long time:due.values()) {
+					assertTrue("Missed " + time + " at " + now, time > now);
+				}
+			}
+			assertEquals(due.size(), wheel.size());
+		}
+	}
+
+	@Test
+	public void testSchedulerRunsTimersOnWheel() {
+		Scheduler scheduler = Scheduler.builder().clock(new VirtualClock(START)).timerWheel(10).build();
+		List<Long> runs = new ArrayList<>();
+		Timer repeating = new Timer(scheduler, (source, attachment) -> runs.add(scheduler.getClock().currentTimeMillis() - START));
+		repeating.start(25, 100);
+		Timer cancelled = new Timer(scheduler, (source, attachment) -> runs.add(-1L));
+		cancelled.start(50);
+		scheduler.advance(40);
+		cancelled.cancel();
+
+		scheduler.advance(300);
+		assertEquals(Arrays.asList(30L, 130L, 230L, 330L), runs);
+	}
+}
@@ -0,0 +1,119 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the simulation of the Scheduler on a VirtualClock, which only moves
+ * when the scheduler is advanced
+ *
+ * @author ranjan
+ */
+public class VirtualClockTest {
+	private static final long START = 1767225600000L;		/* 2026-01-01T00:00:00Z */
+	private static final long DAY = 86400000L;
+
+	private VirtualClock clock;
+	private Scheduler scheduler;
+
+	@Before
+	public void setUp() {
+		clock = new VirtualClock(START);
+		scheduler = Scheduler.builder().clock(clock).shards(3).build();
+	}
+
+	@Test
+	public void testClocksMoveTogether() {
+		assertEquals(START, clock.currentTimeMillis());
+		assertEquals(0, clock.nanoTime());
+		clock.advance(1500, TimeUnit.MICROSECONDS);
+		assertEquals(START + 1, clock.currentTimeMillis());
+		assertEquals(1500000, clock.nanoTime());
+		try {
+			clock.advance(-1, TimeUnit.MILLISECONDS);
+			fail("The clock went back");
+		} catch (IllegalArgumentException ex) {
+			assertEquals(1500000, clock.nanoTime());
+		}
+	}
+
+	@Test
+	public void testWeeksInMoments() {
+		long[] counts = new long[2];
+		Schedule cron = Schedule.cron("0 0 * * * *", ZoneOffset.UTC);
+		cron.setScheduler(scheduler);
+		cron.addTask((source, attachment) -> counts[0]++);
+		new Timer(scheduler, (source, attachment) -> counts[1]++).startAtFixedRate(0, 1000);
+
+		long runs = scheduler.advance(28 * DAY);
+		assertEquals(28 * 24, counts[0]);
+		assertEquals(28 * 86400 + 1, counts[1]);
+		assertEquals(counts[0] + counts[1], runs);
+		assertEquals(START + 28 * DAY, clock.currentTimeMillis());
+	}
+
+	@Test
+	public void testAdvanceRunsAtDueTimes() {
+		List<Long> runs = new ArrayList<>();
+		new Timer(scheduler, (source, attachment) -> runs.add(clock.currentTimeMillis() - START)).start(100, 250);
+
+		assertEquals(0, scheduler.advance(99));
+		assertEquals(3, scheduler.advanceTo(START + 600));
+		assertEquals(Arrays.asList(100L, 350L, 600L), runs);
+		assertEquals(START + 600, clock.currentTimeMillis());
+	}
+
+	@Test
+	public void testStepJumpsToNextRun() {
+		List<Long> runs = new ArrayList<>();
+		Timer timer = new Timer(scheduler, (source, attachment) -> runs.add(clock.currentTimeMillis() - START));
+		timer.start(DAY);
+
+		assertTrue(scheduler.step());
+		assertEquals(Arrays.asList(DAY), runs);
+		assertFalse(scheduler.step());
+		assertEquals(START + DAY, clock.currentTimeMillis());
+	}
+
+	@Test
+	public void testClockMovedWithoutRunning() {
+		List<Long> runs = new ArrayList<>();
+		new Timer(scheduler, (source, attachment) -> runs.add(clock.nanoTime())).start(100, TimeUnit.MICROSECONDS);
+		scheduler.advance(0);
+		clock.advance(250, TimeUnit.MICROSECONDS);
+		assertTrue(runs.isEmpty());
+
+		// The run due within the current millisecond is caught up with
+		assertEquals(1, scheduler.advance(0));
+		assertEquals(Arrays.asList(250000L), runs);
+		assertEquals(250000, clock.nanoTime());
+	}
+
+	@Test
+	public void testOnlyOnVirtualClock() {
+		Scheduler real = Scheduler.builder().build();
+		try {
+			real.advance(1);
+			fail("A scheduler on the system clock was advanced");
+		} catch (IllegalStateException ex) {
+			// Expected
+		}
+		try {
+			real.step();
+			fail("A scheduler on the system clock was stepped");
+		} catch (IllegalStateException ex) {
+			// Expected
+		}
+	}
+}
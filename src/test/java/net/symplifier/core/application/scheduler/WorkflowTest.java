@@ -0,0 +1,130 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the order, the failures and the end of the runs of a Workflow
+ *
+ * @author ranjan
+ */
+public class WorkflowTest {
+	private static final long TIMEOUT = 5;
+
+	private static ScheduledTask record(List<String> log, String name) {
+		return (source, attachment) -> log.add(name);
+	}
+
+	/* A Scheduler on a virtual clock, which runs every step right away */
+	private static Scheduler virtual() {
+		return Scheduler.builder().clock(new VirtualClock(0)).build();
+	}
+
+	@Test
+	public void testStepsRunAfterTheirPredecessors() {
+		List<String> log = new ArrayList<>();
+		Workflow workflow = new Workflow();
+		Workflow.Step a = workflow.add("a", record(log, "a"));
+		Workflow.Step b = workflow.add("b", record(log, "b"), a);
+		Workflow.Step c = workflow.add("c", record(log, "c"), a);
+		workflow.add("d", record(log, "d"), b, c);
+		workflow.add("e", record(log, "e"));
+		AtomicReference<Boolean> result = new AtomicReference<>();
+		workflow.setListener((w, schedule, succeeded) -> result.set(succeeded));
+
+		workflow.onRun(virtual(), new Schedule());
+		assertEquals(5, log.size());
+		assertTrue(log.indexOf("a") < log.indexOf("b"));
+		assertTrue(log.indexOf("a") < log.indexOf("c"));
+		assertTrue(log.indexOf("b") < log.indexOf("d"));
+		assertTrue(log.indexOf("c") < log.indexOf("d"));
+		assertTrue(log.contains("e"));
+		assertEquals(Boolean.TRUE, result.get());
+		assertEquals(1, workflow.getCompletedRuns());
+		assertEquals(0, workflow.getActiveRuns());
+	}
+
+	@Test
+	public void testFailedStepSkipsTheRest() {
+		List<String> log = new ArrayList<>();
+		Workflow workflow = new Workflow();
+		Workflow.Step a = workflow.add("a", (source, attachment) -> {
+			throw new RuntimeException("Failing on purpose");
+		});
+		workflow.add("b", record(log, "b"), a);
+		AtomicReference<Boolean> result = new AtomicReference<>();
+		workflow.setListener((w, schedule, succeeded) -> result.set(succeeded));
+
+		workflow.onRun(virtual(), new Schedule());
+		assertEquals(Collections.emptyList(), log);
+		assertEquals(Boolean.FALSE, result.get());
+		assertEquals(1, workflow.getFailedRuns());
+		assertEquals(0, workflow.getActiveRuns());
+	}
+
+	@Test
+	public void testRunsOnSchedule() {
+		Scheduler scheduler = virtual();
+		List<String> log = new ArrayList<>();
+		Workflow workflow = new Workflow();
+		Workflow.Step a = workflow.add("a", record(log, "a"));
+		workflow.add("b", record(log, "b"), a);
+
+		Timer timer = new Timer(scheduler, workflow);
+		timer.start(0, 1000);
+		scheduler.advance(2500);
+		assertEquals(Arrays.asList("a", "b", "a", "b", "a", "b"), log);
+		assertEquals(3, workflow.getCompletedRuns());
+	}
+
+	@Test
+	public void testStepRefusedByStoppedPoolFailsRun() throws InterruptedException {
+		Scheduler scheduler = Scheduler.builder().poolSize(2).build();
+		scheduler.start();
+
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch gate = new CountDownLatch(1);
+		CountDownLatch finished = new CountDownLatch(1);
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		Workflow workflow = new Workflow();
+		Workflow.Step a = workflow.add("a", (source, attachment) -> {
+			started.countDown();
+			try {
+				gate.await(TIMEOUT, TimeUnit.SECONDS);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		workflow.add("b", record(log, "b"), a);
+		workflow.add("c", record(log, "c"), a);
+		AtomicReference<Boolean> result = new AtomicReference<>();
+		workflow.setListener((w, schedule, succeeded) -> {
+			result.set(succeeded);
+			finished.countDown();
+		});
+
+		Thread runner = new Thread(() -> workflow.onRun(scheduler, new Schedule()));
+		runner.start();
+		assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+
+		// One of the steps released by a goes to the pool, which refuses it
+		scheduler.stop();
+		gate.countDown();
+		assertTrue(finished.await(TIMEOUT, TimeUnit.SECONDS));
+		runner.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+		assertEquals(Boolean.FALSE, result.get());
+		assertEquals(0, workflow.getActiveRuns());
+		assertFalse(log.contains("b") && log.contains("c"));
+	}
+}
@@ -0,0 +1,95 @@
+package net.symplifier.core.application.scheduler;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.ZoneId;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the calendar schedules across the daylight saving changes of
+ * Europe/London in 2023, the clock going from 01:00 GMT to 02:00 BST on the
+ * 26th of March and from 02:00 BST back to 01:00 GMT on the 29th of October
+ *
+ * @author ranjan
+ */
+public class ZoneScheduleTest {
+	private static final ZoneId LONDON = ZoneId.of("Europe/London");
+	private static final long SPRING = utc("2023-03-26T01:00:00Z");
+	private static final long AUTUMN = utc("2023-10-29T01:00:00Z");
+
+	private static long utc(String instant) {
+		return Instant.parse(instant).toEpochMilli();
+	}
+
+	/* Daily at 01:30 local time, which is skipped in spring and repeated in autumn */
+	private static Schedule daily(Schedule.GapPolicy gap, Schedule.OverlapPolicy overlap) {
+		Schedule schedule = Schedule.cron("0 30 1 * * *", LONDON);
+		schedule.setGapPolicy(gap);
+		schedule.setOverlapPolicy(overlap);
+		return schedule;
+	}
+
+	@Test
+	public void testGapShift() {
+		Schedule schedule = daily(Schedule.GapPolicy.SHIFT, Schedule.OverlapPolicy.BOTH);
+		assertEquals(utc("2023-03-26T01:30:00Z"), schedule.peekNextRunTime(utc("2023-03-26T00:00:00Z")));
+		assertEquals(utc("2023-03-26T01:30:00Z"), schedule.peekNextRunTime(SPRING - 1));
+		assertEquals(utc("2023-03-26T01:30:00Z"), schedule.peekNextRunTime(SPRING));
+		assertEquals(utc("2023-03-27T00:30:00Z"), schedule.peekNextRunTime(utc("2023-03-26T01:30:00Z")));
+	}
+
+	@Test
+	public void testGapTransition() {
+		Schedule schedule = daily(Schedule.GapPolicy.TRANSITION, Schedule.OverlapPolicy.BOTH);
+		assertEquals(SPRING, schedule.peekNextRunTime(utc("2023-03-26T00:00:00Z")));
+		assertEquals(SPRING, schedule.peekNextRunTime(SPRING - 1));
+		assertEquals(utc("2023-03-27T00:30:00Z"), schedule.peekNextRunTime(SPRING));
+	}
+
+	@Test
+	public void testGapTransitionAroundChange() {
+		Schedule schedule = daily(Schedule.GapPolicy.TRANSITION, Schedule.OverlapPolicy.BOTH);
+		long before = utc("2023-03-25T01:30:00Z");
+		long after = utc("2023-03-27T00:30:00Z");
+		for(long t = before; t < after; t += 61999) {
+			assertEquals("From " + Instant.ofEpochMilli(t), t < SPRING ? SPRING : after, schedule.peekNextRunTime(t));
+		}
+		for(long t = SPRING - 1000; t <= SPRING; ++t) {
+			assertEquals("From " + Instant.ofEpochMilli(t), t < SPRING ? SPRING : after, schedule.peekNextRunTime(t));
+		}
+	}
+
+	@Test
+	public void testGapSkip() {
+		Schedule schedule = daily(Schedule.GapPolicy.SKIP, Schedule.OverlapPolicy.BOTH);
+		assertEquals(utc("2023-03-27T00:30:00Z"), schedule.peekNextRunTime(utc("2023-03-26T00:00:00Z")));
+		assertEquals(utc("2023-03-27T00:30:00Z"), schedule.peekNextRunTime(SPRING - 1));
+	}
+
+	@Test
+	public void testOverlapBoth() {
+		Schedule schedule = daily(Schedule.GapPolicy.SHIFT, Schedule.OverlapPolicy.BOTH);
+		long[] times = new long[3];
+		assertEquals(3, schedule.getNextRunTimes(utc("2023-10-29T00:00:00Z"), times));
+		assertEquals(utc("2023-10-29T00:30:00Z"), times[0]);
+		assertEquals(utc("2023-10-29T01:30:00Z"), times[1]);
+		assertEquals(utc("2023-10-30T01:30:00Z"), times[2]);
+	}
+
+	@Test
+	public void testOverlapFirst() {
+		Schedule schedule = daily(Schedule.GapPolicy.SHIFT, Schedule.OverlapPolicy.FIRST);
+		assertEquals(utc("2023-10-29T00:30:00Z"), schedule.peekNextRunTime(utc("2023-10-29T00:00:00Z")));
+		assertEquals(utc("2023-10-30T01:30:00Z"), schedule.peekNextRunTime(utc("2023-10-29T00:30:00Z")));
+		assertEquals(utc("2023-10-30T01:30:00Z"), schedule.peekNextRunTime(AUTUMN));
+	}
+
+	@Test
+	public void testOverlapSecond() {
+		Schedule schedule = daily(Schedule.GapPolicy.SHIFT, Schedule.OverlapPolicy.SECOND);
+		assertEquals(utc("2023-10-29T01:30:00Z"), schedule.peekNextRunTime(utc("2023-10-29T00:00:00Z")));
+		assertEquals(utc("2023-10-30T01:30:00Z"), schedule.peekNextRunTime(utc("2023-10-29T01:30:00Z")));
+	}
+}
@@ -0,0 +1,186 @@
+package net.symplifier.core.application.threading;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the batch targets, the drain batch and the bulk queueing of the
+ * ThreadPool
+ *
+ * @author ranjan
+ */
+public class BatchThreadPoolTest {
+  private static final long TIMEOUT = 5;
+
+  private ThreadPool<Object, Integer> pool;
+  private CountDownLatch gate;
+
+  @Before
+  public void setUp() {
+    pool = new ThreadPool<>(new Object());
+    gate = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() {
+    gate.countDown();
+    pool.stop();
+  }
+
+  /* Hold up as many workers as given until the gate opens */
+  private void holdWorkers(int count) throws InterruptedException {
+    CountDownLatch held = new CountDownLatch(count);
+    for(int i = 0; i < count; ++i) {
+      pool.queue((source, attachment) -> {
+        held.countDown();
+        await(gate);
+      }, i);
+    }
+    assertTrue("The workers were not held", held.await(TIMEOUT, TimeUnit.SECONDS));
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(TIMEOUT, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  public void testWaitingBatchTargetGetsAllAttachments() throws InterruptedException {
+    pool.start(1);
+    holdWorkers(1);
+
+    List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch ran = new CountDownLatch(1);
+    BatchThreadTarget<Object, Integer> target = (source, attachments) -> {
+      batches.add(new ArrayList<>(attachments));
+      ran.countDown();
+    };
+    for(int i = 0; i < 5; ++i) {
+      pool.queue(target, i);
+    }
+
+    gate.countDown();
+    assertTrue(ran.await(TIMEOUT, TimeUnit.SECONDS));
+    Thread.sleep(50);
+    assertEquals(Collections.singletonList(Arrays.asList(0, 1, 2, 3, 4)), batches);
+  }
+
+  @Test
+  public void testBatchesNeitherLoseNorRepeatAttachments() throws InterruptedException {
+    pool.start(2);
+
+    int producers = 2;
+    int runs = 20000;
+    Set<Integer> seen = ConcurrentHashMap.newKeySet();
+    AtomicInteger repeated = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(producers * runs);
+    BatchThreadTarget<Object, Integer> target = (source, attachments) -> {
+      for(int attachment:attachments) {
+        if (!seen.add(attachment)) {
+          repeated.incrementAndGet();
+        }
+        done.countDown();
+      }
+    };
+    Thread[] threads = new Thread[producers];
+    for(int p = 0; p < producers; ++p) {
+      int base = p * runs;
+      threads[p] = new Thread(() -> {
+        for(int i = 0; i < runs; ++i) {
+          pool.queue(target, base + i);
+        }
+      });
+      threads[p].start();
+    }
+    for(Thread thread:threads) {
+      thread.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+    }
+
+    assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+    assertEquals(producers * runs, seen.size());
+    assertEquals(0, repeated.get());
+  }
+
+  @Test
+  public void testBatchAttachmentsTakePlacesInBoundedPool() throws InterruptedException {
+    pool.setCapacity(3, ThreadPool.OverflowPolicy.DROP_NEWEST);
+    pool.start(1);
+    holdWorkers(1);
+
+    List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+    List<Integer> dropped = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch ran = new CountDownLatch(1);
+    BatchThreadTarget<Object, Integer> target = new BatchThreadTarget<Object, Integer>() {
+      @Override
+      public void onRunBatch(Object source, List<Integer> attachments) {
+        batches.add(new ArrayList<>(attachments));
+        ran.countDown();
+      }
+
+      @Override
+      public void onDrop(Object source, Integer attachment) {
+        dropped.add(attachment);
+      }
+    };
+    for(int i = 0; i < 5; ++i) {
+      pool.queue(target, i);
+    }
+    assertEquals(Arrays.asList(3, 4), dropped);
+
+    gate.countDown();
+    assertTrue(ran.await(TIMEOUT, TimeUnit.SECONDS));
+    assertEquals(Collections.singletonList(Arrays.asList(0, 1, 2)), batches);
+  }
+
+  @Test
+  public void testDrainBatchRunsEveryTarget() throws InterruptedException {
+    pool.setDrainBatch(16);
+    pool.start(2);
+    assertEquals(16, pool.getDrainBatch());
+
+    int runs = 10000;
+    CountDownLatch done = new CountDownLatch(runs);
+    for(int i = 0; i < runs; ++i) {
+      pool.queue((source, attachment) -> done.countDown(), i);
+    }
+    assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testQueueAllRunsEveryTarget() throws InterruptedException {
+    pool.start(2);
+
+    int runs = 100;
+    Set<Integer> seen = ConcurrentHashMap.newKeySet();
+    CountDownLatch done = new CountDownLatch(runs);
+    Map<ThreadTarget<Object, Integer>, Integer> batch = new LinkedHashMap<>();
+    for(int i = 0; i < runs; ++i) {
+      batch.put((source, attachment) -> {
+        seen.add(attachment);
+        done.countDown();
+      }, i);
+    }
+    pool.queueAll(batch);
+    assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+    assertEquals(runs, seen.size());
+  }
+}
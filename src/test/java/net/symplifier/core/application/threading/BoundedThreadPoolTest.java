@@ -0,0 +1,211 @@
+package net.symplifier.core.application.threading;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the overflow policies of a bounded ThreadPool
+ *
+ * @author ranjan
+ */
+public class BoundedThreadPoolTest {
+  private static final long TIMEOUT = 5;
+  private static final int CAPACITY = 2;
+
+  private ThreadPool<Object, Integer> pool;
+  private CountDownLatch gate;
+  private final List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+  private final List<Integer> dropped = Collections.synchronizedList(new ArrayList<>());
+  private final List<Thread> runners = Collections.synchronizedList(new ArrayList<>());
+
+  @Before
+  public void setUp() {
+    pool = new ThreadPool<>(new Object());
+    gate = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() {
+    gate.countDown();
+    pool.stop();
+  }
+
+  /* A bounded pool of a single worker, held up until the gate opens */
+  private void startHeld(ThreadPool.OverflowPolicy policy) throws InterruptedException {
+    pool.setCapacity(CAPACITY, policy);
+    pool.start(1);
+    CountDownLatch held = new CountDownLatch(1);
+    pool.queue((source, attachment) -> {
+      held.countDown();
+      await(gate);
+    }, -1);
+    assertTrue("The worker was not held", held.await(TIMEOUT, TimeUnit.SECONDS));
+  }
+
+  /* A new target recording its run and its drop */
+  private ThreadTarget<Object, Integer> target() {
+    return new ThreadTarget<Object, Integer>() {
+      @Override
+      public void onRun(Object source, Integer attachment) {
+        runners.add(Thread.currentThread());
+        ran.add(attachment);
+      }
+
+      @Override
+      public void onDrop(Object source, Integer attachment) {
+        dropped.add(attachment);
+      }
+    };
+  }
+
+  /* Queue a new target for every attachment */
+  private void queue(int... attachments) {
+    for(int attachment:attachments) {
+      pool.queue(target(), attachment);
+    }
+  }
+
+  /* Let the worker go and wait for the runs to come to the given count */
+  private void release(int runs) throws InterruptedException {
+    gate.countDown();
+    long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+    while (ran.size() < runs) {
+      assertTrue("Ran only " + ran, System.currentTimeMillis() < end);
+      Thread.sleep(5);
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(TIMEOUT, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  public void testDropNewest() throws InterruptedException {
+    startHeld(ThreadPool.OverflowPolicy.DROP_NEWEST);
+    queue(1, 2, 3, 4);
+    assertEquals(Arrays.asList(3, 4), dropped);
+    assertEquals(2, pool.getRejectedCount());
+
+    release(2);
+    assertEquals(Arrays.asList(1, 2), ran);
+  }
+
+  @Test
+  public void testDropOldest() throws InterruptedException {
+    startHeld(ThreadPool.OverflowPolicy.DROP_OLDEST);
+    queue(1, 2, 3, 4);
+    assertEquals(Arrays.asList(1, 2), dropped);
+    assertEquals(2, pool.getRejectedCount());
+
+    release(2);
+    assertEquals(Arrays.asList(3, 4), ran);
+  }
+
+  @Test
+  public void testCallerRuns() throws InterruptedException {
+    startHeld(ThreadPool.OverflowPolicy.CALLER_RUNS);
+    queue(1, 2, 3);
+    assertEquals(Collections.singletonList(3), ran);
+    assertSame(Thread.currentThread(), runners.get(0));
+    assertEquals(1, pool.getRejectedCount());
+
+    release(3);
+    assertEquals(Arrays.asList(3, 1, 2), ran);
+    assertEquals(Collections.emptyList(), dropped);
+  }
+
+  @Test
+  public void testBlockWaitsForPlace() throws InterruptedException {
+    startHeld(ThreadPool.OverflowPolicy.BLOCK);
+    queue(1, 2);
+
+    Thread caller = new Thread(() -> queue(3));
+    caller.start();
+    caller.join(100);
+    assertTrue("The caller did not wait for a place", caller.isAlive());
+
+    release(3);
+    caller.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+    assertFalse(caller.isAlive());
+    assertEquals(Arrays.asList(1, 2, 3), ran);
+    assertEquals(Collections.emptyList(), dropped);
+  }
+
+  @Test
+  public void testBlockTimeoutDrops() throws InterruptedException {
+    pool.setBlockTimeout(50, TimeUnit.MILLISECONDS);
+    startHeld(ThreadPool.OverflowPolicy.BLOCK_TIMEOUT);
+    queue(1, 2);
+
+    long start = System.nanoTime();
+    queue(3);
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    assertEquals(Collections.singletonList(3), dropped);
+
+    release(2);
+    assertEquals(Arrays.asList(1, 2), ran);
+  }
+
+  @Test
+  public void testWorkerRunsTargetInsteadOfBlocking() throws InterruptedException {
+    pool.setCapacity(1, ThreadPool.OverflowPolicy.BLOCK);
+    pool.start(1);
+
+    AtomicReference<Thread> worker = new AtomicReference<>();
+    CountDownLatch done = new CountDownLatch(1);
+    pool.queue((source, attachment) -> {
+      worker.set(Thread.currentThread());
+      queue(1, 2);
+      done.countDown();
+    }, 0);
+    assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+    release(2);
+    assertEquals(Arrays.asList(2, 1), ran);
+    assertSame(worker.get(), runners.get(0));
+  }
+
+  @Test
+  public void testTargetQueuedAgainNeverOverflows() throws InterruptedException {
+    startHeld(ThreadPool.OverflowPolicy.DROP_NEWEST);
+    ThreadTarget<Object, Integer> target = target();
+    queue(1);
+    for(int i = 2; i < 10; ++i) {
+      pool.queue(target, i);
+    }
+    assertEquals(Collections.emptyList(), dropped);
+    assertEquals(0, pool.getRejectedCount());
+
+    release(2);
+    assertEquals(Arrays.asList(1, 9), ran);
+  }
+
+  @Test
+  public void testCapacityOnlyBeforeStart() {
+    pool.start(1);
+    try {
+      pool.setCapacity(CAPACITY, ThreadPool.OverflowPolicy.BLOCK);
+      fail("The capacity was set on a started pool");
+    } catch (IllegalStateException ex) {
+      assertEquals(Integer.MAX_VALUE, pool.getCapacity());
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package net.symplifier.core.application.threading;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the growth and the retirement of the threads of an elastic ThreadPool
+ *
+ * @author ranjan
+ */
+public class ElasticThreadPoolTest {
+  private static final long TIMEOUT = 5;
+
+  private ThreadPool<Object, Integer> pool;
+  private CountDownLatch gate;
+  private final List<ThreadPool.SizingReason> reasons = Collections.synchronizedList(new ArrayList<>());
+  private volatile int largest;
+
+  @Before
+  public void setUp() {
+    pool = new ThreadPool<>(new Object());
+    gate = new CountDownLatch(1);
+    pool.setSizingListener((p, threads, reason) -> {
+      reasons.add(reason);
+      largest = Math.max(largest, threads);
+    });
+  }
+
+  @After
+  public void tearDown() {
+    gate.countDown();
+    pool.stop();
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(TIMEOUT, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+    long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+    while (!condition.getAsBoolean()) {
+      assertTrue(what, System.currentTimeMillis() < end);
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testGrowsUnderLoadAndRetiresWhenIdle() throws InterruptedException {
+    pool.setIdleTimeout(100, TimeUnit.MILLISECONDS);
+    pool.start(1, 4, Thread::new);
+    assertEquals(1, pool.getThreadCount());
+    assertEquals(1, pool.getMinThreads());
+    assertEquals(4, pool.getMaxThreads());
+
+    CountDownLatch done = new CountDownLatch(8);
+    for(int i = 0; i < 8; ++i) {
+      pool.queue((source, attachment) -> {
+        await(gate);
+        done.countDown();
+      }, i);
+    }
+    // The listener is told right after the count changes
+    await("The pool did not grow", () -> largest == 4);
+    assertTrue(reasons.contains(ThreadPool.SizingReason.QUEUE_DEPTH));
+
+    gate.countDown();
+    assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+    await("The idle threads did not retire", () -> reasons.size() == 6);
+    assertEquals(1, pool.getThreadCount());
+    assertEquals(4, largest);
+    assertEquals(3, pool.getThreadsAdded());
+    assertEquals(3, pool.getThreadsRetired());
+    assertTrue(reasons.contains(ThreadPool.SizingReason.IDLE_TIMEOUT));
+
+    // The threads left still run the new work
+    CountDownLatch again = new CountDownLatch(3);
+    for(int i = 0; i < 3; ++i) {
+      pool.queue((source, attachment) -> again.countDown(), i);
+    }
+    assertTrue(again.await(TIMEOUT, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testGrowsForRunWaitingTooLong() throws InterruptedException {
+    pool.setGrowthThresholds(100, 20, TimeUnit.MILLISECONDS);
+    pool.start(1, 2, Thread::new);
+
+    CountDownLatch held = new CountDownLatch(1);
+    pool.queue((source, attachment) -> {
+      held.countDown();
+      await(gate);
+    }, 0);
+    assertTrue(held.await(TIMEOUT, TimeUnit.SECONDS));
+
+    // Well below the depth, only its age gets the waiting run a thread
+    CountDownLatch ran = new CountDownLatch(1);
+    pool.queue((source, attachment) -> ran.countDown(), 1);
+    assertTrue(ran.await(TIMEOUT, TimeUnit.SECONDS));
+    await("The growth was not told", () -> !reasons.isEmpty());
+    assertEquals(2, pool.getThreadCount());
+    assertEquals(Collections.singletonList(ThreadPool.SizingReason.QUEUE_AGE), reasons);
+  }
+
+  @Test
+  public void testFixedPoolNeverGrows() throws InterruptedException {
+    pool.start(2);
+
+    CountDownLatch done = new CountDownLatch(20);
+    for(int i = 0; i < 20; ++i) {
+      pool.queue((source, attachment) -> {
+        await(gate);
+        done.countDown();
+      }, i);
+    }
+    Thread.sleep(100);
+    assertEquals(2, pool.getThreadCount());
+
+    gate.countDown();
+    assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+    assertEquals(0, pool.getThreadsAdded());
+    assertEquals(Collections.emptyList(), reasons);
+  }
+}
@@ -0,0 +1,234 @@
+package net.symplifier.core.application.threading;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the keyed serial runs of the ThreadPool
+ *
+ * @author ranjan
+ */
+public class KeyedThreadPoolTest {
+  private static final long TIMEOUT = 5;
+
+  private ThreadPool<Object, Integer> pool;
+  private CountDownLatch gate;
+
+  @Before
+  public void setUp() {
+    pool = new ThreadPool<>(new Object());
+    gate = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() {
+    gate.countDown();
+    pool.stop();
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(TIMEOUT, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  public void testRunsOfKeyInOrderOneAtATime() throws InterruptedException {
+    pool.start(4);
+
+    int keys = 8;
+    int runs = 500;
+    List<List<Integer>> seen = new ArrayList<>();
+    AtomicInteger[] running = new AtomicInteger[keys];
+    AtomicInteger overlaps = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(keys * runs);
+    for(int k = 0; k < keys; ++k) {
+      seen.add(Collections.synchronizedList(new ArrayList<>()));
+      running[k] = new AtomicInteger();
+    }
+    for(int i = 0; i < runs; ++i) {
+      for(int k = 0; k < keys; ++k) {
+        int key = k;
+        pool.queueKeyed(key, (source, attachment) -> {
+          if (running[key].incrementAndGet() > 1) {
+            overlaps.incrementAndGet();
+          }
+          seen.get(key).add(attachment);
+          running[key].decrementAndGet();
+          done.countDown();
+        }, i);
+      }
+    }
+
+    assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+    assertEquals(0, overlaps.get());
+    for(List<Integer> list:seen) {
+      assertEquals(runs, list.size());
+      for(int i = 0; i < runs; ++i) {
+        assertEquals(i, (int) list.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void testOtherKeysGoOnWhileKeyIsHeld() throws InterruptedException {
+    pool.start(2);
+
+    CountDownLatch held = new CountDownLatch(1);
+    CountDownLatch other = new CountDownLatch(1);
+    AtomicInteger after = new AtomicInteger();
+    pool.queueKeyed("a", (source, attachment) -> {
+      held.countDown();
+      await(gate);
+    }, 0);
+    pool.queueKeyed("a", (source, attachment) -> after.incrementAndGet(), 1);
+    assertTrue(held.await(TIMEOUT, TimeUnit.SECONDS));
+
+    pool.queueKeyed("b", (source, attachment) -> other.countDown(), 0);
+    assertTrue(other.await(TIMEOUT, TimeUnit.SECONDS));
+    assertEquals(0, after.get());
+    gate.countDown();
+  }
+
+  @Test
+  public void testSameTargetRunsForEveryAttachment() throws InterruptedException {
+    pool.start(2);
+
+    List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch done = new CountDownLatch(100);
+    ThreadTarget<Object, Integer> target = (source, attachment) -> {
+      seen.add(attachment);
+      done.countDown();
+    };
+    for(int i = 0; i < 100; ++i) {
+      pool.queueKeyed("key", target, i);
+    }
+    assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+    for(int i = 0; i < 100; ++i) {
+      assertEquals(i, (int) seen.get(i));
+    }
+  }
+
+  @Test
+  public void testKeyTakesSinglePlaceInBoundedPool() throws InterruptedException {
+    pool.setCapacity(1, ThreadPool.OverflowPolicy.DROP_NEWEST);
+    pool.start(1);
+
+    CountDownLatch held = new CountDownLatch(1);
+    pool.queue((source, attachment) -> {
+      held.countDown();
+      await(gate);
+    }, 0);
+    assertTrue(held.await(TIMEOUT, TimeUnit.SECONDS));
+
+    List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+    List<Integer> dropped = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch done = new CountDownLatch(5);
+    ThreadTarget<Object, Integer> target = new ThreadTarget<Object, Integer>() {
+      @Override
+      public void onRun(Object source, Integer attachment) {
+        seen.add(attachment);
+        done.countDown();
+      }
+
+      @Override
+      public void onDrop(Object source, Integer attachment) {
+        dropped.add(attachment);
+      }
+    };
+    for(int i = 0; i < 5; ++i) {
+      pool.queueKeyed("key", target, i);
+    }
+    pool.queue(target, 5);
+    assertEquals(Collections.singletonList(5), dropped);
+
+    gate.countDown();
+    assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4), seen);
+  }
+
+  @Test
+  public void testWaitingKeyedRunsDropOnStop() throws InterruptedException {
+    pool.start(1);
+
+    CountDownLatch held = new CountDownLatch(1);
+    AtomicInteger ran = new AtomicInteger();
+    List<Integer> dropped = Collections.synchronizedList(new ArrayList<>());
+    ThreadTarget<Object, Integer> target = new ThreadTarget<Object, Integer>() {
+      @Override
+      public void onRun(Object source, Integer attachment) {
+        ran.incrementAndGet();
+      }
+
+      @Override
+      public void onDrop(Object source, Integer attachment) {
+        dropped.add(attachment);
+      }
+    };
+    pool.queueKeyed("key", (source, attachment) -> {
+      held.countDown();
+      await(gate);
+    }, 0);
+    pool.queueKeyed("key", target, 1);
+    assertTrue(held.await(TIMEOUT, TimeUnit.SECONDS));
+
+    pool.stop();
+    gate.countDown();
+    pool.queueKeyed("key", target, 2);
+    pool.queueKeyed("other", target, 3);
+    Thread.sleep(50);
+    assertEquals(0, ran.get());
+    assertTrue(dropped.containsAll(Arrays.asList(2, 3)));
+  }
+
+  @Test
+  public void testKeyedSubmissionFailsWhenPoolStops() throws InterruptedException {
+    pool.start(1);
+
+    CountDownLatch held = new CountDownLatch(1);
+    CompletableFuture<Integer> running = pool.submitKeyed("key", (source, attachment) -> {
+      held.countDown();
+      await(gate);
+      return attachment;
+    }, 1);
+    CompletableFuture<Integer> waiting = pool.submitKeyed("key", (source, attachment) -> attachment, 2);
+    assertTrue(held.await(TIMEOUT, TimeUnit.SECONDS));
+
+    pool.stop();
+    try {
+      waiting.get(TIMEOUT, TimeUnit.SECONDS);
+      fail("The future of a keyed run left waiting completed normally");
+    } catch (ExecutionException ex) {
+      assertTrue(ex.getCause() instanceof RejectedExecutionException);
+    } catch (TimeoutException ex) {
+      fail("The future of a keyed run left waiting did not complete");
+    }
+
+    // The run already going is let finish
+    gate.countDown();
+    try {
+      assertEquals(1, (int) running.get(TIMEOUT, TimeUnit.SECONDS));
+    } catch (ExecutionException | TimeoutException ex) {
+      fail("The keyed run going on when the pool stopped did not finish - " + ex);
+    }
+  }
+}
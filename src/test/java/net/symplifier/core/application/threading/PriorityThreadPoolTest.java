@@ -0,0 +1,173 @@
+package net.symplifier.core.application.threading;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the weighted draining of the priority lanes of the ThreadPool
+ *
+ * @author ranjan
+ */
+public class PriorityThreadPoolTest {
+  private static final long TIMEOUT = 5;
+
+  private ThreadPool<Object, Integer> pool;
+  private CountDownLatch gate;
+  private final List<String> log = Collections.synchronizedList(new ArrayList<>());
+
+  @Before
+  public void setUp() {
+    pool = new ThreadPool<>(new Object());
+    gate = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() {
+    gate.countDown();
+    pool.stop();
+  }
+
+  /* Start a pool of a single worker, held up until the gate opens */
+  private void startHeld() throws InterruptedException {
+    pool.start(1);
+    CountDownLatch held = new CountDownLatch(1);
+    pool.queue((source, attachment) -> {
+      held.countDown();
+      await(gate);
+    }, 0);
+    assertTrue("The worker was not held", held.await(TIMEOUT, TimeUnit.SECONDS));
+  }
+
+  /* A new target of the given priority logging its name */
+  private ThreadTarget<Object, Integer> target(ThreadPool.Priority priority, String name) {
+    return new ThreadTarget<Object, Integer>() {
+      @Override
+      public void onRun(Object source, Integer attachment) {
+        log.add(name);
+      }
+
+      @Override
+      public ThreadPool.Priority getPriority() {
+        return priority;
+      }
+    };
+  }
+
+  /* Let the worker go and wait for the log to come to the given size */
+  private void release(int runs) throws InterruptedException {
+    gate.countDown();
+    long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+    while (log.size() < runs) {
+      assertTrue("Ran only " + log, System.currentTimeMillis() < end);
+      Thread.sleep(5);
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(TIMEOUT, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static int count(List<String> runs, String name) {
+    return Collections.frequency(runs, name);
+  }
+
+  @Test
+  public void testLanesDrainedByWeight() throws InterruptedException {
+    startHeld();
+    for(int i = 0; i < 30; ++i) {
+      pool.queue(target(ThreadPool.Priority.LOW, "L"), i);
+      pool.queue(target(ThreadPool.Priority.NORMAL, "N"), i);
+      pool.queue(target(ThreadPool.Priority.HIGH, "H"), i);
+    }
+
+    release(90);
+    // Two rounds of the weights 8, 4 and 1, while every lane has runs
+    List<String> rounds = new ArrayList<>(log.subList(0, 26));
+    assertEquals(16, count(rounds, "H"));
+    assertEquals(8, count(rounds, "N"));
+    assertEquals(2, count(rounds, "L"));
+  }
+
+  @Test
+  public void testWeightsSet() throws InterruptedException {
+    pool.setPriorityWeights(1, 1, 1);
+    startHeld();
+    for(int i = 0; i < 10; ++i) {
+      pool.queue(target(ThreadPool.Priority.LOW, "L"), i);
+      pool.queue(target(ThreadPool.Priority.NORMAL, "N"), i);
+      pool.queue(target(ThreadPool.Priority.HIGH, "H"), i);
+    }
+
+    release(30);
+    List<String> rounds = new ArrayList<>(log.subList(0, 9));
+    assertEquals(3, count(rounds, "H"));
+    assertEquals(3, count(rounds, "N"));
+    assertEquals(3, count(rounds, "L"));
+  }
+
+  @Test
+  public void testEmptyLaneTurnGoesToHigherLane() throws InterruptedException {
+    pool.setPriorityWeights(1, 1, 1);
+    startHeld();
+    for(int i = 0; i < 10; ++i) {
+      pool.queue(target(ThreadPool.Priority.LOW, "L"), i);
+      pool.queue(target(ThreadPool.Priority.NORMAL, "N"), i);
+    }
+
+    release(20);
+    List<String> rounds = new ArrayList<>(log.subList(0, 9));
+    assertEquals(6, count(rounds, "N"));
+    assertEquals(3, count(rounds, "L"));
+  }
+
+  @Test
+  public void testPriorityGivenWhileQueueing() throws InterruptedException {
+    startHeld();
+    pool.queue(target(ThreadPool.Priority.LOW, "low"), 0);
+    pool.queue(target(ThreadPool.Priority.LOW, "raised"), 0, ThreadPool.Priority.HIGH);
+
+    release(2);
+    assertEquals(Arrays.asList("raised", "low"), log);
+  }
+
+  @Test
+  public void testStarvedRunTakenFirst() throws InterruptedException {
+    pool.setPriorityWeights(1000, 1000, 1);
+    pool.setStarvationTimeout(50, TimeUnit.MILLISECONDS);
+    startHeld();
+    pool.queue(target(ThreadPool.Priority.LOW, "L"), 0);
+    Thread.sleep(100);
+    for(int i = 0; i < 50; ++i) {
+      pool.queue(target(ThreadPool.Priority.HIGH, "H"), i);
+    }
+
+    release(51);
+    assertEquals("L", log.get(0));
+  }
+
+  @Test
+  public void testWeightsAtLeastOne() {
+    try {
+      pool.setPriorityWeights(1, 0, 1);
+      fail("A weight of 0 was taken");
+    } catch (IllegalArgumentException ex) {
+      // Expected
+    }
+  }
+}
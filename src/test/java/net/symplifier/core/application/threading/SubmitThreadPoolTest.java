@@ -0,0 +1,232 @@
+package net.symplifier.core.application.threading;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the submissions for a result and the cancellation of the runs of the
+ * ThreadPool
+ *
+ * @author ranjan
+ */
+public class SubmitThreadPoolTest {
+  private static final long TIMEOUT = 5;
+
+  private ThreadPool<Object, Integer> pool;
+  private CountDownLatch gate;
+
+  @Before
+  public void setUp() {
+    pool = new ThreadPool<>(new Object());
+    gate = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() {
+    gate.countDown();
+    pool.stop();
+  }
+
+  /* Hold up as many workers as given until the gate opens */
+  private void holdWorkers(int count) throws InterruptedException {
+    CountDownLatch held = new CountDownLatch(count);
+    for(int i = 0; i < count; ++i) {
+      pool.queue((source, attachment) -> {
+        held.countDown();
+        await(gate);
+      }, i);
+    }
+    assertTrue("The workers were not held", held.await(TIMEOUT, TimeUnit.SECONDS));
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(TIMEOUT, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /* The exception the future completed with, failing if it completed normally */
+  private static Throwable failure(CompletableFuture<?> future) throws InterruptedException {
+    try {
+      future.get(TIMEOUT, TimeUnit.SECONDS);
+    } catch (ExecutionException ex) {
+      return ex.getCause();
+    } catch (TimeoutException ex) {
+      fail("The future did not complete");
+    }
+    fail("The future completed normally");
+    return null;
+  }
+
+  @Test
+  public void testSubmitCompletesWithResult() throws Exception {
+    pool.start(2);
+    assertEquals(42, (int) pool.submit((source, attachment) -> attachment * 2, 21).get(TIMEOUT, TimeUnit.SECONDS));
+    assertEquals("xy", pool.submit(() -> "x").thenApply(value -> value + "y").get(TIMEOUT, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testSubmitCompletesWithFailureOfTask() throws InterruptedException {
+    pool.start(1);
+    CompletableFuture<Integer> future = pool.submit((source, attachment) -> {
+      throw new IOException("Failing on purpose");
+    }, 1);
+    assertTrue(failure(future) instanceof IOException);
+  }
+
+  @Test
+  public void testSubmissionsOfSameTaskAreNotMerged() throws Exception {
+    pool.start(1);
+    holdWorkers(1);
+
+    ThreadTask<Object, Integer, Integer> task = (source, attachment) -> attachment;
+    List<CompletableFuture<Integer>> futures = new ArrayList<>();
+    for(int i = 0; i < 10; ++i) {
+      futures.add(pool.submit(task, i));
+    }
+    assertEquals(10, pool.getQueuedCount());
+
+    gate.countDown();
+    for(int i = 0; i < 10; ++i) {
+      assertEquals(i, (int) futures.get(i).get(TIMEOUT, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testCancelledWaitingSubmissionNeverRuns() throws Exception {
+    pool.start(1);
+    holdWorkers(1);
+
+    AtomicInteger ran = new AtomicInteger();
+    List<CompletableFuture<Integer>> futures = new ArrayList<>();
+    for(int i = 0; i < 10; ++i) {
+      futures.add(pool.submit((source, attachment) -> {
+        ran.incrementAndGet();
+        return attachment;
+      }, i));
+    }
+    for(int i = 0; i < 10; i += 2) {
+      assertTrue(futures.get(i).cancel(false));
+    }
+    assertEquals(5, pool.getQueuedCount());
+
+    gate.countDown();
+    for(int i = 1; i < 10; i += 2) {
+      assertEquals(i, (int) futures.get(i).get(TIMEOUT, TimeUnit.SECONDS));
+    }
+    assertEquals(5, ran.get());
+    assertTrue(futures.get(0).isCancelled());
+  }
+
+  @Test
+  public void testCancelInterruptsRunningSubmission() throws InterruptedException {
+    pool.start(1);
+
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    CompletableFuture<Void> future = pool.submit((source, attachment) -> {
+      started.countDown();
+      try {
+        Thread.sleep(TimeUnit.SECONDS.toMillis(TIMEOUT));
+      } catch (InterruptedException ex) {
+        interrupted.countDown();
+      }
+      return null;
+    }, 0);
+    assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+    assertTrue(future.cancel(true));
+    assertTrue(interrupted.await(TIMEOUT, TimeUnit.SECONDS));
+
+    // The interrupt does not leak into the next run on the same worker
+    AtomicBoolean leaked = new AtomicBoolean();
+    try {
+      pool.submit((source, attachment) -> {
+        leaked.set(Thread.currentThread().isInterrupted());
+        return null;
+      }, 1).get(TIMEOUT, TimeUnit.SECONDS);
+    } catch (ExecutionException | TimeoutException ex) {
+      fail("The run after the cancelled one did not finish - " + ex);
+    }
+    assertFalse(leaked.get());
+  }
+
+  @Test
+  public void testCancelTakesWaitingTargetOut() throws InterruptedException {
+    pool.start(1);
+    holdWorkers(1);
+
+    AtomicBoolean ran = new AtomicBoolean();
+    ThreadTarget<Object, Integer> target = (source, attachment) -> ran.set(true);
+    pool.queue(target, 1);
+    assertTrue(pool.cancel(target));
+    assertFalse(pool.cancel(target));
+    assertEquals(0, pool.getQueuedCount());
+
+    gate.countDown();
+    CountDownLatch after = new CountDownLatch(1);
+    pool.queue((source, attachment) -> after.countDown(), 2);
+    assertTrue(after.await(TIMEOUT, TimeUnit.SECONDS));
+    assertFalse(ran.get());
+  }
+
+  @Test
+  public void testSubmissionDroppedByBoundedPoolFails() throws InterruptedException {
+    pool.setCapacity(1, ThreadPool.OverflowPolicy.DROP_NEWEST);
+    pool.start(1);
+    holdWorkers(1);
+
+    CompletableFuture<Integer> waiting = pool.submit((source, attachment) -> attachment, 1);
+    CompletableFuture<Integer> dropped = pool.submit((source, attachment) -> attachment, 2);
+    assertTrue(failure(dropped) instanceof RejectedExecutionException);
+
+    // A cancelled submission gives its place back
+    assertTrue(waiting.cancel(false));
+    CompletableFuture<Integer> taken = pool.submit((source, attachment) -> attachment, 3);
+    gate.countDown();
+    try {
+      assertEquals(3, (int) taken.get(TIMEOUT, TimeUnit.SECONDS));
+    } catch (ExecutionException | TimeoutException ex) {
+      fail("The submission in the place given back did not run - " + ex);
+    }
+  }
+
+  @Test
+  public void testSubmissionLeftWaitingFailsOnStop() throws InterruptedException {
+    pool.start(1);
+    holdWorkers(1);
+
+    CompletableFuture<Integer> future = pool.submit((source, attachment) -> attachment, 1);
+    pool.stop();
+    gate.countDown();
+    assertTrue(failure(future) instanceof RejectedExecutionException);
+  }
+
+  @Test
+  public void testSubmitAfterStopFails() throws InterruptedException {
+    pool.start(1);
+    pool.stop();
+    CompletableFuture<Integer> future = pool.submit((source, attachment) -> attachment, 1);
+    assertTrue(future.isCompletedExceptionally());
+    assertTrue(failure(future) instanceof RejectedExecutionException);
+  }
+}
@@ -0,0 +1,237 @@
+package net.symplifier.core.application.threading;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the coalescing, the work stealing and the stop of the ThreadPool
+ *
+ * @author ranjan
+ */
+public class ThreadPoolTest {
+  private static final long TIMEOUT = 5;
+
+  private final List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+  private final ThreadFactory factory = r -> {
+    Thread thread = new Thread(r);
+    threads.add(thread);
+    return thread;
+  };
+
+  private ThreadPool<Object, Integer> pool;
+  private CountDownLatch gate;
+
+  @Before
+  public void setUp() {
+    pool = new ThreadPool<>(new Object());
+    gate = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() {
+    gate.countDown();
+    pool.stop();
+  }
+
+  /* Hold up as many workers as given until the gate opens */
+  private void holdWorkers(int count) throws InterruptedException {
+    CountDownLatch held = new CountDownLatch(count);
+    for(int i = 0; i < count; ++i) {
+      pool.queue((source, attachment) -> {
+        held.countDown();
+        await(gate);
+      }, i);
+    }
+    assertTrue("The workers were not held", held.await(TIMEOUT, TimeUnit.SECONDS));
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(TIMEOUT, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Test
+  public void testWaitingTargetRunsOnceWithLatestAttachment() throws InterruptedException {
+    pool.start(1, factory);
+    holdWorkers(1);
+
+    List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch ran = new CountDownLatch(1);
+    ThreadTarget<Object, Integer> target = (source, attachment) -> {
+      seen.add(attachment);
+      ran.countDown();
+    };
+    for(int i = 0; i < 100; ++i) {
+      pool.queue(target, i);
+    }
+    assertEquals(1, pool.getQueuedCount());
+
+    gate.countDown();
+    assertTrue(ran.await(TIMEOUT, TimeUnit.SECONDS));
+    Thread.sleep(50);
+    assertEquals(Collections.singletonList(99), seen);
+  }
+
+  @Test
+  public void testTargetQueuedAfterRunStartsRunsAgain() throws InterruptedException {
+    pool.start(2, factory);
+
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch ran = new CountDownLatch(2);
+    ThreadTarget<Object, Integer> target = (source, attachment) -> {
+      started.countDown();
+      if (attachment == 0) {
+        await(gate);
+      }
+      ran.countDown();
+    };
+    pool.queue(target, 0);
+    assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+    pool.queue(target, 1);
+
+    gate.countDown();
+    assertTrue(ran.await(TIMEOUT, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testIdleWorkerStealsFromBusyWorker() throws InterruptedException {
+    pool.start(2, factory);
+
+    AtomicReference<Thread> parent = new AtomicReference<>();
+    AtomicReference<Thread> child = new AtomicReference<>();
+    CountDownLatch childRan = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+    pool.queue((source, attachment) -> {
+      parent.set(Thread.currentThread());
+      // Queued from a worker, the child goes on the deque of this worker,
+      // which then stays busy until the child has run elsewhere
+      pool.queue((s, a) -> {
+        child.set(Thread.currentThread());
+        childRan.countDown();
+      }, 1);
+      await(childRan);
+      done.countDown();
+    }, 0);
+
+    assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+    assertEquals(0, childRan.getCount());
+    assertNotNull(child.get());
+    assertNotSame(parent.get(), child.get());
+  }
+
+  @Test
+  public void testRunsQueuedFromWorkersAllRun() throws InterruptedException {
+    pool.start(4, factory);
+
+    int depth = 12;
+    CountDownLatch leaves = new CountDownLatch(1 << depth);
+    class Node implements ThreadTarget<Object, Integer> {
+      @Override
+      public void onRun(Object source, Integer level) {
+        if (level == depth) {
+          leaves.countDown();
+        } else {
+          pool.queue(new Node(), level + 1);
+          pool.queue(new Node(), level + 1);
+        }
+      }
+    }
+    pool.queue(new Node(), 0);
+    assertTrue(leaves.await(TIMEOUT, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testStopEndsWorkers() throws InterruptedException {
+    pool.start(3, factory);
+    CountDownLatch ran = new CountDownLatch(10);
+    for(int i = 0; i < 10; ++i) {
+      pool.queue((source, attachment) -> ran.countDown(), i);
+    }
+    assertTrue(ran.await(TIMEOUT, TimeUnit.SECONDS));
+
+    pool.stop();
+    assertEquals(3, threads.size());
+    for(Thread thread:threads) {
+      thread.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+      assertFalse(thread.getName() + " still running", thread.isAlive());
+    }
+  }
+
+  @Test
+  public void testStopDropsWaitingRuns() throws InterruptedException {
+    pool.start(1, factory);
+    holdWorkers(1);
+
+    AtomicBoolean ran = new AtomicBoolean();
+    pool.queue((source, attachment) -> ran.set(true), 1);
+
+    pool.stop();
+    gate.countDown();
+    for(Thread thread:threads) {
+      thread.join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+    }
+    assertFalse(ran.get());
+    assertEquals(0, pool.getQueuedCount());
+  }
+
+  @Test
+  public void testRunQueuedAfterStopIsDropped() {
+    pool.start(1, factory);
+    pool.stop();
+
+    AtomicBoolean ran = new AtomicBoolean();
+    List<Integer> dropped = new ArrayList<>();
+    ThreadTarget<Object, Integer> target = new ThreadTarget<Object, Integer>() {
+      @Override
+      public void onRun(Object source, Integer attachment) {
+        ran.set(true);
+      }
+
+      @Override
+      public void onDrop(Object source, Integer attachment) {
+        dropped.add(attachment);
+      }
+    };
+    pool.queue(target, 1);
+    assertFalse(ran.get());
+    assertEquals(Collections.singletonList(1), dropped);
+  }
+
+  @Test
+  public void testStopLetsRunningTargetFinish() throws InterruptedException {
+    pool.start(1, factory);
+    AtomicInteger finished = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    pool.queue((source, attachment) -> {
+      started.countDown();
+      await(gate);
+      finished.incrementAndGet();
+    }, 0);
+    assertTrue(started.await(TIMEOUT, TimeUnit.SECONDS));
+
+    pool.stop();
+    gate.countDown();
+    threads.get(0).join(TimeUnit.SECONDS.toMillis(TIMEOUT));
+    assertEquals(1, finished.get());
+  }
+}